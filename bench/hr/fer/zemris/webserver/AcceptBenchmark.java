@@ -0,0 +1,67 @@
+package hr.fer.zemris.webserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmark of how many connections per second the server accepts. Client threads open a connection and close it
+ * right away, over and over again, which is what a reconnect storm looks like to the server. Benchmark is in the
+ * <code>bench</code> source root, so it isn't shipped with the server.
+ * <p>
+ * Usage: <code>AcceptBenchmark host port clientThreads seconds</code>. To see how accepting scales, run it against the
+ * server started with <code>server.acceptors</code> set to 1, 2, 4, ... up to the number of cores, for example:
+ *
+ * <pre>
+ * java -cp bench-bin hr.fer.zemris.webserver.AcceptBenchmark 127.0.0.1 5721 64 10
+ * </pre>
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public class AcceptBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length != 4) {
+            System.out.println("Usage: AcceptBenchmark host port clientThreads seconds");
+            return;
+        }
+
+        final InetSocketAddress address = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+        final int clientThreads = Integer.parseInt(args[2]);
+        final long end = System.nanoTime() + Long.parseLong(args[3]) * 1_000_000_000L;
+
+        final AtomicLong connected = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+
+        Thread[] clients = new Thread[clientThreads];
+        for (int i = 0; i < clientThreads; i++) {
+            clients[i] = new Thread() {
+
+                @Override
+                public void run() {
+                    while (System.nanoTime() < end) {
+                        try (Socket socket = new Socket()) {
+                            socket.connect(address, 1000);
+                            connected.incrementAndGet();
+                        } catch (IOException e) {
+                            failed.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            clients[i].start();
+        }
+
+        final long begin = System.nanoTime();
+        for (Thread client : clients) {
+            client.join();
+        }
+        final double seconds = (System.nanoTime() - begin) / 1e9;
+
+        System.out.printf("clientThreads=%d connections=%d failed=%d%n", clientThreads, connected.get(),
+                failed.get());
+        System.out.printf("accepted=%.1f connections/s%n", connected.get() / seconds);
+    }
+}
@@ -0,0 +1,121 @@
+package hr.fer.zemris.webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import hr.fer.zemris.webserver.RequestContext.RCCookie;
+
+/**
+ * Benchmark of how many bytes are allocated on the heap to generate a single response. Responses are written to a
+ * stream that discards them, so only the work done by {@link RequestContext} is measured. Allocations are counted by
+ * the JVM for each thread, so the benchmark needs a JVM that supports
+ * {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long[])}. Benchmark is the only thread that
+ * allocates while it runs, so the bytes allocated by all threads are the ones it allocated.
+ * <p>
+ * Benchmark is in the <code>bench</code> source root, so it isn't shipped with the server.
+ * <p>
+ * Usage: <code>HeaderAllocationBenchmark [iterations]</code>, with the server classes on the class path, for example:
+ *
+ * <pre>
+ * java -cp bin:bench-bin hr.fer.zemris.webserver.HeaderAllocationBenchmark 1000000
+ * </pre>
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public class HeaderAllocationBenchmark {
+
+    private static final byte[] BODY = "<html><body>Hello</body></html>".getBytes(StandardCharsets.UTF_8);
+
+    public static void main(String[] args) throws IOException {
+        final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        final OutputStream sink = new OutputStream() {
+
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+
+        for (int variant = 0; variant < 3; variant++) {
+            // warm up, so the measured responses run compiled code
+            for (int i = 0; i < iterations / 10; i++) {
+                respond(sink, variant);
+            }
+
+            final long allocated = allocatedBytes(threads);
+            final long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                respond(sink, variant);
+            }
+            final long time = System.nanoTime() - start;
+            final long bytes = allocatedBytes(threads) - allocated;
+
+            System.out.printf("%-28s %8.1f B/response %8.1f ns/response%n", name(variant),
+                    bytes / (double) iterations, time / (double) iterations);
+        }
+    }
+
+    /**
+     * Returns the number of bytes allocated by all live threads. Current thread's id alone would do, but
+     * {@link Thread#getId()} is deprecated and it's replacement needs Java 19.
+     *
+     * @param threads thread management bean
+     * @return number of allocated bytes
+     */
+    private static long allocatedBytes(com.sun.management.ThreadMXBean threads) {
+        long total = 0;
+        for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            // threads that ended in the meantime are reported as -1
+            total += Math.max(allocated, 0);
+        }
+        return total;
+    }
+
+    /**
+     * Generates a single response.
+     *
+     * @param sink stream to which response is written
+     * @param variant which headers are generated
+     * @throws IOException never, sink doesn't throw
+     */
+    private static void respond(OutputStream sink, int variant) throws IOException {
+        RequestContext rc = new RequestContext(sink, null, null, null);
+        rc.setKeepAlive(true);
+        rc.setMimeType("text/html");
+        rc.setContentLength(BODY.length);
+        if (variant >= 1) {
+            rc.addRCCookie(new RCCookie("sid", "1A2B3C4D5E6F7A8B9C0D", null, "localhost", "/"));
+        }
+        if (variant >= 2) {
+            rc.setETag("5f3a9c-1f");
+            rc.setLastModified(1_500_000_000_000L);
+        }
+        rc.write(BODY);
+        rc.finish();
+    }
+
+    /**
+     * @param variant which headers are generated
+     * @return description of the variant
+     */
+    private static String name(int variant) {
+        switch (variant) {
+            case 0:
+                return "status + type + length";
+            case 1:
+                return "+ session cookie";
+            default:
+                return "+ ETag and Last-Modified";
+        }
+    }
+}
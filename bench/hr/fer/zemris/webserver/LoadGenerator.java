@@ -0,0 +1,217 @@
+package hr.fer.zemris.webserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Simple load generator used to benchmark the server. It keeps the given number of connections open at all times,
+ * each sending a single GET request, and reports throughput and latency once all requests are done. A single selector
+ * thread drives all of the connections, so tens of thousands of concurrent clients can be simulated. It's in the
+ * <code>bench</code> source root, so it isn't shipped with the server.
+ * <p>
+ * Usage: <code>LoadGenerator host port path connections requests [sendDelayMillis]</code>. Delay makes each client
+ * wait after connecting before it sends it's request, which simulates slow clients.
+ * <p>
+ * To compare executors, start the server once with <code>server.executor = fixed</code> and once with
+ * <code>server.executor = virtual</code> (using <code>server.io = blocking</code>) and run, for example:
+ *
+ * <pre>
+ * java -cp bench-bin hr.fer.zemris.webserver.LoadGenerator 127.0.0.1 5721 /sample.txt 1000 20000 50
+ * java -cp bench-bin hr.fer.zemris.webserver.LoadGenerator 127.0.0.1 5721 /sample.txt 10000 50000 50
+ * </pre>
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public class LoadGenerator {
+
+    private final InetSocketAddress address;
+    private final byte[] request;
+    private final int connections;
+    private final int requests;
+    private final long sendDelay;
+
+    private final Selector selector;
+    private final List<Client> waiting = new ArrayList<>();
+    private final long[] latencies;
+    private int started;
+    private int completed;
+    private int failed;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 5 && args.length != 6) {
+            System.out.println("Usage: LoadGenerator host port path connections requests [sendDelayMillis]");
+            return;
+        }
+
+        LoadGenerator generator = new LoadGenerator(args[0], Integer.parseInt(args[1]), args[2],
+                Integer.parseInt(args[3]), Integer.parseInt(args[4]), args.length == 6 ? Long.parseLong(args[5]) : 0);
+        generator.run();
+    }
+
+    /**
+     * Creates a new {@link LoadGenerator}.
+     *
+     * @param host server host
+     * @param port server port
+     * @param path requested path
+     * @param connections number of concurrent connections
+     * @param requests total number of requests
+     * @param sendDelay how long each client waits before sending it's request, in milliseconds
+     * @throws IOException if selector can't be opened
+     */
+    public LoadGenerator(String host, int port, String path, int connections, int requests, long sendDelay)
+            throws IOException {
+        this.address = new InetSocketAddress(host, port);
+        this.request = ("GET " + path + " HTTP/1.1\r\nHost: " + host + "\r\nConnection: close\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1);
+        this.connections = connections;
+        this.requests = requests;
+        this.sendDelay = sendDelay;
+        this.selector = Selector.open();
+        this.latencies = new long[requests];
+    }
+
+    /**
+     * Runs the benchmark and prints the results.
+     *
+     * @throws IOException if there was a problem with the selector
+     */
+    public void run() throws IOException {
+        final ByteBuffer scratch = ByteBuffer.allocate(64 * 1024);
+        final long begin = System.nanoTime();
+
+        for (int i = 0, n = Math.min(connections, requests); i < n; i++) {
+            connect();
+        }
+
+        while (completed + failed < requests) {
+            selector.select(10);
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Client client = (Client) key.attachment();
+                try {
+                    if (key.isConnectable()) {
+                        ((SocketChannel) key.channel()).finishConnect();
+                        client.sendAt = System.nanoTime() + sendDelay * 1_000_000;
+                        key.interestOps(0);
+                        waiting.add(client);
+                    } else if (key.isWritable()) {
+                        client.write();
+                    } else if (key.isReadable()) {
+                        scratch.clear();
+                        if (((SocketChannel) key.channel()).read(scratch) == -1) {
+                            latencies[completed++] = System.nanoTime() - client.startedAt;
+                            client.close();
+                            connect();
+                        }
+                    }
+                } catch (IOException e) {
+                    failed++;
+                    client.close();
+                    connect();
+                }
+            }
+
+            final long now = System.nanoTime();
+            Iterator<Client> it = waiting.iterator();
+            while (it.hasNext()) {
+                Client client = it.next();
+                if (client.sendAt <= now) {
+                    it.remove();
+                    client.key.interestOps(SelectionKey.OP_WRITE);
+                }
+            }
+        }
+
+        final double seconds = (System.nanoTime() - begin) / 1e9;
+        Arrays.sort(latencies, 0, completed);
+        System.out.printf("connections=%d requests=%d completed=%d failed=%d%n", connections, requests, completed,
+                failed);
+        System.out.printf("throughput=%.1f req/s%n", completed / seconds);
+        if (completed > 0) {
+            System.out.printf("latency p50=%.2f ms p99=%.2f ms max=%.2f ms%n", percentile(0.5), percentile(0.99),
+                    latencies[completed - 1] / 1e6);
+        }
+        selector.close();
+    }
+
+    /**
+     * Opens a new connection, unless all requests have already been started.
+     */
+    private void connect() {
+        if (started == requests) {
+            return;
+        }
+        started++;
+
+        Client client = new Client();
+        try {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            client.key = channel.register(selector, SelectionKey.OP_CONNECT, client);
+            if (channel.connect(address)) {
+                client.key.interestOps(SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            failed++;
+            client.close();
+        }
+    }
+
+    /**
+     * @param p wanted percentile, between 0 and 1
+     * @return latency at the given percentile in milliseconds
+     */
+    private double percentile(double p) {
+        return latencies[(int) Math.min(completed - 1, Math.floor(p * completed))] / 1e6;
+    }
+
+    /**
+     * State of a single simulated client.
+     */
+    private class Client {
+        private final long startedAt = System.nanoTime();
+        private final ByteBuffer out = ByteBuffer.wrap(request);
+        private SelectionKey key;
+        private long sendAt;
+
+        /**
+         * Writes the request. Once it's written, client waits for the response.
+         *
+         * @throws IOException if there was a problem with writing
+         */
+        private void write() throws IOException {
+            ((SocketChannel) key.channel()).write(out);
+            if (!out.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Closes client's connection.
+         */
+        private void close() {
+            if (key == null) {
+                return;
+            }
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package hr.fer.zemris.webserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Benchmark of request header parsing. The same browser-like request is parsed by {@link RequestParser} and by the way
+ * requests used to be read: lines through a {@link BufferedReader}, then split into strings. Both ways look up the
+ * headers the server reads for every request. Readers are created once per {@value #REQUESTS_PER_CONNECTION}
+ * requests, as they were created once per kept-alive connection.
+ * <p>
+ * Benchmark is in this package because the parser isn't public, but in the <code>bench</code> source root, so it isn't
+ * shipped with the server. It needs a JVM that supports
+ * {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long[])}, and it's the only thread that allocates
+ * while it runs, so the bytes allocated by all threads are the ones it allocated.
+ * <p>
+ * Usage: <code>RequestParserBenchmark [iterations]</code>, with the server classes on the class path, for example:
+ *
+ * <pre>
+ * javac -cp bin -d bench-bin bench/hr/fer/zemris/webserver/*.java
+ * java -cp bin:bench-bin hr.fer.zemris.webserver.RequestParserBenchmark 1000000
+ * </pre>
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public class RequestParserBenchmark {
+
+    private static final byte[] REQUEST = ("GET /scripts/osnovni.smscr?name=Filip&age=24 HTTP/1.1\r\n"
+            + "Host: 127.0.0.1:5721\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:120.0) Gecko/20100101 Firefox/120.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Cookie: sid=IYZNGCLYCFFBJXHGPYGQ\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "If-None-Match: \"1a147c910a6-1644\"\r\n"
+            + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final int REQUESTS_PER_CONNECTION = 100;
+
+    public static void main(String[] args) throws IOException {
+        final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        final RequestParser parser = new RequestParser(64 * 1024, 100);
+        final ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+
+        final byte[] connection = new byte[REQUEST.length * REQUESTS_PER_CONNECTION];
+        for (int i = 0; i < REQUESTS_PER_CONNECTION; i++) {
+            System.arraycopy(REQUEST, 0, connection, i * REQUEST.length, REQUEST.length);
+        }
+
+        long blackhole = 0;
+        BufferedReader reader = null;
+        for (int variant = 0; variant < 2; variant++) {
+            // warm up, so the measured requests run compiled code
+            for (int i = 0; i < iterations / 10; i++) {
+                if (i % REQUESTS_PER_CONNECTION == 0) {
+                    reader = open(connection);
+                }
+                blackhole += variant == 0 ? parseLines(reader) : parseBytes(parser, buffer);
+            }
+
+            final long allocated = allocatedBytes(threads);
+            final long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                if (i % REQUESTS_PER_CONNECTION == 0) {
+                    reader = open(connection);
+                }
+                blackhole += variant == 0 ? parseLines(reader) : parseBytes(parser, buffer);
+            }
+            final long time = System.nanoTime() - start;
+            final long bytes = allocatedBytes(threads) - allocated;
+
+            System.out.printf("%-24s %8.1f B/request %8.1f ns/request%n",
+                    variant == 0 ? "lines and strings" : "RequestParser", bytes / (double) iterations,
+                    time / (double) iterations);
+        }
+        System.out.println("(" + blackhole + ")");
+    }
+
+    /**
+     * Returns the number of bytes allocated by all live threads. Current thread's id alone would do, but
+     * {@link Thread#getId()} is deprecated and it's replacement needs Java 19.
+     *
+     * @param threads thread management bean
+     * @return number of allocated bytes
+     */
+    private static long allocatedBytes(com.sun.management.ThreadMXBean threads) {
+        long total = 0;
+        for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            // threads that ended in the meantime are reported as -1
+            total += Math.max(allocated, 0);
+        }
+        return total;
+    }
+
+    /**
+     * Parses the request with the parser, as if it was just read into the buffer.
+     *
+     * @param parser parser
+     * @param buffer reused read buffer
+     * @return something that depends on the parsed request
+     */
+    private static int parseBytes(RequestParser parser, ByteBuffer buffer) {
+        buffer.put(REQUEST);
+        parser.parse(buffer);
+        final HttpRequest request = parser.getRequest();
+        return request.getTarget().length() + (request.isKeepAliveRequested() ? 1 : 0)
+                + request.getHeader(HttpRequest.ACCEPT_ENCODING).length()
+                + request.getHeader(HttpRequest.IF_NONE_MATCH).length();
+    }
+
+    /**
+     * @param connection bytes sent over a connection
+     * @return reader of the connection, as it used to be created
+     */
+    private static BufferedReader open(byte[] connection) {
+        return new BufferedReader(new InputStreamReader(new BufferedInputStream(new ByteArrayInputStream(connection)),
+                StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Parses the request the way it used to be parsed: read line by line, then split into strings.
+     *
+     * @param reader reader of the connection from which request is read
+     * @return something that depends on the parsed request
+     * @throws IOException never, request is read from memory
+     */
+    private static int parseLines(BufferedReader reader) throws IOException {
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            lines.add(line);
+        }
+
+        String[] firstLine = lines.get(0).split(" ");
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1, n = lines.size(); i < n; i++) {
+            final String l = lines.get(i);
+            final int colon = l.indexOf(':');
+            headers.put(l.substring(0, colon).trim().toLowerCase(Locale.ROOT), l.substring(colon + 1).trim());
+        }
+
+        return firstLine[1].length() + (headers.get("connection").equalsIgnoreCase("keep-alive") ? 1 : 0)
+                + headers.get("accept-encoding").length() + headers.get("if-none-match").length();
+    }
+}
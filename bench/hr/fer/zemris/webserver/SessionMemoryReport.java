@@ -0,0 +1,108 @@
+package hr.fer.zemris.webserver;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Report of how much memory sessions take in each of the session stores. Every session holds a single small
+ * parameter, as the sessions of <code>brojPoziva.smscr</code> do. Heap is measured after a garbage collection, memory
+ * off the heap is what the direct and mapped buffers of the JVM take, which includes the room the stores keep for
+ * sessions yet to come.
+ * <p>
+ * Report is in this package because the stores aren't public, but in the <code>bench</code> source root, so it isn't
+ * shipped with the server.
+ * <p>
+ * Usage: <code>SessionMemoryReport [sessions]</code>, for example, with enough heap for the sessions kept on it:
+ *
+ * <pre>
+ * java -Xmx2g -cp bin:bench-bin hr.fer.zemris.webserver.SessionMemoryReport 1000000
+ * </pre>
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public class SessionMemoryReport {
+
+    private static final long TIMEOUT = 600;
+
+    public static void main(String[] args) throws IOException {
+        final int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        final Path directory = Files.createTempDirectory("sessions");
+
+        System.out.printf("%-10s %14s %14s %14s%n", "store", "heap B/s", "off-heap B/s", "total B/s");
+        // heap store goes last, so that nothing it leaves behind on the heap is counted against the others
+        for (String name : new String[] { "offheap", "mapped", "memory" }) {
+            report(name, sessions, directory);
+        }
+
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(directory)) {
+            for (Path log : logs) {
+                Files.delete(log);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    /**
+     * Fills a new store of the given kind with sessions and prints how much memory they take. Store is created here so
+     * that nothing refers to it once the report is printed.
+     *
+     * @param name kind of the store, as in the server's config
+     * @param sessions number of sessions
+     * @param directory directory for the log files of the mapped store
+     */
+    private static void report(String name, int sessions, Path directory) {
+        final long heapBefore = heapUsed();
+        final long offHeapBefore = offHeapUsed();
+
+        final SessionStore store;
+        if (name.equals("memory")) {
+            store = new StripedSessionStore(TIMEOUT);
+        } else if (name.equals("offheap")) {
+            store = new OffHeapSessionStore(TIMEOUT, SessionSlab.create());
+        } else {
+            store = new OffHeapSessionStore(TIMEOUT, SessionLog.open(directory, SessionLog.FSYNC_NEVER));
+        }
+        final long now = System.currentTimeMillis() / 1000;
+        for (int i = 0; i < sessions; i++) {
+            store.create(now).getMap().put("brojPoziva", Integer.toString(i % 100));
+        }
+
+        final double heap = (heapUsed() - heapBefore) / (double) sessions;
+        final double offHeap = (offHeapUsed() - offHeapBefore) / (double) sessions;
+        System.out.printf("%-10s %14.1f %14.1f %14.1f%n", name, heap, offHeap, heap + offHeap);
+        if (store.size() != sessions) {
+            throw new RuntimeException("Sessions were lost.");
+        }
+    }
+
+    /**
+     * @return bytes of the heap used after a garbage collection
+     */
+    private static long heapUsed() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        // buffers of stores that were collected are freed by the cleaner thread, a moment after the collection
+        try {
+            Thread.sleep(200);
+        } catch (InterruptedException ignored) {
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @return bytes used by the direct and mapped buffers
+     */
+    private static long offHeapUsed() {
+        long used = 0;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            used += pool.getMemoryUsed();
+        }
+        return used;
+    }
+}
@@ -0,0 +1,204 @@
+package hr.fer.zemris.webserver;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Benchmark of session lookups and creations from many threads at once. {@link StripedSessionStore} is compared with
+ * the way sessions used to be stored: a single map guarded by a single lock, with ids generated from a shared random
+ * generator. Lookups look up random sessions of a store that already holds {@value #SESSIONS} of them, creations start
+ * with an empty store.
+ * <p>
+ * Benchmark is in this package because the stores aren't public, but in the <code>bench</code> source root, so it isn't
+ * shipped with the server.
+ * <p>
+ * Usage: <code>SessionStoreBenchmark [lookups] [creations]</code>, where the numbers are the operations done for each
+ * thread count, split between the threads. For example:
+ *
+ * <pre>
+ * java -cp bin:bench-bin hr.fer.zemris.webserver.SessionStoreBenchmark 4000000 400000
+ * </pre>
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public class SessionStoreBenchmark {
+
+    private static final int SESSIONS = 100_000;
+    private static final int[] THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+    private static final long TIMEOUT = 600;
+
+    public static void main(String[] args) throws InterruptedException {
+        final int lookups = args.length > 0 ? Integer.parseInt(args[0]) : 4_000_000;
+        final int creations = args.length > 1 ? Integer.parseInt(args[1]) : 400_000;
+        final long now = System.currentTimeMillis() / 1000;
+
+        System.out.printf("%-8s %-10s %14s %14s%n", "threads", "store", "lookups/us", "creations/us");
+        for (int threads : THREADS) {
+            for (int variant = 0; variant < 2; variant++) {
+                // first run warms up the store's code, only the second one is measured
+                double lookupRate = 0;
+                double creationRate = 0;
+                for (int run = 0; run < 2; run++) {
+                    final SessionStore store = variant == 0 ? new LockedSessionStore(TIMEOUT)
+                            : new StripedSessionStore(TIMEOUT);
+                    final String[] sids = new String[SESSIONS];
+                    for (int i = 0; i < SESSIONS; i++) {
+                        sids[i] = store.create(now).getSid();
+                    }
+                    lookupRate = measure(store, sids, threads, lookups / threads, now);
+
+                    final SessionStore empty = variant == 0 ? new LockedSessionStore(TIMEOUT)
+                            : new StripedSessionStore(TIMEOUT);
+                    creationRate = measure(empty, null, threads, creations / threads, now);
+                }
+                System.out.printf("%-8d %-10s %14.2f %14.2f%n", threads, variant == 0 ? "locked" : "striped",
+                        lookupRate, creationRate);
+            }
+        }
+    }
+
+    /**
+     * Runs the given number of operations on each of the threads, all of them started at once.
+     *
+     * @param store store to use
+     * @param sids ids of the sessions to look up, <code>null</code> if sessions are created instead
+     * @param threads number of threads
+     * @param operations number of operations done by each thread
+     * @param now current time
+     * @return operations per microsecond, of all threads together
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    private static double measure(final SessionStore store, final String[] sids, int threads, final int operations,
+            final long now) throws InterruptedException {
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicLong blackhole = new AtomicLong();
+
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    final ThreadLocalRandom random = ThreadLocalRandom.current();
+                    long sum = 0;
+                    ready.countDown();
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < operations; i++) {
+                        final SessionMapEntry entry = sids == null ? store.create(now)
+                                : store.get(sids[random.nextInt(sids.length)], now);
+                        sum += entry.getValidUntil();
+                    }
+                    blackhole.addAndGet(sum);
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        ready.await();
+        final long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        final long time = System.nanoTime() - begin;
+        if (blackhole.get() == 42) {
+            System.out.println();
+        }
+        return operations * (double) threads / (time / 1000.0);
+    }
+
+    /**
+     * Sessions stored the way they used to be: a single map guarded by a single lock.
+     *
+     * @author Filip Hrenić
+     * @version 1.0
+     */
+    private static final class LockedSessionStore implements SessionStore {
+
+        private final long timeout;
+        private final Map<String, SessionMapEntry> sessions = new HashMap<>();
+        private final Random random = new Random();
+        private final Lock lock = new ReentrantLock();
+
+        /**
+         * @param timeout for how many seconds is a session valid after it was last used
+         */
+        public LockedSessionStore(long timeout) {
+            this.timeout = timeout;
+        }
+
+        @Override
+        public SessionMapEntry get(String sid, long now) {
+            lock.lock();
+            try {
+                final SessionMapEntry entry = sessions.get(sid);
+                if (entry != null) {
+                    entry.setValidUntil(now + timeout);
+                }
+                return entry;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public SessionMapEntry create(long now) {
+            lock.lock();
+            try {
+                String sid = "";
+                for (int i = 0; i < 20; i++) {
+                    sid += ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+                }
+                final SessionMapEntry entry = new SessionMapEntry(sid, now + timeout);
+                sessions.put(sid, entry);
+                return entry;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int removeExpired(long now) {
+            lock.lock();
+            try {
+                int removed = 0;
+                for (Iterator<SessionMapEntry> it = sessions.values().iterator(); it.hasNext();) {
+                    if (it.next().getValidUntil() < now) {
+                        it.remove();
+                        removed++;
+                    }
+                }
+                return removed;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int size() {
+            lock.lock();
+            try {
+                return sessions.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVXYZ";
+    }
+}
@@ -142,6 +142,10 @@ public class SmartScriptEngine {
                         String mimeType = stack.pop().toString();
                         requestContext.setMimeType(mimeType);
 
+                    } else if (f.equalsIgnoreCase("setETag")) {
+                        String etag = stack.pop().toString();
+                        requestContext.setETag(etag);
+
                     } else if (f.equalsIgnoreCase("paramget")) {
                         String dValue = stack.pop().toString();
                         String name = stack.pop().toString();
@@ -0,0 +1,50 @@
+package hr.fer.zemris.util;
+
+/**
+ * HTML utility methods used throughout this project.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public final class HtmlUtil {
+
+    /**
+     * Can't be created.
+     */
+    private HtmlUtil() {
+    }
+
+    /**
+     * Escapes the characters that have a special meaning in HTML, so that the given text can be written into an
+     * element or an attribute value as it is, even if it comes from the client.
+     *
+     * @param text text to escape
+     * @return escaped text
+     */
+    public static String escape(String text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '"':
+                    sb.append("&quot;");
+                    break;
+                case '\'':
+                    sb.append("&#39;");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,43 @@
+package hr.fer.zemris.webserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Connection from which a request body is read. Bytes read together with the request header are already in the
+ * connection's read buffer, the rest is read on demand by the thread that processes the request.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+interface BodySource {
+
+    /**
+     * Returns the buffer of the connection. It's ready for reading more bytes into it: whatever was read so far
+     * starts at index zero and ends before it's position.
+     *
+     * @return read buffer
+     */
+    ByteBuffer buffer();
+
+    /**
+     * Reads more bytes from the client into the buffer, blocking until at least one is read.
+     *
+     * @return number of bytes read or -1 if client closed the connection
+     * @throws IOException if there was a problem with reading or the client was idle for too long
+     */
+    int fill() throws IOException;
+
+    /**
+     * Sends the <code>100 Continue</code> interim response, for clients that wait for it before sending the body.
+     *
+     * @throws IOException if there was a problem with writing
+     */
+    void sendContinue() throws IOException;
+
+    /**
+     * Releases whatever was needed for reading the body. Called once the request is done.
+     */
+    void close();
+
+}
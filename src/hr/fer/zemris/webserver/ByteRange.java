@@ -0,0 +1,151 @@
+package hr.fer.zemris.webserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A range of bytes of a resource, requested through the <code>Range</code> request header.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class ByteRange {
+
+    /** Maximum number of ranges served in a single response. */
+    private static final int MAX_RANGES = 16;
+
+    private final long start;
+    private final long end;
+
+    /**
+     * Creates a new {@link ByteRange}.
+     *
+     * @param start position of the first byte
+     * @param end position of the last byte, inclusive
+     */
+    private ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Parses the value of the <code>Range</code> header. Ranges that are out of the resource are dropped, overlapping
+     * ones are merged.
+     *
+     * @param header header value
+     * @param length length of the resource
+     * @return requested ranges, empty list if none of them can be satisfied or <code>null</code> if the header should
+     *         be ignored and the whole resource sent
+     */
+    public static List<ByteRange> parse(String header, long length) {
+        final int eq = header.indexOf('=');
+        if (eq < 0 || !header.substring(0, eq).trim().equalsIgnoreCase("bytes")) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String spec : header.substring(eq + 1).split(",")) {
+            final String s = spec.trim();
+            final int dash = s.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+
+            long start;
+            long end;
+            try {
+                if (dash == 0) {
+                    // suffix range, last n bytes
+                    final long suffix = Long.parseLong(s.substring(1));
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                    if (suffix == 0) {
+                        continue;
+                    }
+                } else {
+                    start = Long.parseLong(s.substring(0, dash));
+                    end = dash == s.length() - 1 ? length - 1 : Long.parseLong(s.substring(dash + 1));
+                    if (end < start) {
+                        return null;
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            if (start < 0) {
+                return null;
+            }
+            if (start >= length) {
+                continue;
+            }
+            ranges.add(new ByteRange(start, Math.min(end, length - 1)));
+        }
+
+        if (ranges.size() > 1) {
+            ranges = merge(ranges);
+        }
+        return ranges.size() > MAX_RANGES ? null : ranges;
+    }
+
+    /**
+     * Merges overlapping and adjacent ranges.
+     *
+     * @param ranges ranges to merge
+     * @return merged ranges, ordered by their position
+     */
+    private static List<ByteRange> merge(List<ByteRange> ranges) {
+        Collections.sort(ranges, new Comparator<ByteRange>() {
+
+            @Override
+            public int compare(ByteRange r1, ByteRange r2) {
+                return Long.compare(r1.start, r2.start);
+            }
+        });
+
+        List<ByteRange> merged = new ArrayList<>();
+        ByteRange current = ranges.get(0);
+        for (int i = 1, n = ranges.size(); i < n; i++) {
+            final ByteRange next = ranges.get(i);
+            if (next.start <= current.end + 1) {
+                current = new ByteRange(current.start, Math.max(current.end, next.end));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+
+    /**
+     * @return position of the first byte
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * @return position of the last byte, inclusive
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * @return number of bytes in this range
+     */
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    /**
+     * @param length length of the whole resource
+     * @return value of the <code>Content-Range</code> header for this range
+     */
+    public String toContentRange(long length) {
+        return "bytes " + start + "-" + end + "/" + length;
+    }
+}
@@ -0,0 +1,121 @@
+package hr.fer.zemris.webserver;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Buffered stream that writes directly to a blocking client socket. If the socket has a channel, files are sent with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, which lets the operating system
+ * copy them straight from the page cache to the socket.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class ChannelResponseStream extends ResponseStream {
+
+    private final BufferedOutputStream ostream;
+    private final SocketChannel channel;
+
+    /**
+     * Creates a new {@link ChannelResponseStream}.
+     *
+     * @param socket client's socket
+     * @throws IOException if socket's output stream can't be opened
+     */
+    public ChannelResponseStream(Socket socket) throws IOException {
+        this.ostream = new BufferedOutputStream(socket.getOutputStream());
+        this.channel = socket.getChannel();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ostream.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ostream.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        ostream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        ostream.close();
+    }
+
+    @Override
+    public void write(ByteBuffer[] buffers, int shared) throws IOException {
+        if (channel == null) {
+            super.write(buffers, shared);
+            return;
+        }
+
+        ostream.flush();
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+    }
+
+    @Override
+    public void writeFile(Path file, long position, long count) throws IOException {
+        if (channel == null) {
+            copy(file, position, count, ostream);
+            return;
+        }
+
+        ostream.flush();
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (count > 0) {
+                long written = fileChannel.transferTo(position, count, channel);
+                if (written <= 0) {
+                    if (position >= fileChannel.size()) {
+                        throw new IOException("File is shorter than expected: " + file);
+                    }
+                    // timed read of the connection's thread leaves the socket non-blocking underneath, so transfer
+                    // doesn't wait for a full socket, while an ordinary write does
+                    written = writePiece(fileChannel, position, count);
+                }
+                position += written;
+                count -= written;
+            }
+        }
+    }
+
+    /**
+     * Writes the next piece of a file through the heap, waiting until the client takes it.
+     *
+     * @param fileChannel file
+     * @param position position of the first byte to write
+     * @param count number of bytes that remain to be written
+     * @return number of written bytes
+     * @throws IOException if there was a problem with reading the file or writing it
+     */
+    private long writePiece(FileChannel fileChannel, long position, long count) throws IOException {
+        final ByteBuffer piece = ByteBuffer.allocate((int) Math.min(PIECE_SIZE, count));
+        if (fileChannel.read(piece, position) <= 0) {
+            throw new IOException("File is shorter than expected.");
+        }
+        piece.flip();
+        while (piece.hasRemaining()) {
+            channel.write(piece);
+        }
+        return piece.limit();
+    }
+
+    /** How many bytes are written at once when the socket doesn't accept a transfer. */
+    private static final int PIECE_SIZE = 64 * 1024;
+}
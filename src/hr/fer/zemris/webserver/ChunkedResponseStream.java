@@ -0,0 +1,138 @@
+package hr.fer.zemris.webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+
+/**
+ * Stream that writes a body of unknown length with the chunked transfer coding. Small writes are collected until
+ * there are <code>chunkSize</code> bytes or the stream is flushed, so the body isn't split into many tiny chunks.
+ * Finishing the stream writes the last, empty chunk, but doesn't close the underlying stream.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class ChunkedResponseStream extends ResponseStream {
+
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+    private static final byte[] HEX_DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd',
+            'e', 'f' };
+
+    private final OutputStream ostream;
+    private final byte[] buffer;
+    private int count;
+    private final byte[] sizeLine = new byte[18];
+
+    /**
+     * Creates a new {@link ChunkedResponseStream}.
+     *
+     * @param ostream stream to which chunks are written
+     * @param chunkSize how many bytes are collected before a chunk is written
+     */
+    public ChunkedResponseStream(OutputStream ostream, int chunkSize) {
+        this.ostream = ostream;
+        this.buffer = new byte[chunkSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            writeBuffer();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len >= buffer.length) {
+            // large writes are sent as they are, after whatever was collected before them
+            writeBuffer();
+            writeChunk(b, off, len);
+            return;
+        }
+
+        if (len > buffer.length - count) {
+            writeBuffer();
+        }
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    @Override
+    public void writeFile(Path file, long position, long count) throws IOException {
+        if (count == 0) {
+            return;
+        }
+
+        writeBuffer();
+        writeChunkHeader(count);
+        if (ostream instanceof ResponseStream) {
+            ((ResponseStream) ostream).writeFile(file, position, count);
+        } else {
+            copy(file, position, count, ostream);
+        }
+        ostream.write(CRLF);
+    }
+
+    /**
+     * Writes the collected bytes as a chunk and flushes the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        writeBuffer();
+        ostream.flush();
+    }
+
+    /**
+     * Writes the collected bytes and the last chunk, which ends the body.
+     *
+     * @throws IOException if there was a problem with writing data to output stream
+     */
+    public void finish() throws IOException {
+        writeBuffer();
+        ostream.write(LAST_CHUNK);
+    }
+
+    /**
+     * Writes the collected bytes as a chunk.
+     *
+     * @throws IOException if there was a problem with writing data to output stream
+     */
+    private void writeBuffer() throws IOException {
+        if (count > 0) {
+            writeChunk(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    /**
+     * Writes the given bytes as a single chunk.
+     *
+     * @param b chunk data
+     * @param off index of the first byte
+     * @param len number of bytes, must be positive
+     * @throws IOException if there was a problem with writing data to output stream
+     */
+    private void writeChunk(byte[] b, int off, int len) throws IOException {
+        writeChunkHeader(len);
+        ostream.write(b, off, len);
+        ostream.write(CRLF);
+    }
+
+    /**
+     * Writes the chunk size line, hexadecimal length followed by a line separator.
+     *
+     * @param length chunk length, must be positive
+     * @throws IOException if there was a problem with writing data to output stream
+     */
+    private void writeChunkHeader(long length) throws IOException {
+        int start = sizeLine.length - 2;
+        sizeLine[start] = '\r';
+        sizeLine[start + 1] = '\n';
+        for (long l = length; l > 0; l >>>= 4) {
+            sizeLine[--start] = HEX_DIGITS[(int) (l & 0xF)];
+        }
+        ostream.write(sizeLine, start, sizeLine.length - start);
+    }
+}
@@ -0,0 +1,185 @@
+package hr.fer.zemris.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Decides which responses are compressed and how. Only bodies of the allowed mime types that are at least
+ * <code>threshold</code> bytes long are compressed, with an encoding the client accepts.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class Compression {
+
+    /** Gzip content coding. */
+    public static final String GZIP = "gzip";
+    /** Deflate (zlib) content coding. */
+    public static final String DEFLATE = "deflate";
+
+    private final Set<String> mimeTypes = new HashSet<>();
+    private final int threshold;
+
+    /**
+     * Creates a new {@link Compression}.
+     *
+     * @param mimeTypes comma separated list of mime types that can be compressed
+     * @param threshold minimum body length that is compressed
+     */
+    public Compression(String mimeTypes, int threshold) {
+        for (String mime : mimeTypes.split(",")) {
+            final String m = mime.trim();
+            if (!m.isEmpty()) {
+                this.mimeTypes.add(m.toLowerCase(Locale.ROOT));
+            }
+        }
+        this.threshold = threshold;
+    }
+
+    /**
+     * @param mimeType mime type of the body
+     * @return <code>true</code> if bodies of the given type can be compressed
+     */
+    public boolean isCompressible(String mimeType) {
+        return mimeTypes.contains(mimeType.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @return minimum body length that is compressed
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * Picks the content coding from the client's <code>Accept-Encoding</code> header. Gzip is preferred over deflate,
+     * codings with zero quality are never picked.
+     *
+     * @param acceptEncoding header value, can be <code>null</code>
+     * @return {@link #GZIP}, {@link #DEFLATE} or <code>null</code> if body should be sent as it is
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+
+        boolean gzip = false;
+        boolean deflate = false;
+        for (String token : acceptEncoding.split(",")) {
+            final String[] parts = token.split(";");
+            final String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+
+            boolean accepted = true;
+            for (int i = 1; i < parts.length; i++) {
+                final String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+
+            if (coding.equals(GZIP) || coding.equals("x-gzip") || coding.equals("*")) {
+                gzip |= accepted;
+            } else if (coding.equals(DEFLATE)) {
+                deflate |= accepted;
+            }
+        }
+
+        return gzip ? GZIP : deflate ? DEFLATE : null;
+    }
+
+    /**
+     * Wraps the given stream so everything written to it gets compressed. Flushing the compressed stream sends all of
+     * the data written so far. Compressed stream must be finished, but finishing it doesn't close the given stream.
+     *
+     * @param encoding {@link #GZIP} or {@link #DEFLATE}
+     * @param ostream stream to which compressed data is written
+     * @return compressing stream
+     * @throws IOException if there was a problem with writing data to output stream
+     */
+    public static DeflaterOutputStream wrap(String encoding, OutputStream ostream) throws IOException {
+        if (encoding.equals(GZIP)) {
+            return new GZIPOutputStream(ostream, BUFFER_SIZE, true);
+        }
+        return new DeflaterOutputStream(ostream, new Deflater(), BUFFER_SIZE, true);
+    }
+
+    /**
+     * Compresses the given data.
+     *
+     * @param encoding {@link #GZIP} or {@link #DEFLATE}
+     * @param data array that contains the data to compress
+     * @param offset index of the first byte to compress
+     * @param length number of bytes to compress
+     * @return compressed data
+     */
+    public static byte[] compress(String encoding, byte[] data, int offset, int length) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+        try (DeflaterOutputStream ostream = wrap(encoding, compressed)) {
+            ostream.write(data, offset, length);
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't compress data.");
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Compresses the given data with gzip, as well as possible. Used for data that is compressed once and sent many
+     * times.
+     *
+     * @param data data to compress
+     * @return compressed data
+     */
+    public static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+        try (GZIPOutputStream ostream = bestGzip(compressed)) {
+            ostream.write(data);
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't compress data.");
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Compresses the given file with gzip, as well as possible, without reading the whole file into memory first.
+     *
+     * @param file file to compress
+     * @param size file size
+     * @return compressed file
+     * @throws IOException if there was a problem with reading the file
+     */
+    public static byte[] gzip(Path file, long size) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream((int) Math.min(size / 2 + 64, Integer.MAX_VALUE));
+        try (GZIPOutputStream ostream = bestGzip(compressed)) {
+            Files.copy(file, ostream);
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * @param ostream stream to which compressed data is written
+     * @return gzip stream that compresses as well as possible
+     * @throws IOException if there was a problem with writing data to output stream
+     */
+    private static GZIPOutputStream bestGzip(OutputStream ostream) throws IOException {
+        return new GZIPOutputStream(ostream, BUFFER_SIZE) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        };
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+}
@@ -0,0 +1,19 @@
+package hr.fer.zemris.webserver;
+
+/**
+ * Connection that can be turned into a stream of server-sent events. Once the response that opened the stream is
+ * sent, the connection sends events from the stream until the stream is closed, and then it's closed itself.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+interface EventTarget {
+
+    /**
+     * Opens the event stream of this connection. A connection can have only one.
+     *
+     * @return channel through which events are sent
+     */
+    SseChannel openEventStream();
+
+}
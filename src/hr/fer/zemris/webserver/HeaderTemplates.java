@@ -0,0 +1,197 @@
+package hr.fer.zemris.webserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pre-encoded parts of response headers. Most responses share one of a handful of status lines and content types, so
+ * they are encoded once and copied into the header of every response, instead of being concatenated and encoded over
+ * and over again.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class HeaderTemplates {
+
+    /** Line separator. */
+    static final byte[] CRLF = bytes("\r\n");
+    static final byte[] CONTENT_LENGTH = bytes("Content-Length: ");
+    static final byte[] CONTENT_ENCODING = bytes("Content-Encoding: ");
+    static final byte[] VARY = bytes("Vary: Accept-Encoding\r\n");
+    static final byte[] CHUNKED = bytes("Transfer-Encoding: chunked\r\n");
+    static final byte[] KEEP_ALIVE = bytes("Connection: keep-alive\r\n");
+    static final byte[] CLOSE = bytes("Connection: close\r\n");
+    static final byte[] ETAG = bytes("ETag: ");
+    static final byte[] LAST_MODIFIED = bytes("Last-Modified: ");
+    static final byte[] SET_COOKIE = bytes("Set-Cookie: ");
+    static final byte[] FIELD_SEPARATOR = bytes(": ");
+    /** Interim response to a client that waits before sending the request body. */
+    static final byte[] CONTINUE = bytes("HTTP/1.1 100 Continue\r\n\r\n");
+    /** Response that upgrades the connection to cleartext HTTP/2. */
+    static final byte[] SWITCHING_PROTOCOLS = bytes("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\n"
+            + "Upgrade: h2c\r\n\r\n");
+
+    private static final byte[] HTTP_VERSION = bytes("HTTP/1.1 ");
+    private static final byte[] CONTENT_TYPE = bytes("Content-type: ");
+    private static final byte[] CHARSET = bytes("; charset=");
+    private static final byte[] GMT = bytes(" GMT");
+
+    private static final String[] DAYS = { "Thu, ", "Fri, ", "Sat, ", "Sun, ", "Mon, ", "Tue, ", "Wed, " };
+    private static final String[] MONTHS = { " Jan ", " Feb ", " Mar ", " Apr ", " May ", " Jun ", " Jul ", " Aug ",
+            " Sep ", " Oct ", " Nov ", " Dec " };
+
+    /** Status texts of the status lines that are pre-encoded, indexed by status code. */
+    private static final String[] STATUS_TEXTS = new String[600];
+    /** Pre-encoded status lines, indexed by status code. */
+    private static final byte[][] STATUS_LINES = new byte[600][];
+
+    /** Maximum number of cached content type lines, so arbitrary mime types don't fill the memory. */
+    private static final int MAX_CONTENT_TYPES = 64;
+    /** Content type lines for the default encoding, mapped by mime type. */
+    private static final Map<String, byte[]> CONTENT_TYPES = new ConcurrentHashMap<>();
+
+    static {
+        status(200, "OK");
+        status(206, "Partial Content");
+        status(304, "Not Modified");
+        status(400, "Bad Request");
+        status(403, "Forbidden");
+        status(404, "File Not Found");
+        status(405, "Method Not Allowed");
+        status(413, "Payload Too Large");
+        status(416, "Range Not Satisfiable");
+        status(500, "Internal Server Error");
+        status(503, "Service Unavailable");
+    }
+
+    /**
+     * Disables creating instances of this class.
+     */
+    private HeaderTemplates() {
+    }
+
+    /**
+     * Writes the status line. Common status lines are copied from their pre-encoded form.
+     *
+     * @param buffer buffer to write to
+     * @param statusCode status code
+     * @param statusText status text
+     */
+    static void writeStatusLine(PooledBuffer buffer, int statusCode, String statusText) {
+        if (statusCode >= 0 && statusCode < STATUS_LINES.length && STATUS_LINES[statusCode] != null
+                && STATUS_TEXTS[statusCode].equals(statusText)) {
+            buffer.write(STATUS_LINES[statusCode]);
+            return;
+        }
+
+        buffer.write(HTTP_VERSION);
+        buffer.writeDecimal(statusCode);
+        buffer.write(' ');
+        buffer.writeText(statusText);
+        buffer.write(CRLF);
+    }
+
+    /**
+     * Writes the content type line. Textual types also get the charset. Lines for the default encoding are cached by
+     * their mime type.
+     *
+     * @param buffer buffer to write to
+     * @param mimeType mime type of the body
+     * @param encoding encoding of textual bodies
+     */
+    static void writeContentType(PooledBuffer buffer, String mimeType, String encoding) {
+        final boolean text = mimeType.startsWith("text/");
+        if (text && !encoding.equals(RequestContext.DEFAULT_ENCODING)) {
+            writeContentType(buffer, mimeType, encoding, text);
+            return;
+        }
+
+        byte[] line = CONTENT_TYPES.get(mimeType);
+        if (line == null) {
+            if (CONTENT_TYPES.size() >= MAX_CONTENT_TYPES || mimeType.indexOf(';') >= 0) {
+                // mime types with parameters, such as multipart boundaries, are rarely repeated
+                writeContentType(buffer, mimeType, encoding, text);
+                return;
+            }
+
+            PooledBuffer encoded = new PooledBuffer();
+            writeContentType(encoded, mimeType, encoding, text);
+            line = encoded.toByteArray();
+            encoded.release();
+            CONTENT_TYPES.put(mimeType, line);
+        }
+        buffer.write(line);
+    }
+
+    /**
+     * Encodes the content type line.
+     *
+     * @param buffer buffer to write to
+     * @param mimeType mime type of the body
+     * @param encoding encoding of textual bodies
+     * @param text whether the body is textual
+     */
+    private static void writeContentType(PooledBuffer buffer, String mimeType, String encoding, boolean text) {
+        buffer.write(CONTENT_TYPE);
+        buffer.writeText(mimeType);
+        if (text) {
+            buffer.write(CHARSET);
+            buffer.writeText(encoding);
+        }
+        buffer.write(CRLF);
+    }
+
+    /**
+     * Writes the given time as an HTTP date, for example <code>Sun, 06 Nov 1994 08:49:37 GMT</code>.
+     *
+     * @param buffer buffer to write to
+     * @param millis time in milliseconds since the epoch
+     */
+    static void writeDate(PooledBuffer buffer, long millis) {
+        final long days = Math.floorDiv(millis, 86_400_000L);
+        final int seconds = (int) (Math.floorMod(millis, 86_400_000L) / 1000);
+
+        // civil date from the number of days since the epoch, with years starting in March
+        final long z = days + 719_468;
+        final long era = Math.floorDiv(z, 146_097);
+        final long dayOfEra = z - era * 146_097;
+        final long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+        final long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        final int monthIndex = (int) ((5 * dayOfYear + 2) / 153);
+        final int day = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+        final int month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+        final long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        buffer.writeText(DAYS[(int) Math.floorMod(days, 7L)]);
+        buffer.writeTwoDigits(day);
+        buffer.writeText(MONTHS[month - 1]);
+        buffer.writeDecimal(year);
+        buffer.write(' ');
+        buffer.writeTwoDigits(seconds / 3600);
+        buffer.write(':');
+        buffer.writeTwoDigits(seconds / 60 % 60);
+        buffer.write(':');
+        buffer.writeTwoDigits(seconds % 60);
+        buffer.write(GMT);
+    }
+
+    /**
+     * Pre-encodes the status line for the given status.
+     *
+     * @param statusCode status code
+     * @param statusText status text
+     */
+    private static void status(int statusCode, String statusText) {
+        STATUS_TEXTS[statusCode] = statusText;
+        STATUS_LINES[statusCode] = bytes("HTTP/1.1 " + statusCode + " " + statusText + "\r\n");
+    }
+
+    /**
+     * @param text text to encode
+     * @return byte representation of the text in <code>ISO_8859_1</code> encoding
+     */
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
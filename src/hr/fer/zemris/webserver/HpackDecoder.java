@@ -0,0 +1,173 @@
+package hr.fer.zemris.webserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decoder of HPACK header blocks, as defined by RFC 7541. Each connection has one, since it keeps the dynamic table
+ * that the client's encoder fills. Every block must be decoded, even the ones of refused streams, or the table would
+ * no longer match the client's.
+ * <p>
+ * Names and values are decoded as <code>ISO_8859_1</code>, one character per byte, like the headers of HTTP/1.1
+ * requests.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class HpackDecoder {
+
+    private final HpackTable table;
+    private final int maxTableSize;
+    private final PooledBuffer scratch = new PooledBuffer();
+
+    private byte[] data;
+    private int position;
+    private int end;
+
+    /**
+     * Creates a new {@link HpackDecoder}.
+     *
+     * @param maxTableSize maximum size of the dynamic table the client may use
+     */
+    public HpackDecoder(int maxTableSize) {
+        this.table = new HpackTable(maxTableSize);
+        this.maxTableSize = maxTableSize;
+    }
+
+    /**
+     * Decodes a whole header block. Header list that is larger than allowed is still decoded to the end, so the
+     * dynamic table stays in sync, but it's fields are dropped.
+     *
+     * @param block encoded header block
+     * @param start index of the first byte of the block
+     * @param length length of the block
+     * @param maxListSize maximum size of the decoded header list, counted as the dynamic table counts entries
+     * @return names and values of the fields, in turns, or <code>null</code> if the list is too large
+     * @throws IOException if the block is malformed, which is a connection error
+     */
+    public List<String> decode(byte[] block, int start, int length, int maxListSize) throws IOException {
+        this.data = block;
+        this.position = start;
+        this.end = start + length;
+
+        final List<String> fields = new ArrayList<>();
+        boolean first = true;
+        long listSize = 0;
+        while (position < end) {
+            final int b = data[position] & 0xFF;
+            final String name;
+            final String value;
+
+            if ((b & 0x80) != 0) {
+                // indexed field
+                final int index = readInteger(7);
+                if (!table.contains(index)) {
+                    throw new IOException("Invalid header table index: " + index);
+                }
+                name = table.getName(index);
+                value = table.getValue(index);
+            } else if ((b & 0xE0) == 0x20) {
+                // dynamic table size update, allowed only at the beginning of a block
+                if (!first) {
+                    throw new IOException("Dynamic table size update after the first field.");
+                }
+                final int size = readInteger(5);
+                if (size > maxTableSize) {
+                    throw new IOException("Dynamic table size update above the limit: " + size);
+                }
+                table.setMaxSize(size);
+                continue;
+            } else {
+                // literal field, with incremental indexing or without it
+                final boolean indexed = (b & 0xC0) == 0x40;
+                final int nameIndex = readInteger(indexed ? 6 : 4);
+                if (nameIndex == 0) {
+                    name = readString();
+                } else if (table.contains(nameIndex)) {
+                    name = table.getName(nameIndex);
+                } else {
+                    throw new IOException("Invalid header table index: " + nameIndex);
+                }
+                value = readString();
+                if (indexed) {
+                    table.add(name, value);
+                }
+            }
+
+            first = false;
+            listSize += name.length() + value.length() + 32;
+            if (listSize <= maxListSize) {
+                fields.add(name);
+                fields.add(value);
+            }
+        }
+        data = null;
+        return listSize <= maxListSize ? fields : null;
+    }
+
+    /**
+     * Returns the decoder's buffer to the pool, once the connection is closed.
+     */
+    public void release() {
+        scratch.release();
+    }
+
+    /**
+     * Reads an integer with the given prefix length.
+     *
+     * @param prefix number of bits of the first byte that belong to the integer
+     * @return integer
+     * @throws IOException if the integer is truncated or too large
+     */
+    private int readInteger(int prefix) throws IOException {
+        final int mask = (1 << prefix) - 1;
+        int value = data[position++] & mask;
+        if (value < mask) {
+            return value;
+        }
+
+        for (int shift = 0; shift <= MAX_INTEGER_SHIFT; shift += 7) {
+            if (position == end) {
+                throw new IOException("Truncated header block.");
+            }
+            final int b = data[position++] & 0xFF;
+            value += (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Integer in the header block is too large.");
+    }
+
+    /**
+     * Reads a string literal, Huffman encoded or not.
+     *
+     * @return decoded string
+     * @throws IOException if the string is truncated or badly encoded
+     */
+    private String readString() throws IOException {
+        if (position == end) {
+            throw new IOException("Truncated header block.");
+        }
+        final boolean huffman = (data[position] & 0x80) != 0;
+        final int length = readInteger(7);
+        if (length > end - position) {
+            throw new IOException("Truncated header block.");
+        }
+
+        final int start = position;
+        position += length;
+        if (!huffman) {
+            return new String(data, start, length, StandardCharsets.ISO_8859_1);
+        }
+
+        scratch.reset();
+        Huffman.decode(data, start, position, scratch);
+        return new String(scratch.array(), 0, scratch.size(), StandardCharsets.ISO_8859_1);
+    }
+
+    /** Largest shift of an integer continuation byte, so the integer fits into 28 bits. */
+    private static final int MAX_INTEGER_SHIFT = 21;
+}
@@ -0,0 +1,135 @@
+package hr.fer.zemris.webserver;
+
+/**
+ * Encoder of HPACK header blocks, as defined by RFC 7541. Each connection has one, with a dynamic table of the fields
+ * sent to the client. Fields that most responses repeat, such as the content type, are added to the table and sent as
+ * a single index from then on. Fields that change from response to response, or shouldn't be kept around at all,
+ * aren't added. Strings are Huffman encoded when that makes them shorter.
+ * <p>
+ * Blocks must be sent in the order they were encoded, since each of them can change the dynamic table.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class HpackEncoder {
+
+    private final HpackTable table = new HpackTable(DEFAULT_TABLE_SIZE);
+    /** Smallest table size since the last block, -1 if the size didn't change. */
+    private int smallestSize = -1;
+
+    /**
+     * Changes the maximum size of the dynamic table, when the client changes the limit. Encoder never uses more than
+     * the default size, even if the client allows it.
+     *
+     * @param limit limit set by the client
+     */
+    public void setMaxTableSize(int limit) {
+        final int size = Math.min(limit, DEFAULT_TABLE_SIZE);
+        if (size == table.getMaxSize()) {
+            return;
+        }
+        table.setMaxSize(size);
+        smallestSize = smallestSize == -1 ? size : Math.min(smallestSize, size);
+    }
+
+    /**
+     * Starts a header block. If the table size changed since the last block, change is signalled at it's beginning.
+     *
+     * @param out buffer to which the block is written
+     */
+    public void beginBlock(PooledBuffer out) {
+        if (smallestSize == -1) {
+            return;
+        }
+        if (smallestSize != table.getMaxSize()) {
+            writeInteger(out, 0x20, 5, smallestSize);
+        }
+        writeInteger(out, 0x20, 5, table.getMaxSize());
+        smallestSize = -1;
+    }
+
+    /**
+     * Encodes a single field.
+     *
+     * @param out buffer to which the field is written
+     * @param name lower case field name
+     * @param value field value
+     */
+    public void encode(PooledBuffer out, String name, String value) {
+        final int index = table.find(name, value);
+        if (index > 0) {
+            writeInteger(out, 0x80, 7, index);
+            return;
+        }
+
+        final boolean sensitive = name.equals("set-cookie");
+        final boolean indexed = !sensitive && !isVolatile(name);
+        if (indexed) {
+            writeInteger(out, 0x40, 6, -index);
+        } else {
+            // sensitive fields are never indexed, by this encoder or by any proxy on the way
+            writeInteger(out, sensitive ? 0x10 : 0x00, 4, -index);
+        }
+        if (index == 0) {
+            writeString(out, name);
+        }
+        writeString(out, value);
+
+        if (indexed) {
+            table.add(name, value);
+        }
+    }
+
+    /**
+     * @param name lower case field name
+     * @return <code>true</code> if the field's value is different in almost every response
+     */
+    private static boolean isVolatile(String name) {
+        return name.equals("content-length") || name.equals("etag") || name.equals("last-modified")
+                || name.equals("date") || name.equals("content-range");
+    }
+
+    /**
+     * Writes an integer with the given prefix length.
+     *
+     * @param out buffer to write to
+     * @param flags bits of the first byte that precede the integer
+     * @param prefix number of bits of the first byte that belong to the integer
+     * @param value integer to write
+     */
+    private static void writeInteger(PooledBuffer out, int flags, int prefix, int value) {
+        final int mask = (1 << prefix) - 1;
+        if (value < mask) {
+            out.write(flags | value);
+            return;
+        }
+
+        out.write(flags | mask);
+        value -= mask;
+        while (value >= 0x80) {
+            out.write(value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Writes a string literal, Huffman encoded if that makes it shorter.
+     *
+     * @param out buffer to write to
+     * @param text text to write, one character per byte
+     */
+    private static void writeString(PooledBuffer out, String text) {
+        final int encoded = Huffman.encodedLength(text);
+        if (encoded < text.length()) {
+            writeInteger(out, 0x80, 7, encoded);
+            Huffman.encode(text, out);
+        } else {
+            writeInteger(out, 0x00, 7, text.length());
+            out.writeText(text);
+        }
+    }
+
+    /** Table size every connection starts with. */
+    static final int DEFAULT_TABLE_SIZE = 4096;
+}
@@ -0,0 +1,206 @@
+package hr.fer.zemris.webserver;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Header table of HPACK: the static table, shared by everyone, followed by a dynamic table of one direction of a
+ * single connection. Index 1 is the first entry of the static table, indices that follow the static table refer to
+ * the dynamic one, newest entry first.
+ * <p>
+ * Dynamic table is a ring of entries that is bounded by the size of it's entries, as defined by RFC 7541: length of the
+ * name and of the value, plus 32 bytes. Adding an entry evicts the oldest ones until it fits.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class HpackTable {
+
+    /** Names and values of the static table, two strings per entry. */
+    private static final String[] STATIC = { ":authority", "", ":method", "GET", ":method", "POST", ":path", "/",
+            ":path", "/index.html", ":scheme", "http", ":scheme", "https", ":status", "200", ":status", "204",
+            ":status", "206", ":status", "304", ":status", "400", ":status", "404", ":status", "500", "accept-charset",
+            "", "accept-encoding", "gzip, deflate", "accept-language", "", "accept-ranges", "", "accept", "",
+            "access-control-allow-origin", "", "age", "", "allow", "", "authorization", "", "cache-control", "",
+            "content-disposition", "", "content-encoding", "", "content-language", "", "content-length", "",
+            "content-location", "", "content-range", "", "content-type", "", "cookie", "", "date", "", "etag", "",
+            "expect", "", "expires", "", "from", "", "host", "", "if-match", "", "if-modified-since", "",
+            "if-none-match", "", "if-range", "", "if-unmodified-since", "", "last-modified", "", "link", "",
+            "location", "", "max-forwards", "", "proxy-authenticate", "", "proxy-authorization", "", "range", "",
+            "referer", "", "refresh", "", "retry-after", "", "server", "", "set-cookie", "",
+            "strict-transport-security", "", "transfer-encoding", "", "user-agent", "", "vary", "", "via", "",
+            "www-authenticate", "" };
+
+    /** Number of entries in the static table. */
+    static final int STATIC_SIZE = STATIC.length / 2;
+
+    /** Index of the first static entry with the given name. */
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    /** Index of the static entry with the given name and value, joined by a zero. */
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+
+    static {
+        for (int i = STATIC_SIZE; i >= 1; i--) {
+            STATIC_NAMES.put(STATIC[i * 2 - 2], i);
+            STATIC_FIELDS.put(STATIC[i * 2 - 2] + '\0' + STATIC[i * 2 - 1], i);
+        }
+    }
+
+    /** Overhead of a single entry, as defined by RFC 7541. */
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private String[] names = new String[16];
+    private String[] values = new String[16];
+    /** Index of the newest entry within the ring. */
+    private int head;
+    private int count;
+    private int size;
+    private int maxSize;
+
+    /**
+     * Creates a new {@link HpackTable}.
+     *
+     * @param maxSize maximum size of the dynamic table
+     */
+    public HpackTable(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param index index of the entry, starting with 1
+     * @return name of the entry
+     */
+    public String getName(int index) {
+        return index <= STATIC_SIZE ? STATIC[index * 2 - 2] : names[ring(index)];
+    }
+
+    /**
+     * @param index index of the entry, starting with 1
+     * @return value of the entry
+     */
+    public String getValue(int index) {
+        return index <= STATIC_SIZE ? STATIC[index * 2 - 1] : values[ring(index)];
+    }
+
+    /**
+     * @param index index of an entry
+     * @return <code>true</code> if there is an entry with the given index
+     */
+    public boolean contains(int index) {
+        return index >= 1 && index <= STATIC_SIZE + count;
+    }
+
+    /**
+     * Finds an entry with the given name and value. Static table is searched first.
+     *
+     * @param name lower case name
+     * @param value value
+     * @return index of the entry, or minus the index of an entry that only has the same name, or zero if there isn't
+     *         either
+     */
+    public int find(String name, String value) {
+        final Integer field = STATIC_FIELDS.get(name + '\0' + value);
+        if (field != null) {
+            return field;
+        }
+
+        int nameIndex = 0;
+        for (int i = 0; i < count; i++) {
+            final int entry = (head - i) & (names.length - 1);
+            if (names[entry].equals(name)) {
+                if (values[entry].equals(value)) {
+                    return STATIC_SIZE + 1 + i;
+                }
+                if (nameIndex == 0) {
+                    nameIndex = STATIC_SIZE + 1 + i;
+                }
+            }
+        }
+
+        final Integer staticName = STATIC_NAMES.get(name);
+        if (staticName != null) {
+            return -staticName;
+        }
+        return -nameIndex;
+    }
+
+    /**
+     * Adds an entry to the dynamic table, evicting the oldest entries to make room for it. Entry that is larger than
+     * the whole table only empties it.
+     *
+     * @param name entry name
+     * @param value entry value
+     */
+    public void add(String name, String value) {
+        final int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+        evict(maxSize - entrySize);
+        if (entrySize > maxSize) {
+            return;
+        }
+
+        if (count == names.length) {
+            grow();
+        }
+        head = (head + 1) & (names.length - 1);
+        names[head] = name;
+        values[head] = value;
+        count++;
+        size += entrySize;
+    }
+
+    /**
+     * Changes the maximum size of the dynamic table, evicting entries that don't fit anymore.
+     *
+     * @param maxSize new maximum size
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        evict(maxSize);
+    }
+
+    /**
+     * @return maximum size of the dynamic table
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Evicts the oldest entries until the table is no larger than the given size.
+     *
+     * @param limit size to shrink to
+     */
+    private void evict(int limit) {
+        while (count > 0 && size > limit) {
+            final int oldest = (head - count + 1) & (names.length - 1);
+            size -= names[oldest].length() + values[oldest].length() + ENTRY_OVERHEAD;
+            names[oldest] = null;
+            values[oldest] = null;
+            count--;
+        }
+    }
+
+    /**
+     * Doubles the capacity of the ring, keeping the entries in order.
+     */
+    private void grow() {
+        final String[] grownNames = new String[names.length * 2];
+        final String[] grownValues = new String[names.length * 2];
+        for (int i = 0; i < count; i++) {
+            final int entry = (head - i) & (names.length - 1);
+            grownNames[count - 1 - i] = names[entry];
+            grownValues[count - 1 - i] = values[entry];
+        }
+        names = grownNames;
+        values = grownValues;
+        head = count - 1;
+    }
+
+    /**
+     * @param index index of a dynamic entry
+     * @return position of the entry within the ring
+     */
+    private int ring(int index) {
+        return (head - (index - STATIC_SIZE - 1)) & (names.length - 1);
+    }
+}
@@ -0,0 +1,1533 @@
+package hr.fer.zemris.webserver;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Cleartext HTTP/2 connection (h2c), as defined by RFC 7540. Connection is started either with prior knowledge, when
+ * the client opens it with the HTTP/2 preface, or by upgrading an HTTP/1.1 request. It doesn't read from the socket
+ * itself: whoever owns the socket reads frames into the connection's read buffer and hands them to
+ * {@link #process(ByteBuffer)}, which works the same whether it's called by the selector or by a blocking thread.
+ * Frames are written through a {@link ResponseQueue.ResponseSink}.
+ * <p>
+ * Every stream is processed on the thread pool as a request of it's own, so streams of a single connection are
+ * processed concurrently. Request is turned into a {@link HttpRequest}, and handlers write their response through a
+ * {@link RequestContext} as they always do: it's HTTP/1.1 header is translated into an HPACK encoded header block,
+ * and the body is sent in DATA frames. Body without a known length isn't chunked, it ends with the stream.
+ * <p>
+ * Flow control is honoured in both directions. Request body of a stream is buffered up to the stream's window and the
+ * window is opened only as the worker reads the body. Response body is queued up to a limit, then the worker waits
+ * until the client's window lets it through. All of the state is guarded by a single lock, and frames are written
+ * while holding it, so they are sent in the order their header blocks were encoded.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class Http2Connection {
+
+    /** Frame types. */
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    /** Frame flags. */
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+    private static final int PADDED = 0x8;
+    private static final int PRIORITY_FLAG = 0x20;
+
+    /** Error codes. */
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int INTERNAL_ERROR = 0x2;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int STREAM_CLOSED = 0x5;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int COMPRESSION_ERROR = 0x9;
+    private static final int ENHANCE_YOUR_CALM = 0xB;
+
+    /** Settings. */
+    private static final int HEADER_TABLE_SIZE = 0x1;
+    private static final int ENABLE_PUSH = 0x2;
+    private static final int MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int INITIAL_WINDOW_SIZE = 0x4;
+    private static final int MAX_FRAME_SIZE_SETTING = 0x5;
+    private static final int MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int FRAME_HEADER_SIZE = 9;
+    /** Largest frame the server accepts, it never asks for larger ones. */
+    private static final int MAX_FRAME_SIZE = 16384;
+    /** Size of a read buffer that can hold any frame the server accepts. */
+    static final int FRAME_BUFFER_SIZE = FRAME_HEADER_SIZE + MAX_FRAME_SIZE;
+
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final long MAX_WINDOW = Integer.MAX_VALUE;
+    /** Receive window of the whole connection, request bodies are bounded by the windows of their streams. */
+    private static final int CONNECTION_WINDOW = 1024 * 1024;
+    /** Number of response bytes a stream can queue before the worker waits for them to be sent. */
+    private static final int MAX_QUEUED = 64 * 1024;
+
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    /** Length of the part of the preface that looks like an HTTP/1.x request header. */
+    private static final int PREFACE_HEADER_LENGTH = 18;
+
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final ResponseQueue.ResponseSink sink;
+    private final Executor executor;
+    private final RequestHandler handler;
+    private final RequestParser parser;
+    private final int maxHeaderSize;
+    private final int maxConcurrentStreams;
+    private final long timeout;
+
+    private final Lock lock = new ReentrantLock();
+    private final HpackDecoder decoder = new HpackDecoder(HpackEncoder.DEFAULT_TABLE_SIZE);
+    private final HpackEncoder encoder = new HpackEncoder();
+    private final PooledBuffer out = new PooledBuffer();
+    private final PooledBuffer block = new PooledBuffer();
+    private final Map<Integer, Stream> streams = new LinkedHashMap<>();
+
+    private int prefaceMatched;
+    private boolean settingsReceived;
+    private int headerStream;
+    private boolean headerEndStream;
+    private int lastStreamId;
+    private int peerMaxFrameSize = MAX_FRAME_SIZE;
+    private int peerInitialWindow = DEFAULT_WINDOW;
+    private long sendWindow = DEFAULT_WINDOW;
+    private int unacknowledged;
+    private boolean goingAway;
+    private boolean closed;
+
+    /**
+     * Creates a new {@link Http2Connection}.
+     *
+     * @param sink sink through which frames are sent
+     * @param executor executor on which streams are processed
+     * @param handler handler that processes requests
+     * @param maxHeaderSize maximum size of a request header, both encoded and decoded
+     * @param maxHeaderCount maximum number of header fields in a request header
+     * @param maxConcurrentStreams maximum number of streams that can be open at once
+     * @param timeout for how many milliseconds does a worker wait for the client to send the body or to take the
+     *            response
+     */
+    public Http2Connection(ResponseQueue.ResponseSink sink, Executor executor, RequestHandler handler,
+            int maxHeaderSize, int maxHeaderCount, int maxConcurrentStreams, long timeout) {
+        this.sink = sink;
+        this.executor = executor;
+        this.handler = handler;
+        this.parser = new RequestParser(maxHeaderSize, maxHeaderCount);
+        this.maxHeaderSize = maxHeaderSize;
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Checks if the given request is actually the beginning of the HTTP/2 connection preface, sent by a client that
+     * knows the server speaks HTTP/2.
+     *
+     * @param request parsed request, can be <code>null</code>
+     * @return <code>true</code> if the request line is the one of the preface
+     */
+    public static boolean isPreface(HttpRequest request) {
+        return request != null && request.getVersion() == RequestParser.HTTP_2_0 && request.getMethod().equals("PRI")
+                && request.getTarget().equals("*");
+    }
+
+    /**
+     * Checks if the given request asks to upgrade the connection to HTTP/2. Requests with a body are served over
+     * HTTP/1.1, as if the upgrade wasn't asked for.
+     *
+     * @param request parsed request, can be <code>null</code>
+     * @return <code>true</code> if the connection should be upgraded
+     */
+    public static boolean isUpgrade(HttpRequest request) {
+        if (request == null || request.getVersion() != RequestParser.HTTP_1_1 || request.hasBody()) {
+            return false;
+        }
+        final String upgrade = request.getHeader("Upgrade");
+        if (upgrade == null || !containsToken(upgrade, "h2c")) {
+            return false;
+        }
+        return decodeSettings(request.getHeader("HTTP2-Settings")) != null;
+    }
+
+    /**
+     * Starts the connection by sending the server's preface. Request that upgraded the connection is answered on
+     * the first stream.
+     *
+     * @param request request line of the preface or the request that upgraded the connection
+     * @return <code>false</code> if the connection should be closed
+     */
+    public boolean start(HttpRequest request) {
+        lock.lock();
+        try {
+            final boolean upgrade = !isPreface(request);
+            if (upgrade) {
+                out.write(HeaderTemplates.SWITCHING_PROTOCOLS);
+                applySettings(decodeSettings(request.getHeader("HTTP2-Settings")));
+            } else {
+                prefaceMatched = PREFACE_HEADER_LENGTH;
+            }
+
+            writeFrameHeader(12, SETTINGS, 0, 0);
+            out.write(0);
+            out.write(MAX_CONCURRENT_STREAMS);
+            writeInt(maxConcurrentStreams);
+            out.write(0);
+            out.write(MAX_HEADER_LIST_SIZE);
+            writeInt(maxHeaderSize);
+            writeWindowUpdate(0, CONNECTION_WINDOW - DEFAULT_WINDOW);
+
+            if (upgrade) {
+                lastStreamId = 1;
+                final Stream stream = new Stream(1, false);
+                stream.remoteClosed = true;
+                streams.put(1, stream);
+                dispatch(stream, request.withVersion(RequestParser.HTTP_2_0));
+            }
+            flush();
+            return !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Processes the frames read so far. Buffer must be able to hold {@link #FRAME_BUFFER_SIZE} bytes, and it's
+     * expected to be ready for reading more bytes into it: frames start at index zero and end before it's position.
+     * Processed frames are removed from the buffer, incomplete frame at it's end is kept.
+     *
+     * @param buffer buffer that holds the bytes read so far
+     * @return <code>false</code> if the connection should be closed
+     */
+    public boolean process(ByteBuffer buffer) {
+        lock.lock();
+        try {
+            final byte[] data = buffer.array();
+            final int available = buffer.position();
+            int pos = 0;
+
+            while (prefaceMatched < PREFACE.length && pos < available) {
+                if (data[pos++] != PREFACE[prefaceMatched++]) {
+                    goAway(PROTOCOL_ERROR);
+                    break;
+                }
+            }
+
+            while (!goingAway && available - pos >= FRAME_HEADER_SIZE) {
+                final int length = (data[pos] & 0xFF) << 16 | (data[pos + 1] & 0xFF) << 8 | data[pos + 2] & 0xFF;
+                if (length > MAX_FRAME_SIZE) {
+                    goAway(FRAME_SIZE_ERROR);
+                    break;
+                }
+                if (available - pos < FRAME_HEADER_SIZE + length) {
+                    break;
+                }
+
+                final int type = data[pos + 3] & 0xFF;
+                final int flags = data[pos + 4] & 0xFF;
+                final int streamId = readInt(data, pos + 5) & 0x7FFFFFFF;
+                processFrame(type, flags, streamId, data, pos + FRAME_HEADER_SIZE, length);
+                pos += FRAME_HEADER_SIZE + length;
+            }
+
+            System.arraycopy(data, pos, data, 0, available - pos);
+            buffer.position(available - pos);
+            flush();
+            return !goingAway && !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if no stream is open, so the connection can be closed if it stays like that
+     */
+    public boolean isIdle() {
+        lock.lock();
+        try {
+            return streams.isEmpty() && headerStream == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the connection, after the socket was closed. Workers that still wait for the body or for the client's
+     * window are woken up and fail.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Stream stream : streams.values()) {
+                stream.drop();
+            }
+            streams.clear();
+            out.reset();
+            decoder.release();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Processes a single frame.
+     *
+     * @param type frame type
+     * @param flags frame flags
+     * @param streamId stream identifier
+     * @param data bytes that hold the frame
+     * @param start index of the first byte of the payload
+     * @param length payload length
+     */
+    private void processFrame(int type, int flags, int streamId, byte[] data, int start, int length) {
+        // header block must be sent whole, with nothing in between it's frames
+        if (headerStream != 0 && (type != CONTINUATION || streamId != headerStream)
+                || headerStream == 0 && type == CONTINUATION) {
+            goAway(PROTOCOL_ERROR);
+            return;
+        }
+        // first frame of the client's preface must be it's settings
+        if (!settingsReceived && type != SETTINGS) {
+            goAway(PROTOCOL_ERROR);
+            return;
+        }
+
+        switch (type) {
+            case DATA:
+                processData(flags, streamId, data, start, length);
+                break;
+            case HEADERS:
+                processHeaders(flags, streamId, data, start, length);
+                break;
+            case CONTINUATION:
+                appendHeaderBlock(data, start, length, flags);
+                break;
+            case PRIORITY:
+                // priorities are ignored, streams are processed as they come
+                if (streamId == 0) {
+                    goAway(PROTOCOL_ERROR);
+                } else if (length != 5) {
+                    goAway(FRAME_SIZE_ERROR);
+                }
+                break;
+            case RST_STREAM:
+                processReset(streamId, length);
+                break;
+            case SETTINGS:
+                processSettings(flags, streamId, data, start, length);
+                break;
+            case PING:
+                if (streamId != 0) {
+                    goAway(PROTOCOL_ERROR);
+                } else if (length != 8) {
+                    goAway(FRAME_SIZE_ERROR);
+                } else if ((flags & ACK) == 0) {
+                    writeFrameHeader(8, PING, ACK, 0);
+                    out.write(data, start, 8);
+                }
+                break;
+            case GOAWAY:
+                // client won't open new streams, the ones that are open are still answered
+                if (streamId != 0) {
+                    goAway(PROTOCOL_ERROR);
+                }
+                break;
+            case WINDOW_UPDATE:
+                processWindowUpdate(streamId, data, start, length);
+                break;
+            case PUSH_PROMISE:
+                goAway(PROTOCOL_ERROR);
+                break;
+            default:
+                // unknown frame types are ignored
+        }
+    }
+
+    /**
+     * Processes a DATA frame: a part of a request body.
+     *
+     * @param flags frame flags
+     * @param streamId stream identifier
+     * @param data bytes that hold the frame
+     * @param start index of the first byte of the payload
+     * @param length payload length
+     */
+    private void processData(int flags, int streamId, byte[] data, int start, int length) {
+        if (streamId == 0) {
+            goAway(PROTOCOL_ERROR);
+            return;
+        }
+        int offset = start;
+        int dataLength = length;
+        if ((flags & PADDED) != 0) {
+            final int padding = length == 0 ? -1 : data[start] & 0xFF;
+            if (padding < 0 || padding >= length) {
+                goAway(PROTOCOL_ERROR);
+                return;
+            }
+            offset++;
+            dataLength -= padding + 1;
+        }
+
+        // whole connection's window is opened at once, bodies are bounded by the windows of their streams
+        unacknowledged += length;
+        if (unacknowledged >= CONNECTION_WINDOW / 2) {
+            writeWindowUpdate(0, unacknowledged);
+            unacknowledged = 0;
+        }
+
+        final Stream stream = streams.get(streamId);
+        if (stream == null) {
+            // frames of a stream that was reset can still be on the way
+            if (streamId > lastStreamId) {
+                goAway(PROTOCOL_ERROR);
+            }
+            return;
+        }
+        if (stream.remoteClosed) {
+            reset(stream, STREAM_CLOSED);
+            return;
+        }
+        if (!stream.receive(data, offset, dataLength, length, (flags & END_STREAM) != 0)) {
+            reset(stream, FLOW_CONTROL_ERROR);
+        }
+    }
+
+    /**
+     * Processes a HEADERS frame, which opens a new stream or carries the trailer of a request body.
+     *
+     * @param flags frame flags
+     * @param streamId stream identifier
+     * @param data bytes that hold the frame
+     * @param start index of the first byte of the payload
+     * @param length payload length
+     */
+    private void processHeaders(int flags, int streamId, byte[] data, int start, int length) {
+        if (streamId == 0 || (streamId & 1) == 0) {
+            goAway(PROTOCOL_ERROR);
+            return;
+        }
+
+        int offset = start;
+        int fragmentLength = length;
+        if ((flags & PADDED) != 0) {
+            final int padding = length == 0 ? 0 : data[start] & 0xFF;
+            offset++;
+            fragmentLength -= padding + 1;
+        }
+        if ((flags & PRIORITY_FLAG) != 0) {
+            offset += 5;
+            fragmentLength -= 5;
+        }
+        if (fragmentLength < 0) {
+            goAway(PROTOCOL_ERROR);
+            return;
+        }
+
+        headerStream = streamId;
+        headerEndStream = (flags & END_STREAM) != 0;
+        block.reset();
+        appendHeaderBlock(data, offset, fragmentLength, flags);
+    }
+
+    /**
+     * Appends a fragment of the header block that is being read. Once the whole block is read, it's decoded and the
+     * stream is opened.
+     *
+     * @param data bytes that hold the fragment
+     * @param start index of the first byte of the fragment
+     * @param length fragment length
+     * @param flags flags of the frame that holds the fragment
+     */
+    private void appendHeaderBlock(byte[] data, int start, int length, int flags) {
+        if (block.size() + length > maxHeaderSize) {
+            // block can't be skipped, the dynamic table would no longer match the client's
+            goAway(ENHANCE_YOUR_CALM);
+            return;
+        }
+        block.write(data, start, length);
+        if ((flags & END_HEADERS) == 0) {
+            return;
+        }
+
+        final int streamId = headerStream;
+        headerStream = 0;
+        final List<String> fields;
+        try {
+            fields = decoder.decode(block.array(), 0, block.size(), maxHeaderSize);
+        } catch (IOException e) {
+            goAway(COMPRESSION_ERROR);
+            return;
+        }
+
+        if (streamId <= lastStreamId) {
+            // trailer of a request body, it's fields are dropped
+            final Stream stream = streams.get(streamId);
+            if (stream == null) {
+                return;
+            }
+            if (!headerEndStream || stream.remoteClosed) {
+                reset(stream, PROTOCOL_ERROR);
+                return;
+            }
+            stream.receive(null, 0, 0, 0, true);
+            return;
+        }
+
+        lastStreamId = streamId;
+        if (streams.size() >= maxConcurrentStreams) {
+            writeReset(streamId, REFUSED_STREAM);
+            return;
+        }
+
+        HttpRequest request = null;
+        if (fields != null) {
+            final PooledBuffer header = toHeader(fields, headerEndStream);
+            if (header == null) {
+                writeReset(streamId, PROTOCOL_ERROR);
+                return;
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(header.array());
+            buffer.position(header.size());
+            request = parser.parse(buffer) ? parser.getRequest() : null;
+            header.release();
+        }
+
+        final Stream stream = new Stream(streamId, request != null && request.isChunked());
+        stream.remoteClosed = headerEndStream;
+        streams.put(streamId, stream);
+        if (request != null && request.hasBody()) {
+            request.setBodySource(stream);
+        }
+        dispatch(stream, request);
+    }
+
+    /**
+     * Turns the decoded header fields of a request into an HTTP/1.x request header, which is then parsed like any
+     * other request. Body of a request that doesn't declare it's length is framed as chunked, since it ends with the
+     * stream.
+     *
+     * @param fields names and values of the fields, in turns
+     * @param endStream whether the request doesn't have a body
+     * @return request header or <code>null</code> if the request is malformed
+     */
+    private static PooledBuffer toHeader(List<String> fields, boolean endStream) {
+        String method = null;
+        String scheme = null;
+        String path = null;
+        String authority = null;
+        boolean hasHost = false;
+        boolean hasLength = false;
+
+        final PooledBuffer regular = new PooledBuffer();
+        try {
+            for (int i = 0, n = fields.size(); i < n; i += 2) {
+                final String name = fields.get(i);
+                final String value = fields.get(i + 1);
+                if (!isValidValue(value)) {
+                    return null;
+                }
+
+                if (name.startsWith(":")) {
+                    // pseudo-header fields must precede the regular ones, and each of them can be sent only once
+                    if (regular.size() > 0) {
+                        return null;
+                    }
+                    if (name.equals(":method") && method == null) {
+                        method = value;
+                    } else if (name.equals(":scheme") && scheme == null) {
+                        scheme = value;
+                    } else if (name.equals(":path") && path == null) {
+                        path = value;
+                    } else if (name.equals(":authority") && authority == null) {
+                        authority = value;
+                    } else {
+                        return null;
+                    }
+                    continue;
+                }
+
+                if (!isValidName(name) || isConnectionSpecific(name, value)) {
+                    return null;
+                }
+                if (name.equals("expect")) {
+                    // there is no 100 Continue in HTTP/2, client sends the body right away
+                    continue;
+                }
+                hasHost |= name.equals("host");
+                hasLength |= name.equals("content-length");
+                regular.writeText(name);
+                regular.write(HeaderTemplates.FIELD_SEPARATOR);
+                regular.writeText(value);
+                regular.write(HeaderTemplates.CRLF);
+            }
+
+            if (method == null || scheme == null || path == null || path.isEmpty()) {
+                return null;
+            }
+
+            final PooledBuffer header = new PooledBuffer();
+            header.writeText(method);
+            header.write(' ');
+            header.writeText(path);
+            header.write(' ');
+            header.writeText(RequestParser.HTTP_2_0);
+            header.write(HeaderTemplates.CRLF);
+            if (!hasHost && authority != null) {
+                header.writeText("Host: ");
+                header.writeText(authority);
+                header.write(HeaderTemplates.CRLF);
+            }
+            header.write(regular.array(), 0, regular.size());
+            if (!endStream && !hasLength) {
+                header.write(HeaderTemplates.CHUNKED);
+            }
+            header.write(HeaderTemplates.CRLF);
+            return header;
+        } finally {
+            regular.release();
+        }
+    }
+
+    /**
+     * Processes a RST_STREAM frame, with which the client cancels a stream.
+     *
+     * @param streamId stream identifier
+     * @param length payload length
+     */
+    private void processReset(int streamId, int length) {
+        if (streamId == 0 || streamId > lastStreamId) {
+            goAway(PROTOCOL_ERROR);
+            return;
+        }
+        if (length != 4) {
+            goAway(FRAME_SIZE_ERROR);
+            return;
+        }
+
+        final Stream stream = streams.remove(streamId);
+        if (stream != null) {
+            stream.drop();
+        }
+    }
+
+    /**
+     * Processes a SETTINGS frame, and acknowledges it.
+     *
+     * @param flags frame flags
+     * @param streamId stream identifier
+     * @param data bytes that hold the frame
+     * @param start index of the first byte of the payload
+     * @param length payload length
+     */
+    private void processSettings(int flags, int streamId, byte[] data, int start, int length) {
+        if (streamId != 0) {
+            goAway(PROTOCOL_ERROR);
+            return;
+        }
+        if ((flags & ACK) != 0) {
+            if (length != 0) {
+                goAway(FRAME_SIZE_ERROR);
+            }
+            return;
+        }
+        if (length % 6 != 0) {
+            goAway(FRAME_SIZE_ERROR);
+            return;
+        }
+
+        settingsReceived = true;
+        final int error = applySettings(Arrays.copyOfRange(data, start, start + length));
+        if (error != NO_ERROR) {
+            goAway(error);
+            return;
+        }
+        writeFrameHeader(0, SETTINGS, ACK, 0);
+        pump();
+    }
+
+    /**
+     * Applies the client's settings.
+     *
+     * @param settings settings payload, six bytes per setting
+     * @return error code, {@link #NO_ERROR} if settings are valid
+     */
+    private int applySettings(byte[] settings) {
+        for (int i = 0; i + 6 <= settings.length; i += 6) {
+            final int id = (settings[i] & 0xFF) << 8 | settings[i + 1] & 0xFF;
+            final long value = readInt(settings, i + 2) & 0xFFFFFFFFL;
+            switch (id) {
+                case HEADER_TABLE_SIZE:
+                    encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                    break;
+                case ENABLE_PUSH:
+                    if (value > 1) {
+                        return PROTOCOL_ERROR;
+                    }
+                    break;
+                case INITIAL_WINDOW_SIZE:
+                    if (value > MAX_WINDOW) {
+                        return FLOW_CONTROL_ERROR;
+                    }
+                    // change applies to the windows of all open streams
+                    final long delta = value - peerInitialWindow;
+                    for (Stream stream : streams.values()) {
+                        stream.sendWindow += delta;
+                        if (stream.sendWindow > MAX_WINDOW) {
+                            return FLOW_CONTROL_ERROR;
+                        }
+                    }
+                    peerInitialWindow = (int) value;
+                    break;
+                case MAX_FRAME_SIZE_SETTING:
+                    if (value < MAX_FRAME_SIZE || value > 0xFFFFFF) {
+                        return PROTOCOL_ERROR;
+                    }
+                    peerMaxFrameSize = (int) value;
+                    break;
+                default:
+                    // the rest of the settings don't change what the server sends, unknown ones are ignored
+            }
+        }
+        return NO_ERROR;
+    }
+
+    /**
+     * Processes a WINDOW_UPDATE frame, which opens the window of the connection or of a single stream.
+     *
+     * @param streamId stream identifier, zero for the connection
+     * @param data bytes that hold the frame
+     * @param start index of the first byte of the payload
+     * @param length payload length
+     */
+    private void processWindowUpdate(int streamId, byte[] data, int start, int length) {
+        if (length != 4) {
+            goAway(FRAME_SIZE_ERROR);
+            return;
+        }
+        final int increment = readInt(data, start) & 0x7FFFFFFF;
+
+        if (streamId == 0) {
+            sendWindow += increment;
+            if (increment == 0) {
+                goAway(PROTOCOL_ERROR);
+            } else if (sendWindow > MAX_WINDOW) {
+                goAway(FLOW_CONTROL_ERROR);
+            } else {
+                pump();
+            }
+            return;
+        }
+
+        final Stream stream = streams.get(streamId);
+        if (stream == null) {
+            if (streamId > lastStreamId) {
+                goAway(PROTOCOL_ERROR);
+            }
+            return;
+        }
+        stream.sendWindow += increment;
+        if (increment == 0) {
+            reset(stream, PROTOCOL_ERROR);
+        } else if (stream.sendWindow > MAX_WINDOW) {
+            reset(stream, FLOW_CONTROL_ERROR);
+        } else {
+            pump();
+        }
+    }
+
+    /**
+     * Hands the stream's request to the thread pool. Stream that the pool refuses is refused as well.
+     *
+     * @param stream stream
+     * @param request request of the stream, <code>null</code> if it's too large
+     */
+    private void dispatch(final Stream stream, final HttpRequest request) {
+        stream.head = request != null && request.getMethod().equals(RequestParser.HEAD);
+        try {
+            executor.execute(new Sheddable() {
+
+                @Override
+                public void run() {
+                    final CompletionStage<Boolean> stage;
+                    try {
+                        stage = handler.handle(request, stream.output, false);
+                    } catch (RuntimeException e) {
+                        stream.finish(e);
+                        throw e;
+                    }
+                    stage.whenComplete(new BiConsumer<Boolean, Throwable>() {
+
+                        @Override
+                        public void accept(Boolean result, Throwable error) {
+                            stream.finish(error);
+                        }
+                    });
+                }
+
+                @Override
+                public void shed(byte[] response) {
+                    stream.refuse();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            reset(stream, REFUSED_STREAM);
+        }
+    }
+
+    /**
+     * Sends as much of the queued responses as the windows allow. Streams take turns, one frame at a time. Header
+     * block of a response is sent together with it's first frame of data, or with the end of the stream.
+     */
+    private void pump() {
+        boolean progress = true;
+        while (progress && !goingAway && !closed) {
+            progress = false;
+            for (Iterator<Stream> it = streams.values().iterator(); it.hasNext();) {
+                final Stream stream = it.next();
+                if (stream.responseFields != null && !stream.headersSent && (stream.queued > 0 || stream.ended)) {
+                    writeHeaders(stream, stream.ended && stream.queued == 0);
+                    progress = true;
+                } else if (stream.headersSent && stream.queued > 0) {
+                    final int size = (int) Math.min(Math.min(stream.queued, peerMaxFrameSize),
+                            Math.min(sendWindow, stream.sendWindow));
+                    if (size > 0) {
+                        writeData(stream, size, stream.ended && size == stream.queued);
+                        progress = true;
+                    }
+                } else if (stream.headersSent && stream.ended && !stream.localClosed) {
+                    writeFrameHeader(0, DATA, END_STREAM, stream.id);
+                    stream.localClosed = true;
+                }
+
+                if (stream.localClosed) {
+                    // client that is still sending the body is told to stop
+                    if (!stream.remoteClosed) {
+                        writeReset(stream.id, NO_ERROR);
+                    }
+                    it.remove();
+                    stream.drop();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the header block of a response, split into a HEADERS frame and as many CONTINUATION frames as needed.
+     *
+     * @param stream stream of the response
+     * @param endStream whether the response doesn't have a body
+     */
+    private void writeHeaders(Stream stream, boolean endStream) {
+        block.reset();
+        encoder.beginBlock(block);
+        final List<String> fields = stream.responseFields;
+        for (int i = 0, n = fields.size(); i < n; i += 2) {
+            encoder.encode(block, fields.get(i), fields.get(i + 1));
+        }
+
+        int offset = 0;
+        int type = HEADERS;
+        do {
+            final int length = Math.min(block.size() - offset, peerMaxFrameSize);
+            final boolean last = offset + length == block.size();
+            final int flags = (last ? END_HEADERS : 0) | (type == HEADERS && endStream ? END_STREAM : 0);
+            writeFrameHeader(length, type, flags, stream.id);
+            out.write(block.array(), offset, length);
+            offset += length;
+            type = CONTINUATION;
+        } while (offset < block.size());
+
+        stream.headersSent = true;
+        stream.localClosed = endStream;
+    }
+
+    /**
+     * Writes a DATA frame with the given number of queued bytes of the stream's response.
+     *
+     * @param stream stream of the response
+     * @param size number of bytes to send
+     * @param endStream whether these are the last bytes of the response
+     */
+    private void writeData(Stream stream, int size, boolean endStream) {
+        writeFrameHeader(size, DATA, endStream ? END_STREAM : 0, stream.id);
+        int remaining = size;
+        while (remaining > 0) {
+            final byte[] chunk = stream.pending.peek();
+            final int count = Math.min(remaining, chunk.length - stream.pendingOffset);
+            out.write(chunk, stream.pendingOffset, count);
+            stream.pendingOffset += count;
+            remaining -= count;
+            if (stream.pendingOffset == chunk.length) {
+                stream.pending.poll();
+                stream.pendingOffset = 0;
+            }
+        }
+
+        stream.queued -= size;
+        stream.sendWindow -= size;
+        sendWindow -= size;
+        stream.localClosed = endStream;
+        stream.writable.signalAll();
+    }
+
+    /**
+     * Resets the given stream and forgets it.
+     *
+     * @param stream stream to reset
+     * @param errorCode reason of the reset
+     */
+    private void reset(Stream stream, int errorCode) {
+        writeReset(stream.id, errorCode);
+        streams.remove(stream.id);
+        stream.drop();
+    }
+
+    /**
+     * Sends the GOAWAY frame, after which the connection is closed.
+     *
+     * @param errorCode reason of closing the connection
+     */
+    private void goAway(int errorCode) {
+        if (goingAway) {
+            return;
+        }
+        goingAway = true;
+        writeFrameHeader(8, GOAWAY, 0, 0);
+        writeInt(lastStreamId);
+        writeInt(errorCode);
+    }
+
+    /**
+     * Sends whatever frames were written since the last time. Must be called while holding the lock.
+     */
+    private void flush() {
+        if (closed || out.size() == 0) {
+            out.reset();
+            return;
+        }
+
+        final ResponseBuffer frames = ResponseBuffer.wrap(out.toByteArray());
+        out.reset();
+        try {
+            sink.send(frames, goingAway);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * @param streamId stream identifier
+     * @param errorCode reason of the reset
+     */
+    private void writeReset(int streamId, int errorCode) {
+        writeFrameHeader(4, RST_STREAM, 0, streamId);
+        writeInt(errorCode);
+    }
+
+    /**
+     * @param streamId stream identifier, zero for the whole connection
+     * @param increment number of bytes by which the window is opened
+     */
+    private void writeWindowUpdate(int streamId, int increment) {
+        writeFrameHeader(4, WINDOW_UPDATE, 0, streamId);
+        writeInt(increment);
+    }
+
+    /**
+     * @param length payload length
+     * @param type frame type
+     * @param flags frame flags
+     * @param streamId stream identifier
+     */
+    private void writeFrameHeader(int length, int type, int flags, int streamId) {
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(type);
+        out.write(flags);
+        writeInt(streamId);
+    }
+
+    /**
+     * @param value integer to write, most significant byte first
+     */
+    private void writeInt(int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    /**
+     * @param data bytes to read from
+     * @param start index of the most significant byte
+     * @return integer
+     */
+    private static int readInt(byte[] data, int start) {
+        return (data[start] & 0xFF) << 24 | (data[start + 1] & 0xFF) << 16 | (data[start + 2] & 0xFF) << 8
+                | data[start + 3] & 0xFF;
+    }
+
+    /**
+     * @param value value of the <code>HTTP2-Settings</code> header, can be <code>null</code>
+     * @return decoded settings or <code>null</code> if they are missing or malformed
+     */
+    private static byte[] decodeSettings(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            final byte[] settings = Base64.getUrlDecoder().decode(value.trim());
+            return settings.length % 6 == 0 ? settings : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param value comma separated list of tokens
+     * @param token lower case token to look for
+     * @return <code>true</code> if the list contains the token, ignoring case
+     */
+    private static boolean containsToken(String value, String token) {
+        for (String part : value.split(",")) {
+            if (part.trim().toLowerCase(Locale.ROOT).equals(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param name field name
+     * @return <code>true</code> if the name is lower case and has only the characters allowed in a token
+     */
+    private static boolean isValidName(String name) {
+        if (name.isEmpty()) {
+            return false;
+        }
+        for (int i = 0, n = name.length(); i < n; i++) {
+            final char c = name.charAt(i);
+            if (c <= ' ' || c >= 0x7F || c >= 'A' && c <= 'Z' || c == ':') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param value field value
+     * @return <code>true</code> if the value can't break the header it's copied into
+     */
+    private static boolean isValidValue(String value) {
+        for (int i = 0, n = value.length(); i < n; i++) {
+            final char c = value.charAt(i);
+            if (c == '\r' || c == '\n' || c == '\0') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param name lower case field name
+     * @param value field value
+     * @return <code>true</code> if the field belongs to a single HTTP/1.x connection, which makes the request
+     *         malformed
+     */
+    private static boolean isConnectionSpecific(String name, String value) {
+        switch (name) {
+            case "connection":
+            case "keep-alive":
+            case "proxy-connection":
+            case "transfer-encoding":
+            case "upgrade":
+                return true;
+            case "te":
+                return !value.equalsIgnoreCase("trailers");
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Part of a request body that waits to be read by the worker.
+     *
+     * @author Filip Hrenić
+     * @version 1.0
+     */
+    private static final class Received {
+
+        private final byte[] data;
+        /** Number of bytes by which the window is opened once the data is read. */
+        private final int credit;
+
+        /**
+         * Creates a new {@link Received}.
+         *
+         * @param data body bytes, with the chunk framing if the body is chunked
+         * @param credit number of flow controlled bytes in the frame that carried them
+         */
+        public Received(byte[] data, int credit) {
+            this.data = data;
+            this.credit = credit;
+        }
+    }
+
+    /**
+     * This class represents a single stream: one request and it's response. Request body is read by the worker through
+     * this stream, from the DATA frames that were received so far. Fields are guarded by the connection's lock, except
+     * the read buffer, which only the worker uses.
+     *
+     * @author Filip Hrenić
+     * @version 1.0
+     */
+    private final class Stream implements BodySource {
+
+        private final int id;
+        private final boolean chunked;
+        private final Condition readable = lock.newCondition();
+        private final Condition writable = lock.newCondition();
+        private final StreamOutput output = new StreamOutput(this);
+
+        private final Queue<Received> received = new ArrayDeque<>();
+        private int receivedOffset;
+        private int receiveWindow = DEFAULT_WINDOW;
+        private int credit;
+        private boolean remoteClosed;
+        private boolean head;
+        private boolean bodyClosed;
+        private ByteBuffer readBuffer;
+
+        private long sendWindow = peerInitialWindow;
+        private final Queue<byte[]> pending = new ArrayDeque<>();
+        private int pendingOffset;
+        private long queued;
+        private List<String> responseFields;
+        private boolean headersSent;
+        private boolean ended;
+        private boolean localClosed;
+        private boolean dropped;
+
+        /**
+         * Creates a new {@link Stream}.
+         *
+         * @param id stream identifier
+         * @param chunked whether the body is passed to the worker as chunked, since it's length isn't known
+         */
+        public Stream(int id, boolean chunked) {
+            this.id = id;
+            this.chunked = chunked;
+        }
+
+        /**
+         * Takes a part of the request body. Called with the lock held.
+         *
+         * @param data bytes that hold the body, can be <code>null</code> if there aren't any
+         * @param start index of the first byte of the body
+         * @param length number of body bytes
+         * @param flowLength number of flow controlled bytes in the frame, padding included
+         * @param end whether the body ends with these bytes
+         * @return <code>false</code> if the client sent more than the window allows
+         */
+        public boolean receive(byte[] data, int start, int length, int flowLength, boolean end) {
+            if (flowLength > receiveWindow) {
+                return false;
+            }
+            receiveWindow -= flowLength;
+
+            if (bodyClosed) {
+                credit += flowLength;
+            } else if (length > 0) {
+                byte[] bytes;
+                if (chunked) {
+                    final PooledBuffer chunk = new PooledBuffer();
+                    chunk.writeText(Integer.toHexString(length));
+                    chunk.write(HeaderTemplates.CRLF);
+                    chunk.write(data, start, length);
+                    chunk.write(HeaderTemplates.CRLF);
+                    bytes = chunk.toByteArray();
+                    chunk.release();
+                } else {
+                    bytes = Arrays.copyOfRange(data, start, start + length);
+                }
+                received.add(new Received(bytes, flowLength));
+            } else {
+                credit += flowLength;
+            }
+
+            if (end) {
+                remoteClosed = true;
+                if (chunked && !bodyClosed) {
+                    received.add(new Received(LAST_CHUNK, 0));
+                }
+            }
+            readable.signalAll();
+            return true;
+        }
+
+        @Override
+        public ByteBuffer buffer() {
+            if (readBuffer == null) {
+                readBuffer = ByteBuffer.allocate(MAX_FRAME_SIZE + CHUNK_FRAMING);
+            }
+            return readBuffer;
+        }
+
+        /**
+         * Copies the received body bytes into the read buffer, waiting for them if there aren't any. Window of the
+         * stream is opened as the bytes are taken.
+         */
+        @Override
+        public int fill() throws IOException {
+            final ByteBuffer buffer = buffer();
+            lock.lock();
+            try {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+                while (received.isEmpty() && !remoteClosed && !dropped) {
+                    if (nanos <= 0) {
+                        throw new SocketTimeoutException("Client didn't send the request body in time.");
+                    }
+                    nanos = readable.awaitNanos(nanos);
+                }
+                if (dropped) {
+                    throw new IOException("Stream was closed before the whole body was read.");
+                }
+
+                int copied = 0;
+                while (!received.isEmpty() && buffer.hasRemaining()) {
+                    final Received head = received.peek();
+                    final int count = Math.min(head.data.length - receivedOffset, buffer.remaining());
+                    buffer.put(head.data, receivedOffset, count);
+                    receivedOffset += count;
+                    copied += count;
+                    if (receivedOffset == head.data.length) {
+                        received.poll();
+                        receivedOffset = 0;
+                        credit += head.credit;
+                    }
+                }
+
+                if (copied == 0 && remoteClosed) {
+                    return -1;
+                }
+                openWindow();
+                flush();
+                return copied;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the request body.");
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Opens the stream's window by the bytes the worker read, once there are enough of them or once the worker
+         * read everything that was received. Called with the lock held.
+         */
+        private void openWindow() {
+            if (remoteClosed || credit == 0 || dropped) {
+                return;
+            }
+            if (credit >= DEFAULT_WINDOW / 2 || received.isEmpty()) {
+                writeWindowUpdate(id, credit);
+                receiveWindow += credit;
+                credit = 0;
+            }
+        }
+
+        /**
+         * HTTP/2 clients don't wait for <code>100 Continue</code>, and the <code>Expect</code> header isn't passed
+         * on, so this is never needed.
+         */
+        @Override
+        public void sendContinue() {
+        }
+
+        /**
+         * Drops whatever the worker didn't read of the body. Once the response is sent, client is told to stop
+         * sending the rest.
+         */
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                bodyClosed = true;
+                received.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Queues the given bytes of the response body. Worker waits while too much of the response is queued.
+         *
+         * @param data bytes to queue
+         * @param start index of the first byte
+         * @param length number of bytes
+         * @throws IOException if the stream was closed or the client didn't open the window in time
+         */
+        private void queue(byte[] data, int start, int length) throws IOException {
+            lock.lock();
+            try {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+                while (queued >= MAX_QUEUED && !dropped) {
+                    if (nanos <= 0) {
+                        throw new SocketTimeoutException("Client didn't take the response in time.");
+                    }
+                    nanos = writable.awaitNanos(nanos);
+                }
+                if (dropped || ended) {
+                    throw new IOException("Stream is closed.");
+                }
+
+                pending.add(Arrays.copyOfRange(data, start, start + length));
+                queued += length;
+                pump();
+                flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the client to take the response.");
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Sets the fields of the response header, translated from the header the handler wrote.
+         *
+         * @param fields names and values of the fields, in turns, starting with the status
+         */
+        private void setResponseFields(List<String> fields) {
+            lock.lock();
+            try {
+                responseFields = fields;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Ends the response, once the handler is done with it. Response that wasn't written whole, or at all, is
+         * reset instead.
+         *
+         * @param error exception with which the handler failed, <code>null</code> if it didn't
+         */
+        public void finish(Throwable error) {
+            lock.lock();
+            try {
+                if (dropped || ended) {
+                    return;
+                }
+                // response to HEAD declares the length of a body it doesn't have
+                final boolean complete = error == null && responseFields != null
+                        && (output.contentLength < 0 || head || output.contentLength == output.bodyLength);
+                if (complete) {
+                    ended = true;
+                    pump();
+                } else {
+                    reset(this, INTERNAL_ERROR);
+                }
+                flush();
+            } finally {
+                lock.unlock();
+                output.release();
+            }
+        }
+
+        /**
+         * Refuses the stream, because the server is overloaded.
+         */
+        public void refuse() {
+            lock.lock();
+            try {
+                if (!dropped && streams.get(id) == this) {
+                    reset(this, REFUSED_STREAM);
+                    flush();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Forgets the stream's queues and wakes up the worker if it waits for something. Called with the lock held,
+         * once the stream is removed from the connection.
+         */
+        private void drop() {
+            dropped = true;
+            received.clear();
+            pending.clear();
+            queued = 0;
+            readable.signalAll();
+            writable.signalAll();
+        }
+    }
+
+    /**
+     * Stream to which the handler writes the response of a single stream, exactly as it would write it to an HTTP/1.x
+     * connection. Header is parsed once it's whole and translated into header fields, whatever follows it is the body.
+     *
+     * @author Filip Hrenić
+     * @version 1.0
+     */
+    private final class StreamOutput extends ResponseStream {
+
+        private final Stream stream;
+        private PooledBuffer header = new PooledBuffer();
+        private boolean headerDone;
+        private long contentLength = -1;
+        private long bodyLength;
+
+        /**
+         * Creates a new {@link StreamOutput}.
+         *
+         * @param stream stream whose response is written
+         */
+        public StreamOutput(Stream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!headerDone) {
+                final int used = readHeader(b, off, len);
+                off += used;
+                len -= used;
+            }
+            if (headerDone && len > 0) {
+                bodyLength += len;
+                stream.queue(b, off, len);
+            }
+        }
+
+        /**
+         * Files are copied through the heap, since they are sent in frames.
+         */
+        @Override
+        public void writeFile(Path file, long position, long count) throws IOException {
+            ResponseStream.copy(file, position, count, this);
+        }
+
+        /**
+         * Appends the given bytes to the header, up to the empty line that ends it.
+         *
+         * @param b bytes written by the handler
+         * @param off index of the first byte
+         * @param len number of bytes
+         * @return number of bytes that belong to the header
+         * @throws IOException if the header is malformed
+         */
+        private int readHeader(byte[] b, int off, int len) throws IOException {
+            final int before = header.size();
+            header.write(b, off, len);
+
+            final byte[] data = header.array();
+            final int size = header.size();
+            for (int i = Math.max(3, before); i < size; i++) {
+                if (data[i] == '\n' && data[i - 1] == '\r' && data[i - 2] == '\n' && data[i - 3] == '\r') {
+                    stream.setResponseFields(parseHeader(data, i - 1));
+                    headerDone = true;
+                    return i + 1 - before;
+                }
+            }
+            return len;
+        }
+
+        /**
+         * Translates an HTTP/1.x response header into HTTP/2 header fields. Names are turned to lower case, and the
+         * fields that belong to a single HTTP/1.x connection are left out.
+         *
+         * @param data header bytes
+         * @param end index of the last line break
+         * @return names and values of the fields, in turns, starting with the status
+         * @throws IOException if the status line is malformed
+         */
+        private List<String> parseHeader(byte[] data, int end) throws IOException {
+            final String text = new String(data, 0, end, StandardCharsets.ISO_8859_1);
+            final String[] lines = text.split("\r\n");
+            final String[] statusLine = lines[0].split(" ", 3);
+            if (statusLine.length < 2) {
+                throw new IOException("Malformed status line: " + lines[0]);
+            }
+
+            final List<String> fields = new ArrayList<>();
+            fields.add(":status");
+            fields.add(statusLine[1]);
+            for (int i = 1; i < lines.length; i++) {
+                final int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                final String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                final String value = lines[i].substring(colon + 1).trim();
+                if (isConnectionSpecific(name, value)) {
+                    continue;
+                }
+                if (name.equals("content-length")) {
+                    contentLength = Long.parseLong(value);
+                }
+                fields.add(name);
+                fields.add(value);
+            }
+            return fields;
+        }
+
+        /**
+         * Returns the header buffer to the pool.
+         */
+        private void release() {
+            if (header != null) {
+                header.release();
+                header = null;
+            }
+        }
+    }
+
+    /** Largest chunk framing around a single frame of body, the chunk size line and the line break after data. */
+    private static final int CHUNK_FRAMING = 16;
+}
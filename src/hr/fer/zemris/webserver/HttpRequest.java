@@ -0,0 +1,345 @@
+package hr.fer.zemris.webserver;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class represents a parsed HTTP request header: request line and all of it's header fields. It is the unit of
+ * work that is handed to the worker pool, regardless of how the request was read from the client.
+ * <p>
+ * Request keeps the raw header bytes and only the positions of the fields within them. Header values are decoded when
+ * they are first asked for, so fields that are never read cost nothing. Well-known headers are recognized while the
+ * request is parsed, so they are found without comparing names.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class HttpRequest {
+
+    /** Ids of the well-known headers. */
+    static final int HOST = 0;
+    static final int CONNECTION = 1;
+    static final int COOKIE = 2;
+    static final int ACCEPT_ENCODING = 3;
+    static final int IF_NONE_MATCH = 4;
+    static final int IF_MODIFIED_SINCE = 5;
+    static final int RANGE = 6;
+    static final int IF_RANGE = 7;
+    static final int CONTENT_LENGTH = 8;
+    static final int CONTENT_TYPE = 9;
+    static final int TRANSFER_ENCODING = 10;
+    static final int EXPECT = 11;
+    /** Id of the headers that aren't well-known. */
+    static final int OTHER = -1;
+
+    /** Names of the well-known headers, indexed by their ids. */
+    static final String[] KNOWN_HEADERS = { "Host", "Connection", "Cookie", "Accept-Encoding", "If-None-Match",
+            "If-Modified-Since", "Range", "If-Range", "Content-Length", "Content-Type", "Transfer-Encoding", "Expect" };
+
+    private static final String CLOSE = "close";
+    private static final String KEEP_ALIVE = "keep-alive";
+    private static final String CHUNKED = "chunked";
+
+    /** Content length of a request whose <code>Content-Length</code> header isn't a valid number. */
+    static final long INVALID_LENGTH = -2;
+
+    /** Number of ints that describe a single field: id, name start, name end, value start and value end. */
+    static final int FIELD_SIZE = 5;
+
+    private final String method;
+    private final String version;
+    private final byte[] header;
+    private final int targetStart;
+    private final int targetEnd;
+    private final int[] fields;
+    private final int fieldCount;
+
+    private String target;
+    private String[] values;
+    private BodySource bodySource;
+    private EventTarget eventTarget;
+
+    /**
+     * Creates a new {@link HttpRequest}.
+     *
+     * @param method request method
+     * @param version protocol version
+     * @param header raw header bytes, request keeps them
+     * @param targetStart index of the first byte of the request target
+     * @param targetEnd index after the last byte of the request target
+     * @param fields positions of the header fields, {@link #FIELD_SIZE} ints per field
+     * @param fieldCount number of header fields
+     */
+    HttpRequest(String method, String version, byte[] header, int targetStart, int targetEnd, int[] fields,
+            int fieldCount) {
+        this.method = method;
+        this.version = version;
+        this.header = header;
+        this.targetStart = targetStart;
+        this.targetEnd = targetEnd;
+        this.fields = fields;
+        this.fieldCount = fieldCount;
+    }
+
+    /**
+     * @return request method
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return requested path, including the query string
+     */
+    public String getTarget() {
+        if (target == null) {
+            target = new String(header, targetStart, targetEnd - targetStart, StandardCharsets.ISO_8859_1);
+        }
+        return target;
+    }
+
+    /**
+     * @return protocol version
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Checks if the client wants the connection to be kept open. HTTP/1.1 connections are persistent unless the client
+     * sends <code>Connection: close</code>, HTTP/1.0 ones only if it sends <code>Connection: keep-alive</code>.
+     *
+     * @return <code>true</code> if the client wants a persistent connection
+     */
+    public boolean isKeepAliveRequested() {
+        for (int i = 0; i < fieldCount; i++) {
+            if (fields[i * FIELD_SIZE] != CONNECTION) {
+                continue;
+            }
+
+            // tokens are compared in place, without decoding the value
+            int start = fields[i * FIELD_SIZE + 3];
+            final int end = fields[i * FIELD_SIZE + 4];
+            while (start < end) {
+                int tokenEnd = start;
+                while (tokenEnd < end && header[tokenEnd] != ',') {
+                    tokenEnd++;
+                }
+                if (tokenEquals(start, tokenEnd, CLOSE)) {
+                    return false;
+                }
+                if (tokenEquals(start, tokenEnd, KEEP_ALIVE)) {
+                    return true;
+                }
+                start = tokenEnd + 1;
+            }
+        }
+        return version == RequestParser.HTTP_1_1;
+    }
+
+    /**
+     * Checks if this request can be processed in parallel with the requests pipelined around it.
+     *
+     * @return <code>true</code> if request method doesn't change anything on the server
+     */
+    public boolean isIdempotent() {
+        return method == RequestParser.GET || method == RequestParser.HEAD;
+    }
+
+    /**
+     * @return <code>true</code> if the request is followed by a body
+     */
+    public boolean hasBody() {
+        final long length = getContentLength();
+        return getHeader(TRANSFER_ENCODING) != null || length != -1 && length != 0;
+    }
+
+    /**
+     * @return <code>true</code> if the body is sent in chunks, that is if chunked is the last transfer coding
+     */
+    public boolean isChunked() {
+        for (int i = fieldCount - 1; i >= 0; i--) {
+            if (fields[i * FIELD_SIZE] != TRANSFER_ENCODING) {
+                continue;
+            }
+
+            final int start = fields[i * FIELD_SIZE + 3];
+            final int end = fields[i * FIELD_SIZE + 4];
+            int tokenStart = end;
+            while (tokenStart > start && header[tokenStart - 1] != ',') {
+                tokenStart--;
+            }
+            return tokenEquals(tokenStart, end, CHUNKED);
+        }
+        return false;
+    }
+
+    /**
+     * @return value of the <code>Content-Length</code> header, -1 if there isn't one or {@link #INVALID_LENGTH} if
+     *         it isn't a valid number
+     */
+    public long getContentLength() {
+        final String value = getHeader(CONTENT_LENGTH);
+        if (value == null) {
+            return -1;
+        }
+        if (value.isEmpty() || value.length() > 18) {
+            return INVALID_LENGTH;
+        }
+
+        long length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return INVALID_LENGTH;
+            }
+            length = length * 10 + c - '0';
+        }
+        return length;
+    }
+
+    /**
+     * @return connection from which the body is read, <code>null</code> if it wasn't set
+     */
+    BodySource getBodySource() {
+        return bodySource;
+    }
+
+    /**
+     * Sets the connection from which the body is read. It's set by whoever read the header, before the request is
+     * processed.
+     *
+     * @param bodySource connection from which the body is read
+     */
+    void setBodySource(BodySource bodySource) {
+        this.bodySource = bodySource;
+    }
+
+    /**
+     * Creates a copy of this request with a different protocol version, for a request that upgraded it's connection
+     * and is answered over the new protocol. Body source and event target aren't copied.
+     *
+     * @param version protocol version of the copy
+     * @return copy of this request
+     */
+    HttpRequest withVersion(String version) {
+        return new HttpRequest(method, version, header, targetStart, targetEnd, fields, fieldCount);
+    }
+
+    /**
+     * @return connection that can be turned into an event stream, <code>null</code> if it wasn't set
+     */
+    EventTarget getEventTarget() {
+        return eventTarget;
+    }
+
+    /**
+     * Sets the connection that can be turned into an event stream. It's set by whoever read the header, before the
+     * request is processed.
+     *
+     * @param eventTarget connection from which the request was read
+     */
+    void setEventTarget(EventTarget eventTarget) {
+        this.eventTarget = eventTarget;
+    }
+
+    /**
+     * Returns the value of the given header. Repeated headers are joined together.
+     *
+     * @param name header name, case insensitive
+     * @return header value or <code>null</code> if the request doesn't contain such header
+     */
+    public String getHeader(String name) {
+        for (int id = 0; id < KNOWN_HEADERS.length; id++) {
+            if (KNOWN_HEADERS[id].equalsIgnoreCase(name)) {
+                return getHeader(id);
+            }
+        }
+
+        String value = null;
+        for (int i = 0; i < fieldCount; i++) {
+            if (fields[i * FIELD_SIZE] == OTHER && nameEquals(i, name)) {
+                value = value == null ? value(i) : value + ", " + value(i);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Returns the value of the given well-known header. Repeated headers are joined together.
+     *
+     * @param id id of the header, one of the constants of this class
+     * @return header value or <code>null</code> if the request doesn't contain such header
+     */
+    public String getHeader(int id) {
+        String value = null;
+        for (int i = 0; i < fieldCount; i++) {
+            if (fields[i * FIELD_SIZE] == id) {
+                value = value == null ? value(i) : value + (id == COOKIE ? "; " : ", ") + value(i);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @param index index of the field
+     * @return decoded value of the field
+     */
+    private String value(int index) {
+        if (values == null) {
+            values = new String[fieldCount];
+        }
+        if (values[index] == null) {
+            final int start = fields[index * FIELD_SIZE + 3];
+            final int end = fields[index * FIELD_SIZE + 4];
+            values[index] = new String(header, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+        return values[index];
+    }
+
+    /**
+     * Compares a comma separated token with the given one, ignoring case and surrounding whitespace.
+     *
+     * @param start index of the first byte of the token
+     * @param end index after the last byte of the token
+     * @param token lower case token to compare with
+     * @return <code>true</code> if tokens are equal
+     */
+    private boolean tokenEquals(int start, int end, String token) {
+        while (start < end && (header[start] == ' ' || header[start] == '\t')) {
+            start++;
+        }
+        while (end > start && (header[end - 1] == ' ' || header[end - 1] == '\t')) {
+            end--;
+        }
+        if (end - start != token.length()) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (RequestParser.toLowerCase(header[i]) != token.charAt(i - start)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares the name of a field with the given name, ignoring case.
+     *
+     * @param index index of the field
+     * @param name name to compare with
+     * @return <code>true</code> if names are equal
+     */
+    private boolean nameEquals(int index, String name) {
+        final int start = fields[index * FIELD_SIZE + 1];
+        final int end = fields[index * FIELD_SIZE + 2];
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (RequestParser.toLowerCase(header[i]) != RequestParser.toLowerCase((byte) name.charAt(i - start))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
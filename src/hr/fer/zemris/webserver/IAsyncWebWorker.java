@@ -0,0 +1,28 @@
+package hr.fer.zemris.webserver;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Asynchronous variant of {@link IWebWorker}. Worker starts processing the context and returns at once, usually
+ * before the response is written, so it doesn't hold a server thread while it waits for something else. Response can
+ * be written to the context later, from any thread, and is sent once the returned stage completes.
+ * <p>
+ * Context mustn't be used after the stage completes. If the stage completes exceptionally, client gets a
+ * <code>500 Internal Server Error</code> response, or the connection is closed if a part of the response was already
+ * sent.
+ * 
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public interface IAsyncWebWorker {
+
+    /**
+     * Starts processing the context. Whatever is written to the context before the returned stage completes is the
+     * response to the client.
+     * 
+     * @param context context to process
+     * @return stage that completes once the whole response is written to the context
+     */
+    CompletionStage<?> processRequest(RequestContext context);
+
+}
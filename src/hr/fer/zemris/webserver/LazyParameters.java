@@ -0,0 +1,414 @@
+package hr.fer.zemris.webserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import hr.fer.zemris.webserver.RequestContext.RCPart;
+
+/**
+ * Read-only map of request parameters or cookies that is parsed the first time it's read. Requests that never look at
+ * their parameters, such as the ones for static files, don't pay for parsing them. A name can have more than one
+ * value, map itself holds the first one and the rest are returned by {@link #getAll(String)}.
+ * <p>
+ * Query parameters are percent-decoded as <code>UTF-8</code>, in a single pass, and <code>'+'</code> is decoded as a
+ * space. Parameters without a value, such as <code>flag</code> or <code>a=</code>, have an empty value. Cookie values
+ * aren't decoded, only the quotes around them are removed.
+ * <p>
+ * Parameters of a request with a body also include the ones sent in the body. An
+ * <code>application/x-www-form-urlencoded</code> body is decoded while it's read, without being held in memory as a
+ * whole. Parts of a <code>multipart/form-data</code> body are parsed by {@link MultipartParser}, and the ones that
+ * aren't files become parameters as well. Body is parsed only if nothing else started reading it.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class LazyParameters extends AbstractMap<String, String> {
+
+    private final String source;
+    private final boolean cookies;
+
+    private RequestBody body;
+    private String contentType;
+    private int maxFormSize;
+    private int memoryThreshold;
+
+    private Map<String, String> first;
+    private Map<String, List<String>> all;
+    private List<RCPart> parts = Collections.emptyList();
+
+    /**
+     * Creates a new {@link LazyParameters}.
+     *
+     * @param source text from which parameters are parsed, can be <code>null</code>
+     * @param cookies whether source is a <code>Cookie</code> header rather than a query string
+     */
+    private LazyParameters(String source, boolean cookies) {
+        this.source = source;
+        this.cookies = cookies;
+    }
+
+    /**
+     * @param query query string, without the <code>'?'</code>, can be <code>null</code>
+     * @return parameters of the given query string
+     */
+    public static LazyParameters query(String query) {
+        return new LazyParameters(query, false);
+    }
+
+    /**
+     * @param header value of the <code>Cookie</code> header, can be <code>null</code>
+     * @return cookies from the given header
+     */
+    public static LazyParameters cookies(String header) {
+        return new LazyParameters(header, true);
+    }
+
+    /**
+     * @param name parameter name
+     * @return all values of the parameter, in the order they were sent, empty list if there isn't such parameter
+     */
+    public List<String> getAll(String name) {
+        parse();
+        final List<String> values = all.get(name);
+        return values == null ? Collections.<String> emptyList() : Collections.unmodifiableList(values);
+    }
+
+    /**
+     * @return parts of a <code>multipart/form-data</code> body, empty list if the body isn't multipart
+     */
+    public List<RCPart> getParts() {
+        parse();
+        return parts;
+    }
+
+    /**
+     * Sets the body from which the rest of the parameters are parsed. Must be called before the parameters are read.
+     *
+     * @param body request body
+     * @param contentType value of the <code>Content-Type</code> header, can be <code>null</code>
+     * @param maxFormSize maximum size of an <code>application/x-www-form-urlencoded</code> body
+     * @param memoryThreshold size above which a multipart part is written to a temporary file
+     */
+    void setBody(RequestBody body, String contentType, int maxFormSize, int memoryThreshold) {
+        this.body = body;
+        this.contentType = contentType;
+        this.maxFormSize = maxFormSize;
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    /**
+     * Deletes the temporary files of the parts. Called once the request is done.
+     */
+    void release() {
+        for (RCPart part : parts) {
+            part.delete();
+        }
+    }
+
+    @Override
+    public String get(Object name) {
+        parse();
+        return first.get(name);
+    }
+
+    @Override
+    public boolean containsKey(Object name) {
+        parse();
+        return first.containsKey(name);
+    }
+
+    @Override
+    public Set<String> keySet() {
+        parse();
+        return first.keySet();
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        parse();
+        return first.entrySet();
+    }
+
+    @Override
+    public int size() {
+        parse();
+        return first.size();
+    }
+
+    /**
+     * Parses the source, unless it was already parsed.
+     */
+    private void parse() {
+        if (first != null) {
+            return;
+        }
+
+        Map<String, String> firstValues = new LinkedHashMap<>();
+        Map<String, List<String>> allValues = new LinkedHashMap<>();
+        final int length = source == null ? 0 : source.length();
+        final char separator = cookies ? ';' : '&';
+
+        int start = 0;
+        while (start < length) {
+            int end = source.indexOf(separator, start);
+            if (end == -1) {
+                end = length;
+            }
+
+            int eq = source.indexOf('=', start);
+            if (eq == -1 || eq > end) {
+                eq = end;
+            }
+
+            final String name;
+            final String value;
+            if (cookies) {
+                name = source.substring(start, eq).trim();
+                value = eq == end ? "" : unquote(source.substring(eq + 1, end).trim());
+            } else {
+                name = decode(source, start, eq);
+                value = eq == end ? "" : decode(source, eq + 1, end);
+            }
+
+            add(firstValues, allValues, name, value);
+            start = end + 1;
+        }
+
+        try {
+            if (body != null && !body.isStarted()) {
+                parseBody(firstValues, allValues);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't read the request body: " + e.getMessage());
+        } finally {
+            all = allValues;
+            first = Collections.unmodifiableMap(firstValues);
+        }
+    }
+
+    /**
+     * Parses the parameters sent in the body, if the body is a form.
+     *
+     * @param firstValues first value of each parameter
+     * @param allValues all values of each parameter
+     * @throws IOException if there was a problem with reading the body or it's too large
+     */
+    private void parseBody(Map<String, String> firstValues, Map<String, List<String>> allValues) throws IOException {
+        String mime = contentType == null ? "" : contentType;
+        final int semicolon = mime.indexOf(';');
+        if (semicolon != -1) {
+            mime = mime.substring(0, semicolon);
+        }
+        mime = mime.trim().toLowerCase(Locale.ROOT);
+
+        if (mime.equals(FORM)) {
+            parseForm(firstValues, allValues);
+        } else if (mime.equals(MULTIPART)) {
+            parts = Collections.unmodifiableList(
+                    new MultipartParser(body, MultipartParser.parameter(contentType, "boundary"), memoryThreshold)
+                            .parse());
+            for (RCPart part : parts) {
+                if (part.getFileName() == null && part.isInMemory()) {
+                    add(firstValues, allValues, part.getName(),
+                            new String(part.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses an <code>application/x-www-form-urlencoded</code> body while it's read. Names and values are
+     * percent-decoded byte by byte, so escapes split between two reads are decoded as well.
+     *
+     * @param firstValues first value of each parameter
+     * @param allValues all values of each parameter
+     * @throws IOException if there was a problem with reading the body or it's too large
+     */
+    private void parseForm(Map<String, String> firstValues, Map<String, List<String>> allValues) throws IOException {
+        final byte[] chunk = new byte[FORM_CHUNK_SIZE];
+        final byte[] escape = new byte[2];
+        final PooledBuffer token = new PooledBuffer();
+        String name = null;
+        int escaped = -1;
+        long total = 0;
+
+        try {
+            int read;
+            while ((read = body.read(chunk, 0, chunk.length)) != -1) {
+                total += read;
+                if (total > maxFormSize) {
+                    throw new IOException("Form is larger than " + maxFormSize + " bytes.");
+                }
+
+                for (int i = 0; i < read; i++) {
+                    final byte b = chunk[i];
+                    if (escaped >= 0) {
+                        if (hexValue((char) (b & 0xFF)) >= 0) {
+                            escape[escaped++] = b;
+                            if (escaped == 2) {
+                                token.write(hexValue((char) escape[0]) << 4 | hexValue((char) escape[1]));
+                                escaped = -1;
+                            }
+                            continue;
+                        }
+                        // malformed escapes are left as they are
+                        token.write('%');
+                        token.write(escape, 0, escaped);
+                        escaped = -1;
+                    }
+
+                    if (b == '%') {
+                        escaped = 0;
+                    } else if (b == '+') {
+                        token.write(' ');
+                    } else if (b == '=' && name == null) {
+                        name = new String(token.array(), 0, token.size(), StandardCharsets.UTF_8);
+                        token.reset();
+                    } else if (b == '&') {
+                        addFormField(firstValues, allValues, name, token);
+                        name = null;
+                    } else {
+                        token.write(b);
+                    }
+                }
+            }
+
+            if (escaped >= 0) {
+                token.write('%');
+                token.write(escape, 0, escaped);
+            }
+            addFormField(firstValues, allValues, name, token);
+        } finally {
+            token.release();
+        }
+    }
+
+    /**
+     * Adds a field of a form body and resets the token.
+     *
+     * @param firstValues first value of each parameter
+     * @param allValues all values of each parameter
+     * @param name decoded field name or <code>null</code> if the field doesn't have a value, in which case the token
+     *            is the name
+     * @param token decoded value or name
+     */
+    private static void addFormField(Map<String, String> firstValues, Map<String, List<String>> allValues,
+            String name, PooledBuffer token) {
+        final String text = new String(token.array(), 0, token.size(), StandardCharsets.UTF_8);
+        token.reset();
+        if (name == null) {
+            add(firstValues, allValues, text, "");
+        } else {
+            add(firstValues, allValues, name, text);
+        }
+    }
+
+    /**
+     * Adds a parameter value. Parameters without a name are ignored.
+     *
+     * @param firstValues first value of each parameter
+     * @param allValues all values of each parameter
+     * @param name parameter name
+     * @param value parameter value
+     */
+    private static void add(Map<String, String> firstValues, Map<String, List<String>> allValues, String name,
+            String value) {
+        if (name.isEmpty()) {
+            return;
+        }
+        if (!firstValues.containsKey(name)) {
+            firstValues.put(name, value);
+        }
+        List<String> values = allValues.get(name);
+        if (values == null) {
+            values = new ArrayList<>(1);
+            allValues.put(name, values);
+        }
+        values.add(value);
+    }
+
+    /**
+     * Percent-decodes the given part of the text. Plain ASCII text is returned as it is, without being decoded.
+     * Malformed escapes are left as they are.
+     *
+     * @param text text to decode, one character per byte
+     * @param start index of the first character
+     * @param end index after the last character
+     * @return decoded text
+     */
+    static String decode(String text, int start, int end) {
+        int i = start;
+        while (i < end && text.charAt(i) != '%' && text.charAt(i) != '+' && text.charAt(i) < 0x80) {
+            i++;
+        }
+        if (i == end) {
+            return text.substring(start, end);
+        }
+
+        final byte[] bytes = new byte[end - start];
+        int count = 0;
+        for (int j = start; j < i; j++) {
+            bytes[count++] = (byte) text.charAt(j);
+        }
+        while (i < end) {
+            final char c = text.charAt(i);
+            if (c == '+') {
+                bytes[count++] = ' ';
+                i++;
+                continue;
+            }
+            if (c == '%' && i + 2 < end) {
+                final int high = hexValue(text.charAt(i + 1));
+                final int low = hexValue(text.charAt(i + 2));
+                if (high >= 0 && low >= 0) {
+                    bytes[count++] = (byte) (high << 4 | low);
+                    i += 3;
+                    continue;
+                }
+            }
+            bytes[count++] = (byte) c;
+            i++;
+        }
+        return new String(bytes, 0, count, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param c hexadecimal digit
+     * @return value of the digit or -1 if it isn't a hexadecimal digit
+     */
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * @param value cookie value
+     * @return value without the surrounding quotes
+     */
+    private static String unquote(String value) {
+        if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    private static final String FORM = "application/x-www-form-urlencoded";
+    private static final String MULTIPART = "multipart/form-data";
+    private static final int FORM_CHUNK_SIZE = 4096;
+}
@@ -0,0 +1,99 @@
+package hr.fer.zemris.webserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides what happens to a task when the thread pool's queue is full. Depending on the policy, the new task is
+ * rejected with a 503 response, the oldest queued task is dropped to make room for it, or the new task is run by the
+ * thread that submitted it, unless that is a {@link SelectorThread}, whose tasks are rejected instead. Every dropped
+ * task is counted.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class LoadShedder implements RejectedExecutionHandler {
+
+    /** Rejects the new task. */
+    public static final String REJECT = "reject";
+    /** Drops the oldest queued task and queues the new one. */
+    public static final String DROP_OLDEST = "dropOldest";
+    /** Runs the new task on the submitting thread, or rejects it if the submitting thread is a selector thread. */
+    public static final String CALLER_RUNS = "callerRuns";
+
+    private final String policy;
+    private final byte[] response;
+    private final AtomicLong shed = new AtomicLong();
+
+    /**
+     * Creates a new {@link LoadShedder}.
+     *
+     * @param policy one of {@link #REJECT}, {@link #DROP_OLDEST} or {@link #CALLER_RUNS}
+     * @param retryAfter in how many seconds clients should retry dropped requests
+     */
+    public LoadShedder(String policy, int retryAfter) {
+        if (!policy.equals(REJECT) && !policy.equals(DROP_OLDEST) && !policy.equals(CALLER_RUNS)) {
+            throw new RuntimeException("Unknown overload policy: " + policy);
+        }
+        this.policy = policy;
+
+        final String body = "503 Service Unavailable\n";
+        final String header = "HTTP/1.1 503 Service Unavailable\r\n"
+                + "Content-Type: text/plain; charset=UTF-8\r\n"
+                + "Content-Length: " + body.length() + "\r\n"
+                + "Retry-After: " + retryAfter + "\r\n"
+                + "Connection: close\r\n\r\n";
+        this.response = (header + body).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @Override
+    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            shed(task);
+            return;
+        }
+
+        switch (policy) {
+            case CALLER_RUNS:
+                // selector thread serves every connection, running a request on it would stall all of them
+                if (Thread.currentThread() instanceof SelectorThread) {
+                    shed(task);
+                } else {
+                    task.run();
+                }
+                break;
+            case DROP_OLDEST:
+                Runnable oldest = executor.getQueue().poll();
+                if (oldest != null) {
+                    shed(oldest);
+                }
+                if (!executor.getQueue().offer(task)) {
+                    shed(task);
+                }
+                break;
+            default:
+                shed(task);
+        }
+    }
+
+    /**
+     * @return how many tasks were dropped so far
+     */
+    public long getShedCount() {
+        return shed.get();
+    }
+
+    /**
+     * Drops the given task.
+     *
+     * @param task dropped task
+     */
+    private void shed(Runnable task) {
+        shed.incrementAndGet();
+        if (task instanceof Sheddable) {
+            ((Sheddable) task).shed(response);
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package hr.fer.zemris.webserver;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import hr.fer.zemris.webserver.RequestContext.RCPart;
+
+/**
+ * Parser of <code>multipart/form-data</code> bodies. Body is read through a fixed size buffer and searched for the
+ * boundary as it's read, so a part is never held in memory as a whole unless it's small. Part that grows beyond the
+ * memory threshold is written to a temporary file from there on.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class MultipartParser {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+    /** Maximum number of bytes in the header of a single part. */
+    private static final int MAX_PART_HEADER = 8 * 1024;
+    /** Maximum number of parts in a body. */
+    private static final int MAX_PARTS = 256;
+    /** Maximum boundary length, as defined by RFC 2046. */
+    private static final int MAX_BOUNDARY = 70;
+
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final int memoryThreshold;
+
+    private final byte[] buffer;
+    private int start;
+    private int end;
+
+    /**
+     * Creates a new {@link MultipartParser}.
+     *
+     * @param in body stream
+     * @param boundary boundary from the content type of the body
+     * @param memoryThreshold size above which a part is written to a temporary file
+     * @throws IOException if the boundary is missing or invalid
+     */
+    public MultipartParser(InputStream in, String boundary, int memoryThreshold) throws IOException {
+        if (boundary == null || boundary.isEmpty() || boundary.length() > MAX_BOUNDARY) {
+            throw new IOException("Invalid multipart boundary: " + boundary);
+        }
+
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.memoryThreshold = memoryThreshold;
+        this.buffer = new byte[BUFFER_SIZE];
+
+        // body starts with the delimiter itself, the line break before it is added so every delimiter looks the same
+        buffer[end++] = '\r';
+        buffer[end++] = '\n';
+    }
+
+    /**
+     * Parses the whole body. If parsing fails, temporary files of the parts parsed so far are deleted.
+     *
+     * @return parts in the order they were sent
+     * @throws IOException if the body is malformed or there was a problem with reading it
+     */
+    public List<RCPart> parse() throws IOException {
+        final List<RCPart> parts = new ArrayList<>();
+        try {
+            // preamble before the first delimiter is skipped
+            copyToDelimiter(OutputStream.nullOutputStream());
+
+            while (true) {
+                if (!ensure(2)) {
+                    throw new EOFException("Multipart body ended too soon.");
+                }
+                if (buffer[start] == '-' && buffer[start + 1] == '-') {
+                    // whatever follows the last delimiter is ignored
+                    return parts;
+                }
+                readLine();
+
+                if (parts.size() == MAX_PARTS) {
+                    throw new IOException("Multipart body has more than " + MAX_PARTS + " parts.");
+                }
+                parts.add(readPart());
+            }
+        } catch (IOException | RuntimeException e) {
+            for (RCPart part : parts) {
+                part.delete();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a single part: it's header fields and the contents up to the next delimiter.
+     *
+     * @return parsed part
+     * @throws IOException if the part is malformed or there was a problem with reading or writing it
+     */
+    private RCPart readPart() throws IOException {
+        String name = null;
+        String fileName = null;
+        String contentType = null;
+
+        int headerSize = 0;
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            headerSize += line.length();
+            if (headerSize > MAX_PART_HEADER) {
+                throw new IOException("Part header is larger than " + MAX_PART_HEADER + " bytes.");
+            }
+
+            final int colon = line.indexOf(':');
+            if (colon == -1) {
+                continue;
+            }
+            final String field = line.substring(0, colon).trim();
+            final String value = line.substring(colon + 1).trim();
+            if (field.equalsIgnoreCase("Content-Disposition")) {
+                name = parameter(value, "name");
+                fileName = parameter(value, "filename");
+            } else if (field.equalsIgnoreCase("Content-Type")) {
+                contentType = value;
+            }
+        }
+        if (name == null) {
+            throw new IOException("Part doesn't have a name.");
+        }
+
+        final PartOutput output = new PartOutput();
+        try {
+            copyToDelimiter(output);
+            return output.toPart(name, fileName, contentType);
+        } catch (IOException | RuntimeException e) {
+            output.discard();
+            throw e;
+        }
+    }
+
+    /**
+     * Copies the body to the given stream, up to the next delimiter. Delimiter itself is skipped.
+     *
+     * @param out stream to copy to
+     * @throws IOException if body ended before the delimiter or there was a problem with reading or writing
+     */
+    private void copyToDelimiter(OutputStream out) throws IOException {
+        while (true) {
+            final int index = indexOfDelimiter();
+            if (index != -1) {
+                out.write(buffer, start, index - start);
+                start = index + delimiter.length;
+                return;
+            }
+
+            // the end of the buffer could be the beginning of a delimiter, so it's kept
+            final int safe = end - delimiter.length + 1;
+            if (safe > start) {
+                out.write(buffer, start, safe - start);
+                start = safe;
+            }
+            if (!fill()) {
+                throw new EOFException("Multipart body ended too soon.");
+            }
+        }
+    }
+
+    /**
+     * Reads a single line, up to a line feed.
+     *
+     * @return line without the line break
+     * @throws IOException if the line is too long or body ended before it
+     */
+    private String readLine() throws IOException {
+        int scanned = start;
+        while (true) {
+            for (int i = scanned; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    final int lineEnd = i > start && buffer[i - 1] == '\r' ? i - 1 : i;
+                    final String line = new String(buffer, start, lineEnd - start, StandardCharsets.UTF_8);
+                    start = i + 1;
+                    return line;
+                }
+            }
+
+            scanned = end - start;
+            if (scanned == buffer.length) {
+                throw new IOException("Part header line is too long.");
+            }
+            if (!fill()) {
+                throw new EOFException("Multipart body ended too soon.");
+            }
+        }
+    }
+
+    /**
+     * @return index of the first delimiter in the buffer or -1 if there isn't one
+     */
+    private int indexOfDelimiter() {
+        final int last = end - delimiter.length;
+        outer: for (int i = start; i <= last; i++) {
+            if (buffer[i] != '\r') {
+                continue;
+            }
+            for (int j = 1; j < delimiter.length; j++) {
+                if (buffer[i + j] != delimiter[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Makes sure that at least the given number of bytes are in the buffer.
+     *
+     * @param count number of bytes
+     * @return <code>false</code> if body ended before that
+     * @throws IOException if there was a problem with reading
+     */
+    private boolean ensure(int count) throws IOException {
+        while (end - start < count) {
+            if (!fill()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves the unread bytes to the beginning of the buffer and reads more bytes after them.
+     *
+     * @return <code>false</code> if body ended
+     * @throws IOException if there was a problem with reading
+     */
+    private boolean fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+
+        final int read = in.read(buffer, end, buffer.length - end);
+        if (read == -1) {
+            return false;
+        }
+        end += read;
+        return true;
+    }
+
+    /**
+     * Returns a parameter of a header value such as <code>form-data; name="file"; filename="a.txt"</code>.
+     *
+     * @param header header value
+     * @param key parameter name, case insensitive
+     * @return parameter value, without the quotes, or <code>null</code> if there isn't such parameter
+     */
+    static String parameter(String header, String key) {
+        final int length = header.length();
+        int i = header.indexOf(';');
+        while (i != -1) {
+            final int eq = header.indexOf('=', i);
+            if (eq == -1) {
+                return null;
+            }
+            final String name = header.substring(i + 1, eq).trim();
+
+            int valueStart = eq + 1;
+            while (valueStart < length && header.charAt(valueStart) == ' ') {
+                valueStart++;
+            }
+
+            final String value;
+            int next;
+            if (valueStart < length && header.charAt(valueStart) == '"') {
+                int quote = header.indexOf('"', valueStart + 1);
+                if (quote == -1) {
+                    quote = length;
+                }
+                value = header.substring(valueStart + 1, quote);
+                next = quote < length ? header.indexOf(';', quote) : -1;
+            } else {
+                next = header.indexOf(';', valueStart);
+                value = header.substring(valueStart, next == -1 ? length : next).trim();
+            }
+
+            if (name.equalsIgnoreCase(key)) {
+                return value;
+            }
+            i = next;
+        }
+        return null;
+    }
+
+    /**
+     * Stream to which contents of a single part are written. Contents are kept in memory until they grow beyond the
+     * memory threshold, then they are moved to a temporary file.
+     *
+     * @author Filip Hrenić
+     * @version 1.0
+     */
+    private final class PartOutput extends OutputStream {
+
+        private PooledBuffer memory = new PooledBuffer();
+        private Path file;
+        private OutputStream fileStream;
+        private long size;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            size += len;
+            if (fileStream == null && memory.size() + len > memoryThreshold) {
+                file = Files.createTempFile("upload", ".part");
+                fileStream = new BufferedOutputStream(Files.newOutputStream(file));
+                fileStream.write(memory.array(), 0, memory.size());
+                memory.release();
+                memory = null;
+            }
+
+            if (fileStream != null) {
+                fileStream.write(b, off, len);
+            } else {
+                memory.write(b, off, len);
+            }
+        }
+
+        /**
+         * Creates the part from what was written.
+         *
+         * @param name part name
+         * @param fileName name of the uploaded file, can be null
+         * @param contentType content type of the part, can be null
+         * @return part
+         * @throws IOException if the temporary file couldn't be written
+         */
+        public RCPart toPart(String name, String fileName, String contentType) throws IOException {
+            if (fileStream != null) {
+                fileStream.close();
+                return new RCPart(name, fileName, contentType, size, null, file);
+            }
+
+            final byte[] data = memory.toByteArray();
+            memory.release();
+            memory = null;
+            return new RCPart(name, fileName, contentType, size, data, null);
+        }
+
+        /**
+         * Drops what was written, deleting the temporary file if there is one.
+         */
+        public void discard() {
+            if (memory != null) {
+                memory.release();
+                memory = null;
+            }
+            if (fileStream != null) {
+                try {
+                    fileStream.close();
+                    Files.deleteIfExists(file);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package hr.fer.zemris.webserver;
+
+/**
+ * Session store that keeps sessions off the heap, so they don't burden the garbage collector however many of them
+ * there are. Sessions are split into {@link SessionSegment}s by the hash of their ids, the same way
+ * {@link StripedSessionStore} splits them into stripes, and each segment keeps it's sessions as compact
+ * {@link SessionRecord}s, found through an off-heap {@link SessionIndex} by their ids of
+ * {@link SessionMapEntry#SID_LEN} bytes. Segments decide where the records are kept: {@link SessionSlab}s keep them in
+ * memory, {@link SessionLog}s in memory-mapped files that survive restarts.
+ * <p>
+ * No session object stays on the heap, {@link SessionMapEntry#getMap()} of a session is a {@link SessionView} of it's
+ * record.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class OffHeapSessionStore implements SessionStore {
+
+    private final long timeout;
+    private final SessionSegment[] segments;
+    private final int shift;
+
+    /**
+     * Creates a new {@link OffHeapSessionStore}.
+     *
+     * @param timeout for how many seconds is a session valid after it was last used
+     * @param segments segments of the store, their number is a power of two larger than one
+     */
+    public OffHeapSessionStore(long timeout, SessionSegment[] segments) {
+        this.timeout = timeout;
+        this.segments = segments;
+        this.shift = 32 - Integer.numberOfTrailingZeros(segments.length);
+    }
+
+    @Override
+    public SessionMapEntry get(String sid, long now) {
+        final byte[] key = key(sid);
+        if (key == null) {
+            return null;
+        }
+        final SessionSegment segment = segment(sid);
+        segment.lock.lock();
+        try {
+            final int slot = segment.index.find(key);
+            if (slot == SessionIndex.NONE) {
+                return null;
+            }
+            if (segment.validUntil(slot) < now) {
+                segment.remove(slot);
+                return null;
+            }
+            segment.touch(slot, now + timeout);
+            return new SessionMapEntry(sid, now + timeout, new SessionView(segment, key));
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public SessionMapEntry create(long now) {
+        while (true) {
+            final String sid = SessionMapEntry.generateSid();
+            final byte[] key = key(sid);
+            final SessionSegment segment = segment(sid);
+            segment.lock.lock();
+            try {
+                // ids are random, so a collision with a live session is very unlikely, but not impossible
+                if (segment.index.find(key) == SessionIndex.NONE) {
+                    segment.insert(key, now + timeout);
+                    return new SessionMapEntry(sid, now + timeout, new SessionView(segment, key));
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Segments are cleaned one after another, each from the session that was used the longest time ago until the
+     * first session that is still valid.
+     */
+    @Override
+    public int removeExpired(long now) {
+        int removed = 0;
+        for (SessionSegment segment : segments) {
+            segment.lock.lock();
+            try {
+                for (int slot = segment.index.first(); slot != SessionIndex.NONE; slot = segment.index.first()) {
+                    if (segment.validUntil(slot) >= now) {
+                        break;
+                    }
+                    segment.remove(slot);
+                    removed++;
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (SessionSegment segment : segments) {
+            segment.lock.lock();
+            try {
+                size += segment.index.size();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void flush() {
+        for (SessionSegment segment : segments) {
+            segment.lock.lock();
+            try {
+                segment.flush();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @param sid session id
+     * @return segment to which the session belongs
+     */
+    private SessionSegment segment(String sid) {
+        return segments[sid.hashCode() * 0x9E3779B9 >>> shift];
+    }
+
+    /**
+     * @param sid session id
+     * @return bytes of the id, <code>null</code> if it can't be an id of a session, which are made of
+     *         {@link SessionMapEntry#SID_LEN} ASCII characters
+     */
+    private static byte[] key(String sid) {
+        if (sid.length() != SessionMapEntry.SID_LEN) {
+            return null;
+        }
+        final byte[] key = new byte[SessionMapEntry.SID_LEN];
+        for (int i = 0; i < key.length; i++) {
+            final char c = sid.charAt(i);
+            if (c > 127) {
+                return null;
+            }
+            key[i] = (byte) c;
+        }
+        return key;
+    }
+}
@@ -0,0 +1,169 @@
+package hr.fer.zemris.webserver;
+
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Growable buffer into which a response header or body is written before it's sent. Arrays that back the buffers are
+ * pooled, so serving a response usually doesn't allocate a new one. Buffer must be released once it's contents are
+ * sent, and mustn't be used afterwards.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class PooledBuffer extends OutputStream {
+
+    private static final int INITIAL_SIZE = 4096;
+    private static final int MAX_POOLED_SIZE = 256 * 1024;
+    private static final BlockingQueue<byte[]> POOL = new ArrayBlockingQueue<>(64);
+
+    private byte[] buffer;
+    private int count;
+
+    /**
+     * Creates a new {@link PooledBuffer}, backed by a pooled array if there is one.
+     */
+    public PooledBuffer() {
+        buffer = POOL.poll();
+        if (buffer == null) {
+            buffer = new byte[INITIAL_SIZE];
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    @Override
+    public void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    /**
+     * Writes the given text, one byte per character, in <code>ISO_8859_1</code> encoding. Characters that can't be
+     * encoded are written as <code>'?'</code>. Nothing is allocated, unlike when the text is encoded first.
+     *
+     * @param text text to write
+     */
+    public void writeText(String text) {
+        final int length = text.length();
+        ensureCapacity(count + length);
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            buffer[count++] = (byte) (c <= 0xFF ? c : '?');
+        }
+    }
+
+    /**
+     * Writes the decimal representation of the given number.
+     *
+     * @param number number to write
+     */
+    public void writeDecimal(long number) {
+        if (number < 0) {
+            if (number == Long.MIN_VALUE) {
+                writeText(Long.toString(number));
+                return;
+            }
+            write('-');
+            number = -number;
+        }
+
+        int digits = 1;
+        for (long n = number / 10; n > 0; n /= 10) {
+            digits++;
+        }
+        ensureCapacity(count + digits);
+        for (int i = count + digits - 1; i >= count; i--) {
+            buffer[i] = (byte) ('0' + number % 10);
+            number /= 10;
+        }
+        count += digits;
+    }
+
+    /**
+     * Writes the given number as exactly two decimal digits.
+     *
+     * @param number number between 0 and 99
+     */
+    public void writeTwoDigits(int number) {
+        ensureCapacity(count + 2);
+        buffer[count++] = (byte) ('0' + number / 10);
+        buffer[count++] = (byte) ('0' + number % 10);
+    }
+
+    /**
+     * Empties the buffer, so it can be written again.
+     */
+    public void reset() {
+        count = 0;
+    }
+
+    /**
+     * @return copy of the contents
+     */
+    public byte[] toByteArray() {
+        final byte[] copy = new byte[count];
+        System.arraycopy(buffer, 0, copy, 0, count);
+        return copy;
+    }
+
+    /**
+     * @return array that holds the contents, valid up to {@link #size()}
+     */
+    public byte[] array() {
+        return buffer;
+    }
+
+    /**
+     * @return number of bytes written to this buffer
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns the backing array to the pool.
+     */
+    public void release() {
+        recycle(buffer);
+        buffer = null;
+    }
+
+    /**
+     * Grows the backing array so it can hold at least the given number of bytes.
+     *
+     * @param capacity needed capacity
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity <= buffer.length) {
+            return;
+        }
+
+        final byte[] grown = new byte[Math.max(capacity, buffer.length * 2)];
+        System.arraycopy(buffer, 0, grown, 0, count);
+        recycle(buffer);
+        buffer = grown;
+    }
+
+    /**
+     * Puts the given array into the pool, unless it's too large or the pool is full.
+     *
+     * @param array array to recycle
+     */
+    private static void recycle(byte[] array) {
+        if (array.length <= MAX_POOLED_SIZE) {
+            POOL.offer(array);
+        }
+    }
+}
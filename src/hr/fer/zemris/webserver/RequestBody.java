@@ -0,0 +1,289 @@
+package hr.fer.zemris.webserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Stream of a request body, read straight from the connection as the worker reads it. Body is never held in memory
+ * as a whole, only the connection's read buffer is used. Both a body of known length and a chunked one are supported;
+ * chunked framing is removed while reading, and trailer fields are skipped.
+ * <p>
+ * Stream ends exactly where the body ends, so whatever the client sent after it stays in the read buffer, as the
+ * beginning of the next request. A chunked body that turns out to be larger than the allowed size fails with an
+ * {@link IOException}, body of a known length is checked before the stream is even created.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class RequestBody extends InputStream {
+
+    private static final int DATA = 0;
+    private static final int CHUNK_SIZE = 1;
+    private static final int CHUNK_END = 2;
+    private static final int TRAILER = 3;
+    private static final int DONE = 4;
+
+    /** Maximum length of a chunk size line or a trailer field. */
+    private static final int MAX_LINE = 1024;
+
+    private final BodySource source;
+    private final boolean chunked;
+    private final long maxSize;
+    private boolean expectContinue;
+
+    private int state;
+    private long remaining;
+    private long total;
+    private boolean started;
+
+    /**
+     * Creates a new {@link RequestBody}.
+     *
+     * @param source connection from which the body is read
+     * @param contentLength body length or -1 if the body is chunked
+     * @param maxSize maximum number of bytes in a chunked body
+     * @param expectContinue whether the client waits for <code>100 Continue</code> before sending the body
+     */
+    public RequestBody(BodySource source, long contentLength, long maxSize, boolean expectContinue) {
+        this.source = source;
+        this.chunked = contentLength < 0;
+        this.maxSize = maxSize;
+        this.expectContinue = expectContinue;
+
+        if (chunked) {
+            state = CHUNK_SIZE;
+        } else {
+            remaining = contentLength;
+            state = contentLength == 0 ? DONE : DATA;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] single = new byte[1];
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        started = true;
+
+        if (expectContinue) {
+            expectContinue = false;
+            // client that already started sending doesn't need to be told to continue
+            if (state != DONE && source.buffer().position() == 0) {
+                source.sendContinue();
+            }
+        }
+
+        while (true) {
+            final int decoded = decode(b, off, len);
+            if (decoded > 0) {
+                return decoded;
+            }
+            if (state == DONE) {
+                return -1;
+            }
+            if (source.fill() == -1) {
+                throw new EOFException("Client closed the connection before sending the whole body.");
+            }
+        }
+    }
+
+    @Override
+    public int available() {
+        return state == DATA ? (int) Math.min(remaining, source.buffer().position()) : 0;
+    }
+
+    /**
+     * @return <code>true</code> if anything tried to read the body
+     */
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Reads and drops the rest of the body, so the connection can be used for the next request. Client that still
+     * waits for <code>100 Continue</code> isn't asked for the body just to drop it.
+     *
+     * @param limit maximum number of bytes to drop
+     * @return <code>true</code> if the whole body was read, <code>false</code> if the connection should be closed
+     */
+    public boolean discard(long limit) {
+        if (state == DONE) {
+            return true;
+        }
+        if (expectContinue && source.buffer().position() == 0) {
+            return false;
+        }
+
+        final byte[] scratch = new byte[DISCARD_BUFFER_SIZE];
+        long dropped = 0;
+        try {
+            while (dropped <= limit) {
+                final int read = read(scratch, 0, scratch.length);
+                if (read == -1) {
+                    return true;
+                }
+                dropped += read;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return false;
+    }
+
+    /**
+     * Decodes whatever can be decoded from the bytes that were already read. Decoded framing is removed from the
+     * buffer, along with the copied data.
+     *
+     * @param b array to which data is copied
+     * @param off index at which to start copying
+     * @param len maximum number of bytes to copy
+     * @return number of copied bytes, zero if more bytes have to be read or the body is done
+     * @throws IOException if the framing is malformed or the body is too large
+     */
+    private int decode(byte[] b, int off, int len) throws IOException {
+        final ByteBuffer buffer = source.buffer();
+        final byte[] data = buffer.array();
+        final int available = buffer.position();
+
+        int pos = 0;
+        int copied = 0;
+        loop: while (state != DONE && pos < available) {
+            switch (state) {
+                case DATA:
+                    copied = (int) Math.min(Math.min(remaining, available - pos), len);
+                    System.arraycopy(data, pos, b, off, copied);
+                    pos += copied;
+                    remaining -= copied;
+                    if (remaining == 0) {
+                        state = chunked ? CHUNK_END : DONE;
+                    }
+                    break loop;
+
+                case CHUNK_SIZE: {
+                    final int lineEnd = lineEnd(data, pos, available);
+                    if (lineEnd == -1) {
+                        break loop;
+                    }
+                    final long size = parseChunkSize(data, pos, lineEnd);
+                    total += size;
+                    if (total > maxSize) {
+                        throw new IOException("Request body is larger than " + maxSize + " bytes.");
+                    }
+                    remaining = size;
+                    state = size == 0 ? TRAILER : DATA;
+                    pos = lineEnd + 1;
+                    break;
+                }
+
+                case CHUNK_END: {
+                    final int lineEnd = lineEnd(data, pos, available);
+                    if (lineEnd == -1) {
+                        break loop;
+                    }
+                    if (trimmedLength(data, pos, lineEnd) != 0) {
+                        throw new IOException("Chunk is longer than it's declared size.");
+                    }
+                    state = CHUNK_SIZE;
+                    pos = lineEnd + 1;
+                    break;
+                }
+
+                default: {
+                    // trailer fields are skipped up to the empty line that ends the body
+                    final int lineEnd = lineEnd(data, pos, available);
+                    if (lineEnd == -1) {
+                        break loop;
+                    }
+                    if (trimmedLength(data, pos, lineEnd) == 0) {
+                        state = DONE;
+                    }
+                    pos = lineEnd + 1;
+                }
+            }
+        }
+
+        System.arraycopy(data, pos, data, 0, available - pos);
+        buffer.position(available - pos);
+        return copied;
+    }
+
+    /**
+     * Finds the end of the line that starts at the given index.
+     *
+     * @param data read bytes
+     * @param start index of the first byte of the line
+     * @param end index after the last read byte
+     * @return index of the line feed or -1 if the line wasn't read whole
+     * @throws IOException if the line is too long
+     */
+    private static int lineEnd(byte[] data, int start, int end) throws IOException {
+        for (int i = start; i < end; i++) {
+            if (data[i] == '\n') {
+                return i;
+            }
+        }
+        if (end - start > MAX_LINE) {
+            throw new IOException("Chunk framing line is too long.");
+        }
+        return -1;
+    }
+
+    /**
+     * @param data read bytes
+     * @param start index of the first byte of the line
+     * @param end index of the line feed
+     * @return length of the line without the carriage return
+     */
+    private static int trimmedLength(byte[] data, int start, int end) {
+        return end > start && data[end - 1] == '\r' ? end - start - 1 : end - start;
+    }
+
+    /**
+     * Parses the hexadecimal size at the beginning of a chunk size line. Chunk extensions are ignored.
+     *
+     * @param data read bytes
+     * @param start index of the first byte of the line
+     * @param end index of the line feed
+     * @return chunk size
+     * @throws IOException if the line doesn't start with a valid size
+     */
+    private static long parseChunkSize(byte[] data, int start, int end) throws IOException {
+        long size = 0;
+        int digits = 0;
+        for (int i = start; i < end; i++) {
+            final int b = data[i];
+            final int value;
+            if (b >= '0' && b <= '9') {
+                value = b - '0';
+            } else if (b >= 'a' && b <= 'f') {
+                value = b - 'a' + 10;
+            } else if (b >= 'A' && b <= 'F') {
+                value = b - 'A' + 10;
+            } else if (b == ';' || b == ' ' || b == '\t' || b == '\r') {
+                break;
+            } else {
+                throw new IOException("Malformed chunk size.");
+            }
+
+            if (++digits > 15) {
+                throw new IOException("Chunk size is too large.");
+            }
+            size = size << 4 | value;
+        }
+
+        if (digits == 0) {
+            throw new IOException("Malformed chunk size.");
+        }
+        return size;
+    }
+
+    private static final int DISCARD_BUFFER_SIZE = 4096;
+}
@@ -1,14 +1,27 @@
 package hr.fer.zemris.webserver;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Supplier;
+import java.util.zip.DeflaterOutputStream;
 
 /**
  * This class is used to send HTTP response from the sever to the client.
@@ -18,21 +31,48 @@ import java.util.Set;
  */
 public class RequestContext {
 
-    /** Line separator. */
-    private static final String LINE_SEP = "\r\n";
+    /** Encoding of textual bodies, unless set otherwise. */
+    static final String DEFAULT_ENCODING = "UTF-8";
+    /** Status code of responses whose validators match the request. */
+    private static final int NOT_MODIFIED = 304;
 
     private OutputStream outputStream;
     private Charset charset;
 
-    private String encoding = "UTF-8";
+    private String encoding = DEFAULT_ENCODING;
     private int statusCode = 200;
     private String statusText = "OK";
     private String mimeType = "text/html";
+    private long contentLength = -1;
+    private boolean keepAlive = false;
+    private long bodyLength = 0;
+
+    private Compression compression;
+    private String acceptedEncoding;
+    private String contentEncoding;
+    private int bufferSize;
+    private PooledBuffer buffered;
+    private DeflaterOutputStream compressedStream;
+    private int chunkSize;
+    private ChunkedResponseStream chunkedStream;
+
+    private String etag;
+    private long lastModified = -1;
+    private String ifNoneMatch;
+    private String ifModifiedSince;
+    private boolean notModified;
+    private String method = "GET";
+    private boolean bodyOmitted;
 
     private Map<String, String> parameters;
+    private Map<String, String> inputCookies = Collections.emptyMap();
+    private InputStream inputStream;
+    private EventTarget eventTarget;
     private Map<String, String> temporaryParameters = new HashMap<>();
     private Map<String, String> persistentParameters;
+    private Supplier<Map<String, String>> sessionStarter;
     private List<RequestContext.RCCookie> outputCookies;
+    private final Map<String, String> headers = new LinkedHashMap<>();
 
     private boolean headerGenerated = false;
 
@@ -75,41 +115,496 @@ public class RequestContext {
      * @throws IOException if there was a problem with writing data to output stream
      */
     public RequestContext write(final byte[] data) throws IOException {
+        return write(data, 0, data.length);
+    }
+
+    /**
+     * @param data array that contains the data you want to write to the output stream
+     * @param offset index of the first byte to write
+     * @param length number of bytes to write
+     * @return this request context
+     * @throws IOException if there was a problem with writing data to output stream
+     */
+    public RequestContext write(final byte[] data, final int offset, final int length) throws IOException {
         if (!headerGenerated) {
-            outputStream.write(generateHeader());
+            if (buffered != null || contentLength < 0 && bufferLimit() > 0) {
+                if (buffered == null) {
+                    buffered = new PooledBuffer();
+                }
+                buffered.write(data, offset, length);
+                if (buffered.size() > bufferLimit()) {
+                    // body is too long to be buffered, the rest of it is streamed
+                    writeBufferedHeader();
+                }
+                return this;
+            }
+            writeHeader(null);
+        }
+        if (bodyOmitted) {
+            return this;
         }
 
-        outputStream.write(data);
+        bodyStream().write(data, offset, length);
+        bodyLength += length;
         return this;
     }
 
     /**
-     * Generates the header for this request context.
+     * Writes the given region of a file. If the output stream supports it, file is sent without being copied through
+     * the heap, unless the length of the body wasn't set and it can be compressed, in which case it's compressed while
+     * it's being written.
+     * 
+     * @param file file to write
+     * @param position position of the first byte to write
+     * @param count number of bytes to write
+     * @return this request context
+     * @throws IOException if there was a problem with reading the file or writing it to output stream
+     */
+    public RequestContext write(final Path file, final long position, final long count) throws IOException {
+        if (buffered != null) {
+            writeBufferedHeader();
+        } else if (!headerGenerated) {
+            if (isCompressible() && count >= compression.getThreshold()) {
+                contentEncoding = acceptedEncoding;
+            }
+            writeHeader(null);
+        }
+        if (bodyOmitted) {
+            return this;
+        }
+
+        final OutputStream body = bodyStream();
+        if (body instanceof ResponseStream) {
+            ((ResponseStream) body).writeFile(file, position, count);
+        } else {
+            ResponseStream.copy(file, position, count, body);
+        }
+        bodyLength += count;
+        return this;
+    }
+
+    /**
+     * Finishes the response. If the whole body was buffered, it's sent together with the header and it's exact length.
+     * If nothing was written so far, header is generated for an empty body. Server calls this once the request has
+     * been processed.
+     * 
+     * @throws IOException if there was a problem with writing data to output stream
+     */
+    public void finish() throws IOException {
+        if (!headerGenerated) {
+            if (buffered != null) {
+                writeBuffered();
+            } else {
+                if (contentLength < 0) {
+                    contentLength = 0;
+                }
+                writeHeader(null);
+            }
+        }
+        if (compressedStream != null) {
+            compressedStream.finish();
+        }
+        if (chunkedStream != null) {
+            chunkedStream.finish();
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * Starts a stream of server-sent events. Response header is written at once and the response is complete from
+     * then on: events aren't written to this context, they are sent through the returned channel, from any thread,
+     * for as long as the channel is open. Worker should return, or complete it's stage, right after starting the
+     * stream, since the header is sent only then. Connection is closed once the channel is closed.
+     * 
+     * @return channel through which events are sent
+     * @throws IOException if there was a problem with writing the header
+     */
+    public SseChannel startEventStream() throws IOException {
+        checkIfHeaderWasGenerated("event stream");
+        if (eventTarget == null) {
+            throw new RuntimeException("This connection can't stream events.");
+        }
+        if (buffered != null) {
+            throw new RuntimeException("You can't start an event stream once the body has been written.");
+        }
+
+        final SseChannel channel = eventTarget.openEventStream();
+        statusCode = 200;
+        statusText = "OK";
+        mimeType = "text/event-stream";
+        contentLength = -1;
+        keepAlive = false;
+        chunkSize = 0;
+        bufferSize = 0;
+        acceptedEncoding = null;
+        contentEncoding = null;
+        etag = null;
+        lastModified = -1;
+        headers.put("Cache-Control", "no-cache");
+        writeHeader(null);
+        outputStream.flush();
+        return channel;
+    }
+
+    /**
+     * @param eventTarget connection that can be turned into an event stream, can be null
+     */
+    void setEventTarget(final EventTarget eventTarget) {
+        this.eventTarget = eventTarget;
+    }
+
+    /**
+     * Sets what starts the session of a request that doesn't have one yet. Until a persistent parameter is set,
+     * persistent parameters are a read-only empty map, and the session is started only once one is set.
+     * 
+     * @param sessionStarter creates the session, with it's cookie, and returns it's persistent parameters
+     */
+    void setSessionStarter(final Supplier<Map<String, String>> sessionStarter) {
+        this.sessionStarter = sessionStarter;
+        this.persistentParameters = Collections.emptyMap();
+    }
+
+    /**
+     * Writes a prepared response, such as a cached static file. Only the header fields that depend on the connection
+     * and the session are generated.
+     * 
+     * @param fields encoded header fields, as returned by {@link #encodeHeaderFields}
+     * @param body response body, which is never changed afterwards
+     * @throws IOException if there was a problem with writing data to output stream
+     */
+    void write(final byte[] fields, final byte[] body) throws IOException {
+        checkIfHeaderWasGenerated("header");
+        contentLength = body.length;
+        writeHeader(fields, body, body.length, true);
+    }
+
+    /**
+     * Checks if the connection can be reused once this response is finished. That is the case only if keep-alive was
+     * requested and the response body is delimited either by it's content length or by chunks, or there is no body at
+     * all.
+     * 
+     * @return <code>true</code> if connection can be kept open, <code>false</code> otherwise
+     */
+    public boolean isKeepAlive() {
+        return keepAlive && (bodyOmitted || chunkedStream != null
+                || contentLength >= 0 && (!headerGenerated || bodyLength == contentLength));
+    }
+
+    /**
+     * @return <code>true</code> if the header was already written, so the response can't be replaced by another one
+     */
+    boolean isHeaderGenerated() {
+        return headerGenerated;
+    }
+
+    /**
+     * Checks the validators of this response against the conditional request headers. If client's copy of the response
+     * is still valid, response is sent as <code>304 Not Modified</code>, without a body. Workers can call this once
+     * they set the validators to skip generating a body that wouldn't be sent anyway. Only responses to
+     * <code>GET</code> and <code>HEAD</code> can be <code>304 Not Modified</code>, other methods do something besides
+     * reading the resource.
+     * 
+     * @return <code>true</code> if the client's copy is still valid, <code>false</code> otherwise
+     */
+    public boolean isNotModified() {
+        if (statusCode != 200 || !(method.equals("GET") || method.equals("HEAD"))) {
+            return false;
+        }
+
+        if (ifNoneMatch != null) {
+            return etag != null && matchesETag(ifNoneMatch);
+        }
+
+        if (ifModifiedSince != null && lastModified >= 0) {
+            try {
+                final long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME)
+                        .toEpochSecond();
+                return lastModified / 1000 <= since;
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks if any of the entity tags in the given header matches the entity tag of this response. Tags are compared
+     * weakly, and the compressed variants of the response match as well.
+     * 
+     * @param header value of the <code>If-None-Match</code> header
+     * @return <code>true</code> if one of the tags matches, <code>false</code> otherwise
+     */
+    private boolean matchesETag(final String header) {
+        final String tag = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String t : header.split(",")) {
+            String candidate = t.trim();
+            if (candidate.equals("*")) {
+                return true;
+            }
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(tag) || candidate.equals(encodedETag(tag, Compression.GZIP))
+                    || candidate.equals(encodedETag(tag, Compression.DEFLATE))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the entity tag of a compressed variant of a response. Variants have to have different tags, because
+     * their bodies differ.
      * 
-     * @return byte representation of the header in <code>ISO_8859_1</code> encoding
+     * @param etag entity tag of the uncompressed response, quoted
+     * @param contentEncoding content coding of the variant
+     * @return entity tag of the variant
      */
-    private byte[] generateHeader() {
+    static String encodedETag(final String etag, final String contentEncoding) {
+        return etag.substring(0, etag.length() - 1) + "-" + contentEncoding + "\"";
+    }
 
-        String header = "";
+    /**
+     * Writes the header for this request context.
+     * 
+     * @param fields encoded status line, content type and length or <code>null</code> to encode them from this context
+     * @throws IOException if there was a problem with writing data to output stream
+     */
+    private void writeHeader(final byte[] fields) throws IOException {
+        writeHeader(fields, null, 0, false);
+    }
 
-        header += "HTTP/1.1 " + statusCode + " " + statusText + LINE_SEP;
+    /**
+     * Writes the header for this request context, followed by the given body. If the output stream supports it,
+     * header and body are sent with a single gathering write.
+     * 
+     * @param fields encoded status line, content type and length or <code>null</code> to encode them from this context
+     * @param body whole response body, <code>null</code> if body is written separately
+     * @param length length of the body
+     * @param shared <code>true</code> if the body is never changed, so the output stream needn't copy it
+     * @throws IOException if there was a problem with writing data to output stream
+     */
+    private void writeHeader(final byte[] fields, final byte[] body, final int length, final boolean shared)
+            throws IOException {
+        notModified = isNotModified();
+        // response to HEAD has the header of the response to GET, but no body
+        bodyOmitted = notModified || method.equals("HEAD");
+        final boolean chunked = !notModified && contentLength < 0 && chunkSize > 0;
+        final boolean delimited = contentLength >= 0 || bodyOmitted || chunked;
+
+        final PooledBuffer header = new PooledBuffer();
+        if (notModified) {
+            contentEncoding = null;
+            writeHeaderFields(header, NOT_MODIFIED, "Not Modified", null, encoding, -1, null, false);
+        } else if (fields != null) {
+            header.write(fields);
+        } else {
+            writeHeaderFields(header, statusCode, statusText, mimeType, encoding, contentLength, contentEncoding,
+                    compression != null && compression.isCompressible(mimeType));
+        }
 
-        header += "Content-type: " + mimeType;
-        if (mimeType.startsWith("text/")) {
-            header += "; charset=" + encoding;
+        if (chunked) {
+            header.write(HeaderTemplates.CHUNKED);
         }
-        header += LINE_SEP;
+        header.write(keepAlive && delimited ? HeaderTemplates.KEEP_ALIVE : HeaderTemplates.CLOSE);
 
-        for (RCCookie cookie : outputCookies) {
-            header += "Set-Cookie: " + cookie + LINE_SEP;
+        if (etag != null) {
+            header.write(HeaderTemplates.ETAG);
+            if (contentEncoding == null) {
+                header.writeText(etag);
+            } else {
+                header.writeText(etag.substring(0, etag.length() - 1));
+                header.write('-');
+                header.writeText(contentEncoding);
+                header.write('"');
+            }
+            header.write(HeaderTemplates.CRLF);
+        }
+        if (lastModified >= 0) {
+            header.write(HeaderTemplates.LAST_MODIFIED);
+            HeaderTemplates.writeDate(header, lastModified);
+            header.write(HeaderTemplates.CRLF);
         }
-        header += LINE_SEP;
 
-        charset = Charset.forName(encoding);
+        if (!headers.isEmpty()) {
+            for (Map.Entry<String, String> field : headers.entrySet()) {
+                header.writeText(field.getKey());
+                header.write(HeaderTemplates.FIELD_SEPARATOR);
+                header.writeText(field.getValue());
+                header.write(HeaderTemplates.CRLF);
+            }
+        }
+
+        for (int i = 0, n = outputCookies.size(); i < n; i++) {
+            header.write(HeaderTemplates.SET_COOKIE);
+            outputCookies.get(i).writeTo(header);
+            header.write(HeaderTemplates.CRLF);
+        }
+        header.write(HeaderTemplates.CRLF);
+
         headerGenerated = true;
 
-        return header.getBytes(StandardCharsets.ISO_8859_1);
+        try {
+            if (body == null || bodyOmitted) {
+                outputStream.write(header.array(), 0, header.size());
+            } else if (outputStream instanceof ResponseStream) {
+                // header is pooled and reused once it's written, the body may be kept as it is
+                ((ResponseStream) outputStream).write(new ByteBuffer[] {
+                        ByteBuffer.wrap(header.array(), 0, header.size()), ByteBuffer.wrap(body, 0, length) },
+                        shared ? 1 : 2);
+                bodyLength += length;
+            } else {
+                outputStream.write(header.array(), 0, header.size());
+                outputStream.write(body, 0, length);
+                bodyLength += length;
+            }
+        } finally {
+            header.release();
+        }
+
+        if (bodyOmitted) {
+            return;
+        }
+        if (chunked) {
+            chunkedStream = new ChunkedResponseStream(outputStream, chunkSize);
+        }
+        if (contentEncoding != null && contentLength < 0) {
+            compressedStream = Compression.wrap(contentEncoding, chunked ? chunkedStream : outputStream);
+        }
+    }
+
+    /**
+     * Writes the whole buffered body together with the header. Body is compressed first if it's long enough.
+     * 
+     * @throws IOException if there was a problem with writing data to output stream
+     */
+    private void writeBuffered() throws IOException {
+        final PooledBuffer body = buffered;
+        buffered = null;
+
+        byte[] data = body.array();
+        int length = body.size();
+        if (isCompressible() && length >= compression.getThreshold()) {
+            data = Compression.compress(acceptedEncoding, data, 0, length);
+            length = data.length;
+            contentEncoding = acceptedEncoding;
+        }
 
+        contentLength = length;
+        // compressed body is a new array that nothing else changes, the buffered one goes back to the pool
+        writeHeader(null, data, length, data != body.array());
+        body.release();
+    }
+
+    /**
+     * Writes the header of a body that is too long to be buffered, followed by the part of the body that was buffered
+     * so far. The rest of the body is streamed, compressed if it can be.
+     * 
+     * @throws IOException if there was a problem with writing data to output stream
+     */
+    private void writeBufferedHeader() throws IOException {
+        final PooledBuffer body = buffered;
+        buffered = null;
+
+        if (isCompressible()) {
+            contentEncoding = acceptedEncoding;
+        }
+        writeHeader(null);
+        if (!bodyOmitted) {
+            bodyStream().write(body.array(), 0, body.size());
+            bodyLength += body.size();
+        }
+        body.release();
+    }
+
+    /**
+     * Returns how much of the body can be buffered. Bodies that may be compressed are buffered at least until it's
+     * known whether they are long enough to be compressed.
+     * 
+     * @return maximum number of buffered bytes
+     */
+    private int bufferLimit() {
+        return Math.max(bufferSize, isCompressible() ? compression.getThreshold() : 0);
+    }
+
+    /**
+     * @return stream to which the body is written, compressing or chunking one if the body is compressed or chunked
+     */
+    private OutputStream bodyStream() {
+        if (compressedStream != null) {
+            return compressedStream;
+        }
+        return chunkedStream != null ? chunkedStream : outputStream;
+    }
+
+    /**
+     * Checks if the body written so far may be compressed. Only bodies of unknown length are compressed on the fly,
+     * the ones whose length is known are sent as they are so the connection can be kept alive.
+     * 
+     * @return <code>true</code> if it may, <code>false</code> otherwise
+     */
+    private boolean isCompressible() {
+        return acceptedEncoding != null && contentLength < 0 && compression.isCompressible(mimeType);
+    }
+
+    /**
+     * Encodes the header fields that describe the response body: status line, content type, length and encoding. They
+     * don't depend on the connection or the session, so they can be encoded once and reused.
+     * 
+     * @param statusCode status code
+     * @param statusText status text
+     * @param mimeType mime type of the body, <code>null</code> if there is no body
+     * @param encoding encoding of textual bodies
+     * @param contentLength body length, negative if unknown
+     * @param contentEncoding content coding of the body, <code>null</code> if it isn't compressed
+     * @param vary whether the body depends on the <code>Accept-Encoding</code> request header
+     * @return byte representation of the fields in <code>ISO_8859_1</code> encoding
+     */
+    static byte[] encodeHeaderFields(final int statusCode, final String statusText, final String mimeType,
+            final String encoding, final long contentLength, final String contentEncoding, final boolean vary) {
+        final PooledBuffer buffer = new PooledBuffer();
+        writeHeaderFields(buffer, statusCode, statusText, mimeType, encoding, contentLength, contentEncoding, vary);
+        final byte[] fields = buffer.toByteArray();
+        buffer.release();
+        return fields;
+    }
+
+    /**
+     * Writes the header fields that describe the response body, as encoded by {@link #encodeHeaderFields}, to the given
+     * buffer. Status line and content type are copied from their pre-encoded forms when possible.
+     * 
+     * @param buffer buffer to write to
+     * @param statusCode status code
+     * @param statusText status text
+     * @param mimeType mime type of the body, <code>null</code> if there is no body
+     * @param encoding encoding of textual bodies
+     * @param contentLength body length, negative if unknown
+     * @param contentEncoding content coding of the body, <code>null</code> if it isn't compressed
+     * @param vary whether the body depends on the <code>Accept-Encoding</code> request header
+     */
+    private static void writeHeaderFields(final PooledBuffer buffer, final int statusCode, final String statusText,
+            final String mimeType, final String encoding, final long contentLength, final String contentEncoding,
+            final boolean vary) {
+        HeaderTemplates.writeStatusLine(buffer, statusCode, statusText);
+
+        if (mimeType != null) {
+            HeaderTemplates.writeContentType(buffer, mimeType, encoding);
+        }
+
+        if (contentLength >= 0) {
+            buffer.write(HeaderTemplates.CONTENT_LENGTH);
+            buffer.writeDecimal(contentLength);
+            buffer.write(HeaderTemplates.CRLF);
+        }
+        if (contentEncoding != null) {
+            buffer.write(HeaderTemplates.CONTENT_ENCODING);
+            buffer.writeText(contentEncoding);
+            buffer.write(HeaderTemplates.CRLF);
+        }
+        if (vary) {
+            buffer.write(HeaderTemplates.VARY);
+        }
     }
 
     /**
@@ -136,6 +631,21 @@ public class RequestContext {
         return parameters.keySet();
     }
 
+    /**
+     * Returns all values of a parameter that was sent more than once, such as <code>?tag=a&amp;tag=b</code>.
+     * {@link #getParameter(String)} returns only the first of them.
+     * 
+     * @param name parameter name
+     * @return parameter values, empty list if there isn't such parameter
+     */
+    public List<String> getParameterValues(final String name) {
+        if (parameters instanceof LazyParameters) {
+            return ((LazyParameters) parameters).getAll(name);
+        }
+        final String value = parameters.get(name);
+        return value == null ? Collections.<String> emptyList() : Collections.singletonList(value);
+    }
+
     /**
      * @return the parameters
      */
@@ -143,9 +653,81 @@ public class RequestContext {
         return parameters;
     }
 
+    // ----------------------------------- COOKIES ----------------------------------------- //
+
+    /**
+     * @param name name of the cookie sent by the client
+     * @return cookie value or <code>null</code> if client didn't send such cookie
+     */
+    public String getCookie(final String name) {
+        return inputCookies.get(name);
+    }
+
+    /**
+     * @return names of the cookies sent by the client
+     */
+    public Set<String> getCookieNames() {
+        return inputCookies.keySet();
+    }
+
+    /**
+     * @param inputCookies cookies sent by the client
+     */
+    void setInputCookies(final Map<String, String> inputCookies) {
+        this.inputCookies = inputCookies;
+    }
+
+    // --------------------------------- REQUEST BODY -------------------------------------- //
+
+    /**
+     * Returns the stream from which the request body is read, as the client sends it. Body isn't buffered, so it can
+     * be read only once. Once it's read, form parameters and parts are no longer parsed from it.
+     * 
+     * @return request body, empty stream if the request doesn't have one
+     */
+    public InputStream getInputStream() {
+        return inputStream == null ? InputStream.nullInputStream() : inputStream;
+    }
+
+    /**
+     * @param inputStream stream from which the request body is read, can be null
+     */
+    void setInputStream(final InputStream inputStream) {
+        this.inputStream = inputStream;
+    }
+
+    /**
+     * Returns the parts of a <code>multipart/form-data</code> body. Parts that aren't files are also available as
+     * parameters, if they are small enough to be kept in memory.
+     * 
+     * @return parts in the order they were sent, empty list if the body isn't multipart
+     */
+    public List<RCPart> getParts() {
+        if (parameters instanceof LazyParameters) {
+            return ((LazyParameters) parameters).getParts();
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * @param name part name
+     * @return first part with the given name or <code>null</code> if there isn't one
+     */
+    public RCPart getPart(final String name) {
+        for (RCPart part : getParts()) {
+            if (part.getName().equals(name)) {
+                return part;
+            }
+        }
+        return null;
+    }
+
     // ---------------------------- PERSISTENT PARAMETERS ---------------------------------- //
 
     /**
+     * Returns the persistent parameters. If the request doesn't have a session, they are a read-only empty map until
+     * a parameter is set with {@link #setPersistentParameter(String, String)}.
+     * 
      * @return the persistentParameters
      */
     public Map<String, String> getPersistentParameters() {
@@ -168,10 +750,18 @@ public class RequestContext {
     }
 
     /**
+     * Sets the persistent parameter. If the request doesn't have a session, it's started now, so it's cookie must
+     * still be able to get into the header.
+     * 
      * @param name name of the persistent parameter
      * @param value it's value
      */
     public void setPersistentParameter(final String name, final String value) {
+        if (sessionStarter != null) {
+            checkIfHeaderWasGenerated("session");
+            persistentParameters = sessionStarter.get();
+            sessionStarter = null;
+        }
         persistentParameters.put(name, value);
     }
 
@@ -187,6 +777,7 @@ public class RequestContext {
      */
     public void setPersistentParameters(final Map<String, String> persistentParameters) {
         this.persistentParameters = persistentParameters;
+        this.sessionStarter = null;
     }
 
     // ---------------------------- TEMPORARY PARAMETERS ---------------------------------- //
@@ -243,6 +834,7 @@ public class RequestContext {
     public void setEncoding(final String encoding) {
         checkIfHeaderWasGenerated("encoding");
         this.encoding = encoding;
+        this.charset = null;
     }
 
     /**
@@ -269,6 +861,123 @@ public class RequestContext {
         this.mimeType = mimeType;
     }
 
+    /**
+     * Sets the length of the response body. Once it's known, connection can be kept alive after the response.
+     * 
+     * @param contentLength body length in bytes
+     */
+    public void setContentLength(final long contentLength) {
+        checkIfHeaderWasGenerated("content length");
+        this.contentLength = contentLength;
+    }
+
+    /**
+     * @param keepAlive whether the client asked for the connection to be kept open
+     */
+    public void setKeepAlive(final boolean keepAlive) {
+        checkIfHeaderWasGenerated("keep-alive");
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Sets the entity tag of this response. Unquoted tags are quoted.
+     * 
+     * @param etag entity tag, can be weak (<code>W/"..."</code>)
+     */
+    public void setETag(final String etag) {
+        checkIfHeaderWasGenerated("ETag");
+        this.etag = etag.startsWith("\"") || etag.startsWith("W/\"") ? etag : "\"" + etag + "\"";
+    }
+
+    /**
+     * @param lastModified when the response was last modified, in milliseconds since the epoch
+     */
+    public void setLastModified(final long lastModified) {
+        checkIfHeaderWasGenerated("Last-Modified");
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Sets how much of a body of unknown length is buffered. Bodies that fit are sent with their exact length, the
+     * longer ones are streamed.
+     * 
+     * @param bufferSize maximum number of buffered bytes, zero disables buffering
+     */
+    void setBufferSize(final int bufferSize) {
+        checkIfHeaderWasGenerated("buffer size");
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Allows the body of unknown length to be sent in chunks, so the connection can be kept alive after it. Written
+     * data is collected until there is enough of it for a chunk or until {@link #flush()} is called.
+     * 
+     * @param chunkSize how many bytes are collected before a chunk is sent, zero if client doesn't support chunks
+     */
+    void setChunkSize(final int chunkSize) {
+        checkIfHeaderWasGenerated("chunk size");
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Sends everything that was written so far to the client, including the header if it wasn't sent yet.
+     * 
+     * @throws IOException if there was a problem with writing data to output stream
+     */
+    public void flush() throws IOException {
+        if (buffered != null) {
+            writeBufferedHeader();
+        } else if (!headerGenerated) {
+            writeHeader(null);
+        }
+        bodyStream().flush();
+    }
+
+    /**
+     * Sets the conditional request headers against which the validators of this response are checked.
+     * 
+     * @param ifNoneMatch value of the <code>If-None-Match</code> header, can be <code>null</code>
+     * @param ifModifiedSince value of the <code>If-Modified-Since</code> header, can be <code>null</code>
+     */
+    void setConditions(final String ifNoneMatch, final String ifModifiedSince) {
+        this.ifNoneMatch = ifNoneMatch;
+        this.ifModifiedSince = ifModifiedSince;
+    }
+
+    /**
+     * Sets the method of the request. Response to <code>HEAD</code> is written like the response to <code>GET</code>,
+     * but only it's header is sent.
+     * 
+     * @param method request method
+     */
+    void setMethod(final String method) {
+        this.method = method;
+    }
+
+    /**
+     * Sets a header field that isn't covered by other setters. Setting the same field again replaces it's value.
+     * 
+     * @param name header name
+     * @param value header value
+     */
+    public void setHeader(final String name, final String value) {
+        checkIfHeaderWasGenerated(name);
+        headers.put(name, value);
+    }
+
+    /**
+     * Sets how the body may be compressed. Body is compressed only if it's mime type allows it and it's at least as
+     * long as the threshold.
+     * 
+     * @param compression compression settings
+     * @param acceptedEncoding content coding the client accepts, <code>null</code> if body shouldn't be compressed
+     */
+    void setCompression(final Compression compression, final String acceptedEncoding) {
+        checkIfHeaderWasGenerated("compression");
+        this.compression = compression;
+        this.acceptedEncoding = acceptedEncoding;
+    }
+
     /**
      * Checks if the header was already created. If it was, than an {@link RuntimeException} is thrown.
      * 
@@ -287,6 +996,11 @@ public class RequestContext {
      * @version 1.0
      */
     public static class RCCookie {
+        private static final byte[] DOMAIN = "; Domain=".getBytes(StandardCharsets.ISO_8859_1);
+        private static final byte[] PATH = "; Path=".getBytes(StandardCharsets.ISO_8859_1);
+        private static final byte[] MAX_AGE = "; Max-Age=".getBytes(StandardCharsets.ISO_8859_1);
+        private static final byte[] HTTP_ONLY = "; HttpOnly".getBytes(StandardCharsets.ISO_8859_1);
+
         private final String name;
         private final String value;
         private final String domain;
@@ -322,6 +1036,34 @@ public class RequestContext {
             this.httpOnly = httpOnly;
         }
 
+        /**
+         * Writes this cookie, as it's sent in the <code>Set-Cookie</code> header, to the given buffer.
+         * 
+         * @param buffer buffer to write to
+         */
+        void writeTo(final PooledBuffer buffer) {
+            buffer.writeText(name);
+            buffer.write('=');
+            buffer.write('"');
+            buffer.writeText(value);
+            buffer.write('"');
+            if (domain != null) {
+                buffer.write(DOMAIN);
+                buffer.writeText(domain);
+            }
+            if (path != null) {
+                buffer.write(PATH);
+                buffer.writeText(path);
+            }
+            if (maxAge != null) {
+                buffer.write(MAX_AGE);
+                buffer.writeDecimal(maxAge);
+            }
+            if (httpOnly) {
+                buffer.write(HTTP_ONLY);
+            }
+        }
+
         @Override
         public String toString() {
             String text = name + "=\"" + value + "\"";
@@ -340,4 +1082,111 @@ public class RequestContext {
             return text;
         }
     }
+
+    /**
+     * Class used to represent a single part of a <code>multipart/form-data</code> body. Small parts are kept in
+     * memory, larger ones in temporary files that are deleted once the request is done.
+     * 
+     * @author Filip Hrenić
+     * @version 1.0
+     */
+    public static class RCPart {
+        private final String name;
+        private final String fileName;
+        private final String contentType;
+        private final long size;
+        private final byte[] data;
+        private final Path file;
+
+        /**
+         * Creates a new {@link RCPart}. Exactly one of data and file is given.
+         * 
+         * @param name part name
+         * @param fileName name of the uploaded file, can be null
+         * @param contentType content type of the part, can be null
+         * @param size part size
+         * @param data part contents, can be null
+         * @param file temporary file with part contents, can be null
+         */
+        RCPart(final String name, final String fileName, final String contentType, final long size,
+                final byte[] data, final Path file) {
+            this.name = name;
+            this.fileName = fileName;
+            this.contentType = contentType;
+            this.size = size;
+            this.data = data;
+            this.file = file;
+        }
+
+        /**
+         * @return part name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return name of the uploaded file or <code>null</code> if the part isn't a file
+         */
+        public String getFileName() {
+            return fileName;
+        }
+
+        /**
+         * @return content type of the part or <code>null</code> if client didn't send one
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * @return part size in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return <code>true</code> if the part is kept in memory, rather than in a temporary file
+         */
+        public boolean isInMemory() {
+            return data != null;
+        }
+
+        /**
+         * @return stream from which part contents are read
+         * @throws IOException if the temporary file can't be opened
+         */
+        public InputStream getInputStream() throws IOException {
+            return data != null ? new ByteArrayInputStream(data) : Files.newInputStream(file);
+        }
+
+        /**
+         * Saves the part to the given file. Temporary file is moved rather than copied, so a part that isn't in
+         * memory can be saved only once.
+         * 
+         * @param target file to save the part to, replaced if it exists
+         * @throws IOException if the part couldn't be saved
+         */
+        public void saveTo(final Path target) throws IOException {
+            if (data != null) {
+                Files.write(target, data);
+            } else {
+                Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        /**
+         * Deletes the temporary file, if there is one.
+         */
+        void delete() {
+            if (file == null) {
+                return;
+            }
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+            }
+        }
+    }
 }
@@ -0,0 +1,27 @@
+package hr.fer.zemris.webserver;
+
+import java.io.OutputStream;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Classes that implement this interface can process a single, fully parsed {@link HttpRequest}. The whole response
+ * is written to the given output stream, possibly after the handler returned and from some other thread.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+interface RequestHandler {
+
+    /**
+     * Starts processing the given request. Response is written to the given stream before the returned stage
+     * completes.
+     *
+     * @param request parsed request, <code>null</code> if the request couldn't be parsed
+     * @param ostream stream to which response is written
+     * @param keepAlive whether the connection may be kept open after this request
+     * @return stage that completes with <code>true</code> if the connection can be used for another request,
+     *         <code>false</code> otherwise
+     */
+    CompletionStage<Boolean> handle(HttpRequest request, OutputStream ostream, boolean keepAlive);
+
+}
@@ -0,0 +1,341 @@
+package hr.fer.zemris.webserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parser of request headers that works directly on the bytes read from the client. Bytes are read into a buffer whose
+ * contents start with the header that is being parsed. Each time more bytes are read, parser continues from where it
+ * stopped, one line at a time, so no byte is looked at twice. Methods, versions and well-known header names are
+ * recognized by comparing bytes, and nothing is decoded until the request asks for it.
+ * <p>
+ * Parser enforces limits on the header size and on the number of header fields. A header that breaks them, or whose
+ * request line is malformed, is parsed as a <code>null</code> request, after which the connection should be closed.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class RequestParser {
+
+    /** Recognized methods and versions, parsed requests share these instances. */
+    static final String GET = "GET";
+    static final String HEAD = "HEAD";
+    static final String POST = "POST";
+    static final String PUT = "PUT";
+    static final String DELETE = "DELETE";
+    static final String OPTIONS = "OPTIONS";
+    static final String HTTP_1_0 = "HTTP/1.0";
+    static final String HTTP_1_1 = "HTTP/1.1";
+    /** Version of requests that arrived as HTTP/2 streams, and of the request line of the HTTP/2 preface. */
+    static final String HTTP_2_0 = "HTTP/2.0";
+
+    private static final String[] METHODS = { GET, HEAD, POST, PUT, DELETE, OPTIONS };
+    private static final byte[][] METHOD_BYTES = bytes(METHODS);
+    private static final String[] VERSIONS = { HTTP_1_1, HTTP_1_0, HTTP_2_0 };
+    private static final byte[][] VERSION_BYTES = bytes(VERSIONS);
+    private static final byte[][] KNOWN_HEADER_BYTES = lowerCase(bytes(HttpRequest.KNOWN_HEADERS));
+
+    private final int maxHeaderSize;
+    private final int maxHeaderCount;
+
+    private int scanned;
+    private int lineStart;
+
+    private String method;
+    private String version;
+    private int targetStart;
+    private int targetEnd;
+    private int[] fields = new int[16 * HttpRequest.FIELD_SIZE];
+    private int fieldCount;
+
+    private HttpRequest request;
+
+    /**
+     * Creates a new {@link RequestParser}.
+     *
+     * @param maxHeaderSize maximum number of bytes in a request header
+     * @param maxHeaderCount maximum number of header fields in a request header
+     */
+    public RequestParser(int maxHeaderSize, int maxHeaderCount) {
+        this.maxHeaderSize = maxHeaderSize;
+        this.maxHeaderCount = maxHeaderCount;
+    }
+
+    /**
+     * Parses the bytes read so far. Buffer is expected to be backed by an array, and to be ready for reading more
+     * bytes into it: header starts at index zero and ends somewhere before it's position. Once the whole header is
+     * parsed, it's removed from the buffer, so the buffer starts with whatever the client sent after it.
+     *
+     * @param buffer buffer that holds the bytes read so far
+     * @return <code>true</code> if the whole header was parsed and the request can be taken with
+     *         {@link #getRequest()}, <code>false</code> if more bytes have to be read
+     */
+    public boolean parse(ByteBuffer buffer) {
+        final byte[] data = buffer.array();
+        final int length = buffer.position();
+
+        for (int i = scanned; i < length; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+
+            final int lineEnd = i > lineStart && data[i - 1] == '\r' ? i - 1 : i;
+            final int next = i + 1;
+            if (next > maxHeaderSize) {
+                return reject(buffer);
+            }
+
+            if (method == null) {
+                // empty lines before the request line are ignored
+                if (lineEnd > lineStart && !parseRequestLine(data, lineStart, lineEnd)) {
+                    return reject(buffer);
+                }
+            } else if (lineEnd == lineStart) {
+                request = new HttpRequest(method, version, Arrays.copyOf(data, next), targetStart, targetEnd,
+                        Arrays.copyOf(fields, fieldCount * HttpRequest.FIELD_SIZE), fieldCount);
+                consume(buffer, next);
+                return true;
+            } else if (!parseField(data, lineStart, lineEnd)) {
+                return reject(buffer);
+            }
+            lineStart = next;
+        }
+
+        scanned = length;
+        if (length >= maxHeaderSize) {
+            return reject(buffer);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the last parsed request. It's taken out of the parser, so the next call returns <code>null</code>.
+     *
+     * @return parsed request or <code>null</code> if the request was malformed or too large
+     */
+    public HttpRequest getRequest() {
+        final HttpRequest parsed = request;
+        request = null;
+        return parsed;
+    }
+
+    /**
+     * Parses the request line: method, target and version separated by single spaces.
+     *
+     * @param data header bytes
+     * @param start index of the first byte of the line
+     * @param end index after the last byte of the line
+     * @return <code>true</code> if the line is well formed
+     */
+    private boolean parseRequestLine(byte[] data, int start, int end) {
+        final int firstSpace = indexOf(data, start, end, (byte) ' ');
+        final int secondSpace = indexOf(data, firstSpace + 1, end, (byte) ' ');
+        if (firstSpace <= start || secondSpace <= firstSpace + 1 || secondSpace == end - 1
+                || indexOf(data, secondSpace + 1, end, (byte) ' ') != -1) {
+            return false;
+        }
+
+        method = recognize(data, start, firstSpace, METHOD_BYTES, METHODS);
+        targetStart = firstSpace + 1;
+        targetEnd = secondSpace;
+        version = recognize(data, secondSpace + 1, end, VERSION_BYTES, VERSIONS);
+        return true;
+    }
+
+    /**
+     * Parses a header field and records it's position. Lines without a name are ignored.
+     *
+     * @param data header bytes
+     * @param start index of the first byte of the line
+     * @param end index after the last byte of the line
+     * @return <code>true</code> if the field is within the limits
+     */
+    private boolean parseField(byte[] data, int start, int end) {
+        final int colon = indexOf(data, start, end, (byte) ':');
+        if (colon <= start) {
+            return true;
+        }
+        if (fieldCount == maxHeaderCount) {
+            return false;
+        }
+
+        int nameEnd = colon;
+        while (nameEnd > start && isWhitespace(data[nameEnd - 1])) {
+            nameEnd--;
+        }
+        int valueStart = colon + 1;
+        while (valueStart < end && isWhitespace(data[valueStart])) {
+            valueStart++;
+        }
+        int valueEnd = end;
+        while (valueEnd > valueStart && isWhitespace(data[valueEnd - 1])) {
+            valueEnd--;
+        }
+
+        int id = HttpRequest.OTHER;
+        for (int i = 0; i < KNOWN_HEADER_BYTES.length; i++) {
+            if (equalsIgnoreCase(data, start, nameEnd, KNOWN_HEADER_BYTES[i])) {
+                id = i;
+                break;
+            }
+        }
+
+        final int offset = fieldCount * HttpRequest.FIELD_SIZE;
+        if (offset + HttpRequest.FIELD_SIZE > fields.length) {
+            fields = Arrays.copyOf(fields, fields.length * 2);
+        }
+        fields[offset] = id;
+        fields[offset + 1] = start;
+        fields[offset + 2] = nameEnd;
+        fields[offset + 3] = valueStart;
+        fields[offset + 4] = valueEnd;
+        fieldCount++;
+        return true;
+    }
+
+    /**
+     * Rejects the current header. Everything read so far is dropped, since it's not known where the header ends.
+     *
+     * @param buffer buffer that holds the bytes read so far
+     * @return always <code>true</code>, the header is done with
+     */
+    private boolean reject(ByteBuffer buffer) {
+        request = null;
+        consume(buffer, buffer.position());
+        return true;
+    }
+
+    /**
+     * Removes the given number of bytes from the beginning of the buffer and resets the parser for the next header.
+     *
+     * @param buffer buffer that holds the bytes read so far
+     * @param count number of bytes to remove
+     */
+    private void consume(ByteBuffer buffer, int count) {
+        buffer.flip();
+        buffer.position(count);
+        buffer.compact();
+
+        scanned = 0;
+        lineStart = 0;
+        method = null;
+        version = null;
+        fieldCount = 0;
+    }
+
+    /**
+     * Returns the shared instance of the string in the given region if it's one of the known ones, otherwise decodes
+     * the region.
+     *
+     * @param data header bytes
+     * @param start index of the first byte
+     * @param end index after the last byte
+     * @param known encoded known strings
+     * @param strings known strings
+     * @return string in the given region
+     */
+    private static String recognize(byte[] data, int start, int end, byte[][] known, String[] strings) {
+        for (int i = 0; i < known.length; i++) {
+            if (equals(data, start, end, known[i])) {
+                return strings[i];
+            }
+        }
+        return new String(data, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @param data header bytes
+     * @param start index of the first byte
+     * @param end index after the last byte
+     * @param value bytes to compare with
+     * @return <code>true</code> if the region holds exactly the given bytes
+     */
+    private static boolean equals(byte[] data, int start, int end, byte[] value) {
+        if (end - start != value.length) {
+            return false;
+        }
+        for (int i = 0; i < value.length; i++) {
+            if (data[start + i] != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param data header bytes
+     * @param start index of the first byte
+     * @param end index after the last byte
+     * @param value lower case ASCII bytes to compare with
+     * @return <code>true</code> if the region holds the given bytes, ignoring case
+     */
+    private static boolean equalsIgnoreCase(byte[] data, int start, int end, byte[] value) {
+        if (end - start != value.length) {
+            return false;
+        }
+        for (int i = 0; i < value.length; i++) {
+            if (toLowerCase(data[start + i]) != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param data header bytes
+     * @param start index from which to search
+     * @param end index at which to stop searching
+     * @param b byte to find
+     * @return index of the first occurrence of the byte or -1 if there isn't one
+     */
+    private static int indexOf(byte[] data, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param b byte to check
+     * @return <code>true</code> if the byte is a space or a tab
+     */
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    /**
+     * @param b ASCII byte
+     * @return lower case variant of the byte
+     */
+    static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    /**
+     * @param strings strings to encode
+     * @return strings encoded in <code>ISO_8859_1</code>
+     */
+    private static byte[][] bytes(String[] strings) {
+        final byte[][] encoded = new byte[strings.length][];
+        for (int i = 0; i < strings.length; i++) {
+            encoded[i] = strings[i].getBytes(StandardCharsets.ISO_8859_1);
+        }
+        return encoded;
+    }
+
+    /**
+     * @param encoded encoded strings, they are changed in place
+     * @return given strings in lower case
+     */
+    private static byte[][] lowerCase(byte[][] encoded) {
+        for (byte[] string : encoded) {
+            for (int i = 0; i < string.length; i++) {
+                string[i] = toLowerCase(string[i]);
+            }
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,286 @@
+package hr.fer.zemris.webserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Response, or a part of one that is still being written, kept in memory until it can be written. Files written to it
+ * aren't read, only their regions are remembered. They are sent with
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)} once the response is written to a channel. Bytes that
+ * never change, such as cached bodies, are kept as they are, other bytes are copied once, into the part that is being
+ * filled.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class ResponseBuffer extends ResponseStream {
+
+    private final List<Object> parts = new ArrayList<>();
+    private byte[] current;
+    private int count;
+    private int index;
+    private Runnable onWritten;
+
+    /**
+     * Creates a response buffer that holds the given bytes.
+     *
+     * @param data whole response
+     * @return response buffer
+     */
+    public static ResponseBuffer wrap(byte[] data) {
+        ResponseBuffer buffer = new ResponseBuffer();
+        buffer.parts.add(ByteBuffer.wrap(data));
+        return buffer;
+    }
+
+    /**
+     * @return <code>true</code> if nothing was written to this buffer
+     */
+    public boolean isEmpty() {
+        return count == 0 && parts.isEmpty();
+    }
+
+    /**
+     * Sets the action that is run once this buffer has been written to the end, or released.
+     *
+     * @param onWritten action, run only once
+     */
+    public void whenWritten(Runnable onWritten) {
+        this.onWritten = onWritten;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(1);
+        current[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, current, count, len);
+        count += len;
+    }
+
+    @Override
+    public void write(ByteBuffer[] buffers, int shared) {
+        for (int i = 0; i < buffers.length; i++) {
+            final ByteBuffer buffer = buffers[i];
+            if (i < shared) {
+                final int length = buffer.remaining();
+                ensureCapacity(length);
+                buffer.get(current, count, length);
+                count += length;
+            } else {
+                flushCurrent();
+                parts.add(buffer.duplicate());
+                buffer.position(buffer.limit());
+            }
+        }
+    }
+
+    @Override
+    public void writeFile(Path file, long position, long count) {
+        flushCurrent();
+        parts.add(new FileRegion(file, position, count));
+    }
+
+    /**
+     * Writes as much of this response as the given channel accepts. Channel can be non-blocking.
+     *
+     * @param channel channel to write to
+     * @return <code>true</code> if the whole response has been written, <code>false</code> otherwise
+     * @throws IOException if there was a problem with writing
+     */
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        flushCurrent();
+        while (index < parts.size()) {
+            final Object part = parts.get(index);
+            if (part instanceof ByteBuffer) {
+                int end = index + 1;
+                while (end < parts.size() && parts.get(end) instanceof ByteBuffer) {
+                    end++;
+                }
+                if (end - index > 1 && channel instanceof GatheringByteChannel) {
+                    // header and body are separate parts, they are sent together with one gathering write
+                    final ByteBuffer[] buffers = parts.subList(index, end).toArray(new ByteBuffer[end - index]);
+                    ((GatheringByteChannel) channel).write(buffers);
+                    for (ByteBuffer buffer : buffers) {
+                        if (buffer.hasRemaining()) {
+                            break;
+                        }
+                        parts.set(index++, null);
+                    }
+                    if (index < end) {
+                        return false;
+                    }
+                    continue;
+                }
+                ByteBuffer buffer = (ByteBuffer) part;
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return false;
+                }
+            } else if (!((FileRegion) part).writeTo(channel)) {
+                return false;
+            }
+            parts.set(index++, null);
+        }
+        written();
+        return true;
+    }
+
+    /**
+     * Writes the whole response to the given stream.
+     *
+     * @param ostream stream to write to
+     * @throws IOException if there was a problem with writing
+     */
+    public void writeTo(ResponseStream ostream) throws IOException {
+        flushCurrent();
+        for (; index < parts.size(); index++) {
+            final Object part = parts.get(index);
+            if (part instanceof ByteBuffer) {
+                ByteBuffer buffer = (ByteBuffer) part;
+                ostream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                FileRegion region = (FileRegion) part;
+                ostream.writeFile(region.file, region.position, region.remaining);
+            }
+            parts.set(index, null);
+        }
+        written();
+    }
+
+    /**
+     * Releases the resources held by this response, if it won't be written to the end.
+     */
+    public void release() {
+        for (int i = index; i < parts.size(); i++) {
+            if (parts.get(i) instanceof FileRegion) {
+                ((FileRegion) parts.get(i)).close();
+            }
+        }
+        written();
+    }
+
+    /**
+     * Runs the action that waits for this buffer to be written, if there is one.
+     */
+    private void written() {
+        final Runnable action = onWritten;
+        if (action != null) {
+            onWritten = null;
+            action.run();
+        }
+    }
+
+    /**
+     * Moves the bytes written so far into a part of their own.
+     */
+    private void flushCurrent() {
+        if (count > 0) {
+            parts.add(ByteBuffer.wrap(current, 0, count));
+            current = null;
+            count = 0;
+        }
+    }
+
+    /**
+     * Makes sure the part that is being filled has room for the given number of bytes.
+     *
+     * @param length number of bytes that will be written
+     */
+    private void ensureCapacity(int length) {
+        if (current == null) {
+            current = new byte[Math.max(INITIAL_CAPACITY, length)];
+        } else if (count + length > current.length) {
+            current = Arrays.copyOf(current, Math.max(current.length * 2, count + length));
+        }
+    }
+
+    /** Initial size of the part that is being filled. */
+    private static final int INITIAL_CAPACITY = 512;
+
+    /**
+     * Region of a file that is a part of the response. File is opened only once the region is being written.
+     *
+     * @author Filip Hrenić
+     * @version 1.0
+     */
+    private static final class FileRegion {
+
+        private final Path file;
+        private long position;
+        private long remaining;
+        private FileChannel fileChannel;
+
+        /**
+         * Creates a new {@link FileRegion}.
+         *
+         * @param file file
+         * @param position position of the first byte of the region
+         * @param count region length
+         */
+        public FileRegion(Path file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        /**
+         * Writes as much of this region as the given channel accepts.
+         *
+         * @param channel channel to write to
+         * @return <code>true</code> if the whole region has been written, <code>false</code> otherwise
+         * @throws IOException if there was a problem with reading the file or writing it
+         */
+        public boolean writeTo(WritableByteChannel channel) throws IOException {
+            if (fileChannel == null) {
+                fileChannel = FileChannel.open(file, StandardOpenOption.READ);
+            }
+
+            try {
+                while (remaining > 0) {
+                    final long written = fileChannel.transferTo(position, remaining, channel);
+                    if (written <= 0) {
+                        if (position >= fileChannel.size()) {
+                            throw new IOException("File is shorter than expected: " + file);
+                        }
+                        return false;
+                    }
+                    position += written;
+                    remaining -= written;
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+
+            close();
+            return true;
+        }
+
+        /**
+         * Closes the file, if it is open.
+         */
+        public void close() {
+            if (fileChannel == null) {
+                return;
+            }
+            try {
+                fileChannel.close();
+            } catch (IOException ignored) {
+            }
+            fileChannel = null;
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package hr.fer.zemris.webserver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Per-connection queue of pipelined requests. Requests can be processed in parallel, but their responses are written
+ * in the order in which the requests arrived. Once a response closes the connection, responses to the requests that
+ * follow it are discarded. Request is done once the handler's stage completes, not when the thread that started
+ * processing it returns, so an asynchronous worker doesn't keep a thread busy while it waits. Response that is first
+ * in line is handed to the connection in parts while it's being written, each time the worker flushes it or enough of
+ * it was written, so the client gets the beginning of a long response early. Other responses wait for their turn once
+ * they have a whole part, so no more than about a part of each response is kept in memory.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class ResponseQueue {
+
+    /**
+     * Destination of the responses. Whole responses are sent in request order while holding the queue's lock, parts
+     * are sent by the thread that writes the response that is first in line, before the rest of it is sent whole.
+     *
+     * @author Filip Hrenić
+     * @version 1.0
+     */
+    interface ResponseSink {
+
+        /**
+         * Sends the given response to the client.
+         *
+         * @param response whole response
+         * @param close whether the connection should be closed after this response
+         * @throws IOException if there was a problem with sending
+         */
+        void send(ResponseBuffer response, boolean close) throws IOException;
+
+        /**
+         * Sends a part of the response that is still being written. Sink may wait until the client takes the parts
+         * sent before it, so the response is written only as fast as the client reads it.
+         *
+         * @param part part of the response
+         * @throws IOException if there was a problem with sending, or the client didn't take the earlier parts in time
+         */
+        void sendPart(ResponseBuffer part) throws IOException;
+    }
+
+    private final RequestHandler handler;
+    private final ResponseSink sink;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition drained = lock.newCondition();
+    private final Condition turn = lock.newCondition();
+    private final Deque<Slot> slots = new ArrayDeque<>();
+    private volatile boolean closed;
+
+    /**
+     * Creates a new {@link ResponseQueue}.
+     *
+     * @param handler handler that processes requests
+     * @param sink destination of the responses
+     */
+    public ResponseQueue(RequestHandler handler, ResponseSink sink) {
+        this.handler = handler;
+        this.sink = sink;
+    }
+
+    /**
+     * Reserves a place in the queue for the given request. Returned task processes the request and can be run on any
+     * thread, response is written once all of the previous responses are written.
+     *
+     * @param request parsed request
+     * @param keepAlive whether the connection may be kept open after this request
+     * @return task that processes the request
+     */
+    public Sheddable add(HttpRequest request, boolean keepAlive) {
+        return add(request, keepAlive, null);
+    }
+
+    /**
+     * Reserves a place in the queue for the given request. Returned task processes the request and can be run on any
+     * thread, response is written once all of the previous responses are written.
+     *
+     * @param request parsed request
+     * @param keepAlive whether the connection may be kept open after this request
+     * @param onComplete called once the response is complete, from whichever thread completed it, can be
+     *            <code>null</code>
+     * @return task that processes the request
+     */
+    public Sheddable add(HttpRequest request, boolean keepAlive, Runnable onComplete) {
+        Slot slot = new Slot(request, keepAlive, onComplete);
+        lock.lock();
+        try {
+            slots.add(slot);
+        } finally {
+            lock.unlock();
+        }
+        return slot;
+    }
+
+    /**
+     * @return <code>true</code> if there are no requests whose responses haven't been written yet
+     */
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return slots.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if one of the responses closed the connection
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Waits until all of the responses have been written. Requests that no thread has started processing yet are
+     * started by the calling thread, so waiting can't starve a bounded thread pool.
+     */
+    public void drain() {
+        List<Slot> pending;
+        lock.lock();
+        try {
+            pending = new ArrayList<>(slots);
+        } finally {
+            lock.unlock();
+        }
+
+        for (Slot slot : pending) {
+            slot.run();
+        }
+
+        lock.lock();
+        try {
+            while (!slots.isEmpty()) {
+                drained.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores the response of the given slot and writes all of the responses that are next in line.
+     *
+     * @param slot completed slot
+     * @param response whole response, or the rest of it
+     * @param keepAlive whether the connection can be used after this response
+     */
+    private void complete(Slot slot, ResponseBuffer response, boolean keepAlive) {
+        lock.lock();
+        try {
+            slot.response = response;
+            slot.close = !keepAlive;
+
+            while (!slots.isEmpty() && slots.peek().response != null) {
+                // slot stays first in line until it's response is sent, so the next one can't send parts before it
+                Slot head = slots.peek();
+                if (closed) {
+                    head.response.release();
+                } else {
+                    try {
+                        sink.send(head.response, head.close);
+                    } catch (IOException e) {
+                        head.close = true;
+                    }
+                    closed = head.close;
+                }
+                slots.poll();
+                turn.signalAll();
+            }
+
+            if (slots.isEmpty()) {
+                drained.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends the part of the response that was written so far, if the given slot is first in line. Otherwise the part
+     * is kept until the slot's turn comes, and if it's full, the writing thread waits for it.
+     *
+     * @param slot slot whose response is being written
+     * @param full whether the part is full, rather than flushed
+     * @throws IOException if there was a problem with sending
+     */
+    private void sendPart(Slot slot, boolean full) throws IOException {
+        final ResponseBuffer part;
+        lock.lock();
+        try {
+            while (slots.peek() != slot) {
+                if (!full) {
+                    return;
+                }
+                turn.await();
+            }
+            if (slot.ostream.part.isEmpty()) {
+                return;
+            }
+            part = slot.ostream.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the earlier responses.");
+        } finally {
+            lock.unlock();
+        }
+
+        // slot stays first in line until it's complete, so it's parts can be sent without the lock
+        if (closed) {
+            part.release();
+        } else {
+            sink.sendPart(part);
+        }
+    }
+
+    /** How many bytes of a response are collected before they are sent as a part. */
+    private static final int PART_SIZE = 32 * 1024;
+
+    /**
+     * A single request and, once it's processed, it's response.
+     *
+     * @author Filip Hrenić
+     * @version 1.0
+     */
+    private final class Slot implements Sheddable {
+
+        private final HttpRequest request;
+        private final boolean keepAlive;
+        private final Runnable onComplete;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final SlotStream ostream = new SlotStream(this);
+
+        private ResponseBuffer response;
+        private boolean close;
+
+        /**
+         * Creates a new {@link Slot}.
+         *
+         * @param request parsed request
+         * @param keepAlive whether the connection may be kept open after this request
+         * @param onComplete called once the response is complete, can be <code>null</code>
+         */
+        public Slot(HttpRequest request, boolean keepAlive, Runnable onComplete) {
+            this.request = request;
+            this.keepAlive = keepAlive;
+            this.onComplete = onComplete;
+        }
+
+        /**
+         * Starts processing the request, unless some other thread already did it. Response is completed once the
+         * handler's stage completes.
+         */
+        @Override
+        public void run() {
+            if (!claimed.compareAndSet(false, true)) {
+                return;
+            }
+
+            CompletionStage<Boolean> stage = null;
+            try {
+                stage = handler.handle(request, ostream, keepAlive);
+            } finally {
+                if (stage == null) {
+                    done(ostream.take(), false);
+                }
+            }
+
+            stage.whenComplete(new BiConsumer<Boolean, Throwable>() {
+
+                @Override
+                public void accept(Boolean reuse, Throwable error) {
+                    done(ostream.take(), error == null && reuse);
+                }
+            });
+        }
+
+        /**
+         * Uses the given response instead of processing the request, unless some other thread already started
+         * processing it.
+         */
+        @Override
+        public void shed(byte[] response) {
+            if (claimed.compareAndSet(false, true)) {
+                done(ResponseBuffer.wrap(response), false);
+            }
+        }
+
+        /**
+         * Completes the response of this slot.
+         *
+         * @param response whole response, or the rest of it if a part of it was already sent
+         * @param reuse whether the connection can be used after this response
+         */
+        private void done(ResponseBuffer response, boolean reuse) {
+            try {
+                complete(this, response, reuse);
+            } finally {
+                if (onComplete != null) {
+                    onComplete.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stream to which the response of a slot is written. Written bytes are collected in a part, which is sent once
+     * the worker flushes the stream or once there are {@link #PART_SIZE} bytes in it, if the slot is first in line.
+     * Worker that fills the part before that waits until the slot is first. Regions of files and bytes that never
+     * change aren't counted, they aren't copied to the heap.
+     *
+     * @author Filip Hrenić
+     * @version 1.0
+     */
+    private final class SlotStream extends ResponseStream {
+
+        private final Slot slot;
+        private ResponseBuffer part = new ResponseBuffer();
+        private int buffered;
+
+        /**
+         * Creates a new {@link SlotStream}.
+         *
+         * @param slot slot whose response is written to this stream
+         */
+        public SlotStream(Slot slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            part.write(b);
+            written(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            part.write(b, off, len);
+            written(len);
+        }
+
+        @Override
+        public void write(ByteBuffer[] buffers, int shared) throws IOException {
+            int copied = 0;
+            for (int i = 0; i < shared; i++) {
+                copied += buffers[i].remaining();
+            }
+            part.write(buffers, shared);
+            written(copied);
+        }
+
+        @Override
+        public void writeFile(Path file, long position, long count) {
+            part.writeFile(file, position, count);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            sendPart(slot, false);
+        }
+
+        /**
+         * Takes the part that was collected so far, and starts a new one.
+         *
+         * @return collected part
+         */
+        public ResponseBuffer take() {
+            final ResponseBuffer taken = part;
+            part = new ResponseBuffer();
+            buffered = 0;
+            return taken;
+        }
+
+        /**
+         * Counts the bytes copied to the part, and sends it once it's big enough.
+         *
+         * @param count number of copied bytes
+         * @throws IOException if there was a problem with sending
+         */
+        private void written(int count) throws IOException {
+            buffered += count;
+            if (buffered >= PART_SIZE) {
+                sendPart(slot, true);
+            }
+        }
+    }
+}
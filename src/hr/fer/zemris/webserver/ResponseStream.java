@@ -0,0 +1,83 @@
+package hr.fer.zemris.webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Output stream to which a response is written. Besides bytes, it can take a region of a file, which it should send
+ * without copying the file through the heap.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+abstract class ResponseStream extends OutputStream {
+
+    /**
+     * Writes the given region of a file.
+     *
+     * @param file file to write
+     * @param position position of the first byte to write
+     * @param count number of bytes to write
+     * @throws IOException if there was a problem with reading the file or writing it
+     */
+    public abstract void writeFile(Path file, long position, long count) throws IOException;
+
+    /**
+     * Writes the remaining bytes of the given buffers, in order. Streams that write to a channel can send them with a
+     * single gathering write, others simply write one buffer after another. Buffers can be reused once this returns.
+     *
+     * @param buffers buffers to write
+     * @throws IOException if there was a problem with writing
+     */
+    public void write(ByteBuffer[] buffers) throws IOException {
+        write(buffers, buffers.length);
+    }
+
+    /**
+     * Writes the remaining bytes of the given buffers, in order, like {@link #write(ByteBuffer[])}. Buffers from the
+     * given index on hold bytes that are never changed, such as the body of a cached file, so streams that keep bytes
+     * until later can keep those buffers instead of copies of them.
+     *
+     * @param buffers buffers to write
+     * @param shared index of the first buffer whose bytes never change
+     * @throws IOException if there was a problem with writing
+     */
+    public void write(ByteBuffer[] buffers, int shared) throws IOException {
+        for (ByteBuffer buffer : buffers) {
+            write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+        }
+    }
+
+    /**
+     * Copies the given region of a file to an ordinary output stream, through a small buffer.
+     *
+     * @param file file to copy
+     * @param position position of the first byte to copy
+     * @param count number of bytes to copy
+     * @param ostream stream to which file is copied
+     * @throws IOException if there was a problem with reading the file or writing it
+     */
+    public static void copy(Path file, long position, long count, OutputStream ostream) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(COPY_BUFFER_SIZE, Math.max(count, 1)));
+            while (count > 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), count));
+                final int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("File is shorter than expected: " + file);
+                }
+                ostream.write(buffer.array(), 0, read);
+                position += read;
+                count -= read;
+            }
+        }
+    }
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+}
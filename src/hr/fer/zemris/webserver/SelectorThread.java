@@ -0,0 +1,708 @@
+package hr.fer.zemris.webserver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This thread is a non-blocking alternative to the server thread. A single {@link Selector} accepts clients, reads
+ * their requests and writes the responses. Only fully read requests are handed to the thread pool, so an idle or slow
+ * client costs a buffer and not a thread. Neither does a request whose asynchronous worker waits for something, the
+ * connection stays registered, without a thread, until the response is complete.
+ * <p>
+ * Request body is the exception: it's read by the worker that processes the request, as the worker asks for it.
+ * Request with a body is never processed in parallel with other requests, so the selector doesn't touch the
+ * connection's read buffer while the worker reads.
+ * <p>
+ * Connection whose response started an event stream stays registered once the response is written, and writes the
+ * events as they are queued, without ever blocking the thread that sent them.
+ * <p>
+ * Connection that starts with the HTTP/2 preface, or upgrades to HTTP/2, is handed to a {@link Http2Connection} once
+ * it's earlier requests are done. Selector then only reads it's frames and writes whatever frames the connection
+ * sends, it's streams are processed on the thread pool.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class SelectorThread extends Thread {
+
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService threadPool;
+    private final long keepAliveTimeout;
+    private final int maxKeepAliveRequests;
+    private final int maxHeaderSize;
+    private final int maxHeaderCount;
+    private final long heartbeatInterval;
+    private final int eventBufferSize;
+    private final int maxConcurrentStreams;
+    private final RequestHandler handler;
+
+    private final Selector selector;
+    private final Queue<Runnable> pendingChanges = new ConcurrentLinkedQueue<>();
+    private volatile boolean finished;
+
+    /**
+     * Creates a new {@link SelectorThread}.
+     *
+     * @param serverChannel bound, non-blocking channel from which clients are accepted, possibly shared with other
+     *            threads
+     * @param threadPool pool on which requests are processed
+     * @param keepAliveTimeout for how many milliseconds can an idle connection stay open
+     * @param maxKeepAliveRequests how many requests can be served over a single connection
+     * @param maxHeaderSize maximum number of bytes in a request header
+     * @param maxHeaderCount maximum number of header fields in a request header
+     * @param heartbeatInterval after how many milliseconds without events is a heartbeat sent to an event stream
+     * @param eventBufferSize maximum number of bytes queued for a single event stream
+     * @param maxConcurrentStreams maximum number of streams open at once on an HTTP/2 connection, zero if HTTP/2 isn't
+     *            allowed
+     * @param handler handler that processes requests
+     */
+    public SelectorThread(ServerSocketChannel serverChannel, ExecutorService threadPool, long keepAliveTimeout,
+            int maxKeepAliveRequests, int maxHeaderSize, int maxHeaderCount, long heartbeatInterval,
+            int eventBufferSize, int maxConcurrentStreams, RequestHandler handler) {
+        this.serverChannel = serverChannel;
+        this.threadPool = threadPool;
+        this.keepAliveTimeout = keepAliveTimeout;
+        this.maxKeepAliveRequests = maxKeepAliveRequests;
+        this.maxHeaderSize = maxHeaderSize;
+        this.maxHeaderCount = maxHeaderCount;
+        this.heartbeatInterval = heartbeatInterval;
+        this.eventBufferSize = eventBufferSize;
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        this.handler = handler;
+
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new RuntimeException("Can't open a selector.");
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            throw new RuntimeException("Can't register the server socket with a selector.");
+        }
+
+        long lastIdleCheck = System.currentTimeMillis();
+        while (!finished) {
+            try {
+                selector.select(IDLE_CHECK_INTERVAL);
+            } catch (IOException e) {
+                throw new RuntimeException("Error while waiting for clients.");
+            }
+
+            Runnable change;
+            while ((change = pendingChanges.poll()) != null) {
+                change.run();
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                processKey(key);
+            }
+
+            final long now = System.currentTimeMillis();
+            if (now - lastIdleCheck >= IDLE_CHECK_INTERVAL) {
+                lastIdleCheck = now;
+                closeIdleConnections(now);
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            closeChannel(key);
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Makes this thread to shutdown.
+     */
+    public void kill() {
+        finished = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Does whatever the given key is ready for: accepts a client, reads from it or writes to it.
+     *
+     * @param key selected key
+     */
+    private void processKey(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+
+        try {
+            if (key.isAcceptable()) {
+                // accept everything that is waiting; with a shared server socket, other selectors may have already
+                // accepted some of the clients
+                for (int i = 0; i < MAX_ACCEPTS_PER_SELECT; i++) {
+                    SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+                    if (channel == null) {
+                        break;
+                    }
+                    channel.configureBlocking(false);
+                    SelectionKey clientKey = channel.register(selector, SelectionKey.OP_READ);
+                    clientKey.attach(new Connection(channel, clientKey));
+                }
+                return;
+            }
+
+            Connection connection = (Connection) key.attachment();
+            if (key.isReadable()) {
+                connection.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.write();
+            }
+        } catch (IOException e) {
+            closeChannel(key);
+        }
+    }
+
+    /**
+     * Closes connections that were waiting for a new request for longer than the keep-alive timeout, and event
+     * streams whose client didn't take anything for that long. Event streams that were quiet for longer than the
+     * heartbeat interval are sent a heartbeat.
+     *
+     * @param now current time in milliseconds
+     */
+    private void closeIdleConnections(long now) {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (!(attachment instanceof Connection)) {
+                continue;
+            }
+
+            final Connection connection = (Connection) attachment;
+            final SseChannel events = connection.events;
+            if (events == null) {
+                if (connection.isIdleSince(now - keepAliveTimeout)) {
+                    closeChannel(key);
+                }
+            } else if (events.isStalledSince(now - keepAliveTimeout)) {
+                closeChannel(key);
+            } else if (events.isQuietSince(now - heartbeatInterval)) {
+                events.offer(SseEvent.HEARTBEAT.getEncoded());
+            }
+        }
+    }
+
+    /**
+     * Closes the channel of the given key. Responses that are still waiting to be written are released.
+     *
+     * @param key key whose channel is closed
+     */
+    private static void closeChannel(SelectionKey key) {
+        if (key.attachment() instanceof Connection) {
+            ((Connection) key.attachment()).release();
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * This class represents a single client connection. Pipelined requests are processed in parallel and their
+     * responses are written in request order through a {@link ResponseQueue}. A request that isn't idempotent waits
+     * until all of the previous requests are done, and no other request is started until it's done itself. All of
+     * it's methods, except {@link #send(ResponseBuffer, boolean)}, {@link #sendPart(ResponseBuffer)},
+     * {@link #requestDone()}, {@link #openEventStream()} and the ones that read the request body, are called from the
+     * selector thread only.
+     *
+     * @author Filip Hrenić
+     * @version 1.0
+     */
+    private final class Connection implements ResponseQueue.ResponseSink, BodySource, EventTarget {
+
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ResponseQueue pipeline = new ResponseQueue(handler, this);
+
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final RequestParser parser = new RequestParser(maxHeaderSize, maxHeaderCount);
+
+        private final Queue<ResponseBuffer> outbound = new ArrayDeque<>();
+        private final Semaphore partsInFlight = new Semaphore(MAX_PARTS_IN_FLIGHT);
+        private boolean closeAfterWrite;
+
+        private HttpRequest deferred;
+        private boolean hasDeferred;
+        private int inFlight;
+        private boolean barrier;
+        private boolean stopped;
+        private int served;
+        private long lastActive = System.currentTimeMillis();
+        private Selector bodySelector;
+        private volatile SseChannel events;
+        private Http2Connection http2;
+
+        /**
+         * Creates a new {@link Connection}.
+         *
+         * @param channel client's channel
+         * @param key key with which the channel was registered
+         */
+        public Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        /**
+         * Reads whatever is available from the client and processes the read bytes.
+         *
+         * @throws IOException if there was a problem with reading
+         */
+        public void read() throws IOException {
+            if (http2 != null) {
+                readFrames();
+                return;
+            }
+            if (channel.read(readBuffer) == -1) {
+                // client won't send anything else, but it may still wait for responses
+                stopped = true;
+                closeIfDone();
+                // channel stays at it's end, so only writes of the pending responses are of interest
+                updateInterest();
+                return;
+            }
+            // client that is still sending a request isn't idle, however slowly it sends it
+            lastActive = System.currentTimeMillis();
+            processInput();
+            updateInterest();
+        }
+
+        /**
+         * Hands every fully read request to the thread pool. Bytes that follow the last header are kept, they are the
+         * beginning of the next request.
+         */
+        private void processInput() {
+            while (http2 == null && !stopped && !barrier && inFlight < MAX_PIPELINED_REQUESTS) {
+                if (!hasDeferred) {
+                    if (!parser.parse(readBuffer)) {
+                        growReadBuffer();
+                        return;
+                    }
+
+                    deferred = parser.getRequest();
+                    hasDeferred = true;
+                }
+
+                if (maxConcurrentStreams > 0
+                        && (Http2Connection.isPreface(deferred) || Http2Connection.isUpgrade(deferred))) {
+                    // responses to the earlier requests must be written before the connection changes protocol
+                    if (inFlight == 0) {
+                        startHttp2();
+                    }
+                    return;
+                }
+
+                // body is read from the same buffer, so requests with one wait for the others to finish
+                final boolean idempotent = deferred != null && deferred.isIdempotent() && !deferred.hasBody();
+                if (!idempotent && inFlight > 0) {
+                    return;
+                }
+
+                dispatch(deferred, idempotent);
+                deferred = null;
+                hasDeferred = false;
+            }
+        }
+
+        /**
+         * Switches the connection to HTTP/2. Bytes that follow the preface's request line, or the request that
+         * upgraded the connection, are already frames.
+         */
+        private void startHttp2() {
+            final HttpRequest request = deferred;
+            deferred = null;
+            hasDeferred = false;
+
+            if (readBuffer.capacity() < Http2Connection.FRAME_BUFFER_SIZE) {
+                ByteBuffer bigger = ByteBuffer.allocate(Http2Connection.FRAME_BUFFER_SIZE);
+                readBuffer.flip();
+                bigger.put(readBuffer);
+                readBuffer = bigger;
+            }
+            http2 = new Http2Connection(this, threadPool, handler, maxHeaderSize, maxHeaderCount, maxConcurrentStreams,
+                    keepAliveTimeout);
+            if (!http2.start(request) || !http2.process(readBuffer)) {
+                stopped = true;
+            }
+        }
+
+        /**
+         * Reads whatever frames are available and hands them to the HTTP/2 connection.
+         *
+         * @throws IOException if there was a problem with reading
+         */
+        private void readFrames() throws IOException {
+            if (channel.read(readBuffer) == -1) {
+                closeChannel(key);
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            if (!http2.process(readBuffer)) {
+                // connection error, it's closed once the GOAWAY frame is written
+                stopped = true;
+            }
+            updateInterest();
+        }
+
+        /**
+         * Grows the read buffer if it's full. Parser rejects headers that are too large, so the buffer doesn't grow
+         * much beyond the maximum header size.
+         */
+        private void growReadBuffer() {
+            if (readBuffer.hasRemaining()) {
+                return;
+            }
+
+            ByteBuffer bigger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+            readBuffer.flip();
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        }
+
+        /**
+         * Hands the given request to the thread pool.
+         *
+         * @param request parsed request
+         * @param idempotent whether the request can be processed in parallel with the ones that follow it
+         */
+        private void dispatch(HttpRequest request, boolean idempotent) {
+            served++;
+            inFlight++;
+
+            final boolean keepAlive = served < maxKeepAliveRequests;
+            if (!keepAlive || request == null || !request.isKeepAliveRequested()) {
+                stopped = true;
+            }
+            if (!idempotent) {
+                barrier = true;
+            }
+            if (request != null) {
+                request.setEventTarget(this);
+                if (request.hasBody()) {
+                    request.setBodySource(this);
+                }
+            }
+
+            // request is done once it's response is complete, which an asynchronous worker does without a thread
+            threadPool.execute(pipeline.add(request, keepAlive, new Runnable() {
+
+                @Override
+                public void run() {
+                    requestDone();
+                }
+            }));
+        }
+
+        /**
+         * @param time point in time, in milliseconds
+         * @return <code>true</code> if this connection has been waiting for a request since before the given time
+         */
+        public boolean isIdleSince(long time) {
+            return inFlight == 0 && !hasDeferred && outbound.isEmpty() && lastActive < time
+                    && (http2 == null || http2.isIdle());
+        }
+
+        /**
+         * Writes as much of the pending responses as the channel accepts.
+         *
+         * @throws IOException if there was a problem with writing
+         */
+        public void write() throws IOException {
+            while (!outbound.isEmpty()) {
+                if (!outbound.peek().writeTo(channel)) {
+                    return;
+                }
+                outbound.poll();
+            }
+
+            if (closeAfterWrite) {
+                // response that started an event stream is followed by the events
+                if (events == null || writeEvents()) {
+                    closeChannel(key);
+                } else {
+                    updateInterest();
+                }
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            closeIfDone();
+            updateInterest();
+        }
+
+        /**
+         * Writes as much of the queued events as the channel accepts.
+         *
+         * @return <code>true</code> if the event stream is closed and everything was written
+         * @throws IOException if there was a problem with writing
+         */
+        private boolean writeEvents() throws IOException {
+            ByteBuffer event;
+            while ((event = events.peek()) != null) {
+                channel.write(event);
+                if (event.hasRemaining()) {
+                    return false;
+                }
+                events.remove();
+            }
+            return events.isDone();
+        }
+
+        /**
+         * Releases all of the responses that are waiting to be written, and closes the event stream.
+         */
+        private void release() {
+            for (ResponseBuffer response : outbound) {
+                response.release();
+            }
+            outbound.clear();
+            if (events != null) {
+                events.abort();
+            }
+            if (http2 != null) {
+                http2.close();
+            }
+        }
+
+        /**
+         * Closes the connection if no more requests will be read and all of the responses have been written.
+         */
+        private void closeIfDone() {
+            if (stopped && inFlight == 0 && outbound.isEmpty() && events == null) {
+                closeChannel(key);
+            }
+        }
+
+        /**
+         * Registers interest for writing if there is something to write, and for reading if more requests can be
+         * started.
+         */
+        private void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+
+            int ops = 0;
+            if (!outbound.isEmpty() || closeAfterWrite && events != null && events.needsWrite()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            if (!stopped && !barrier && !hasDeferred && inFlight < MAX_PIPELINED_REQUESTS) {
+                ops |= SelectionKey.OP_READ;
+            }
+            key.interestOps(ops);
+        }
+
+        /**
+         * Queues the response for writing. This method can be called from any thread, queue calls it in request
+         * order.
+         *
+         * @param response response bytes
+         * @param close whether to close the connection once the response is written
+         */
+        @Override
+        public void send(final ResponseBuffer response, final boolean close) {
+            pendingChanges.add(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (!key.isValid()) {
+                        response.release();
+                        return;
+                    }
+                    outbound.add(response);
+                    if (close) {
+                        closeAfterWrite = true;
+                        stopped = true;
+                    }
+                    updateInterest();
+                }
+            });
+            selector.wakeup();
+        }
+
+        /**
+         * Queues a part of the response for writing, once fewer than two parts are waiting to be written, so the
+         * worker doesn't get far ahead of the client. Connection is closed if the client doesn't take them in the
+         * keep-alive timeout.
+         *
+         * @param part part of the response
+         * @throws IOException if the connection is closed, or the client didn't take the earlier parts in time
+         */
+        @Override
+        public void sendPart(ResponseBuffer part) throws IOException {
+            try {
+                if (!key.isValid()) {
+                    throw new IOException("Connection is closed.");
+                }
+                if (!partsInFlight.tryAcquire(keepAliveTimeout, TimeUnit.MILLISECONDS)) {
+                    pendingChanges.add(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            if (key.isValid()) {
+                                closeChannel(key);
+                            }
+                        }
+                    });
+                    selector.wakeup();
+                    throw new SocketTimeoutException("Client didn't take the response in time.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                part.release();
+                throw new InterruptedIOException("Interrupted while waiting for the client.");
+            } catch (IOException e) {
+                part.release();
+                throw e;
+            }
+
+            part.whenWritten(new Runnable() {
+
+                @Override
+                public void run() {
+                    partsInFlight.release();
+                }
+            });
+            send(part, false);
+        }
+
+        @Override
+        public ByteBuffer buffer() {
+            return readBuffer;
+        }
+
+        /**
+         * Reads the request body on the worker's thread. Channel stays non-blocking, so the worker waits for it on a
+         * selector of it's own, opened the first time the body isn't there yet.
+         */
+        @Override
+        public int fill() throws IOException {
+            int read = channel.read(readBuffer);
+            if (read != 0) {
+                return read;
+            }
+
+            if (bodySelector == null) {
+                bodySelector = Selector.open();
+                channel.register(bodySelector, SelectionKey.OP_READ);
+            }
+            while ((read = channel.read(readBuffer)) == 0) {
+                if (bodySelector.select(keepAliveTimeout) == 0) {
+                    throw new SocketTimeoutException("Client didn't send the request body in time.");
+                }
+                bodySelector.selectedKeys().clear();
+            }
+            return read;
+        }
+
+        @Override
+        public void sendContinue() {
+            send(ResponseBuffer.wrap(HeaderTemplates.CONTINUE), false);
+        }
+
+        @Override
+        public void close() {
+            if (bodySelector == null) {
+                return;
+            }
+            try {
+                bodySelector.close();
+            } catch (IOException ignored) {
+            }
+            bodySelector = null;
+        }
+
+        /**
+         * Opens the event stream on the worker's thread. Stream wakes the selector whenever there is something to
+         * write, and closes the connection at once if the client is evicted.
+         */
+        @Override
+        public SseChannel openEventStream() {
+            if (events != null) {
+                throw new RuntimeException("Connection already has an event stream.");
+            }
+
+            events = new SseChannel(eventBufferSize, new Runnable() {
+
+                @Override
+                public void run() {
+                    pendingChanges.add(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            if (!key.isValid()) {
+                                return;
+                            }
+                            if (events.isEvicted()) {
+                                closeChannel(key);
+                            } else {
+                                updateInterest();
+                            }
+                        }
+                    });
+                    selector.wakeup();
+                }
+            });
+            return events;
+        }
+
+        /**
+         * Marks one of the requests as done. This method can be called from any thread.
+         */
+        private void requestDone() {
+            pendingChanges.add(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (!key.isValid()) {
+                        return;
+                    }
+                    inFlight--;
+                    if (inFlight == 0) {
+                        barrier = false;
+                    }
+                    lastActive = System.currentTimeMillis();
+
+                    processInput();
+                    if (key.isValid()) {
+                        closeIfDone();
+                        updateInterest();
+                    }
+                }
+            });
+            selector.wakeup();
+        }
+    }
+
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final long IDLE_CHECK_INTERVAL = 1000;
+    private static final int MAX_PIPELINED_REQUESTS = 16;
+    private static final int MAX_PARTS_IN_FLIGHT = 2;
+    private static final int MAX_ACCEPTS_PER_SELECT = 64;
+}
@@ -0,0 +1,272 @@
+package hr.fer.zemris.webserver;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Off-heap index of sessions: an open-addressing hash table, with linear probing, in a direct buffer. Each slot maps a
+ * session id to the position of the session's record in a log, so the index holds no objects the garbage collector
+ * has to trace, however many sessions there are.
+ * <p>
+ * Slots are also linked into a list in the order their sessions were last used, which is the order they expire in,
+ * since every session is valid for the same time after it was last used. Removed slots are filled by shifting the
+ * slots that follow them back, so the table never holds tombstones, and the list is relinked to the shifted slots.
+ * <p>
+ * Index isn't thread safe, it's guarded by whoever owns it.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class SessionIndex {
+
+    /** Index of a slot that doesn't exist. */
+    static final int NONE = -1;
+
+    private ByteBuffer slots;
+    private int mask;
+    private int size;
+    private int head = NONE;
+    private int tail = NONE;
+
+    /**
+     * Creates a new {@link SessionIndex}.
+     *
+     * @param capacity initial number of slots, a power of two
+     */
+    public SessionIndex(int capacity) {
+        this.slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * @param sid session id, {@link SessionMapEntry#SID_LEN} ASCII characters
+     * @return slot of the session or {@link #NONE} if it isn't indexed
+     */
+    public int find(byte[] sid) {
+        final int hash = hash(sid);
+        for (int slot = hash & mask;; slot = slot + 1 & mask) {
+            if (getOffset(slot) == 0) {
+                return NONE;
+            }
+            if (slots.getInt(slot * SLOT_SIZE + HASH) == hash && sidEquals(slot, sid)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Indexes a session that isn't indexed yet, as the last one used.
+     *
+     * @param sid session id
+     * @param offset position of the session's record, larger than zero
+     * @return slot of the session
+     */
+    public int insert(byte[] sid, int offset) {
+        if ((size + 1) * 2 > mask + 1) {
+            grow();
+        }
+
+        final int hash = hash(sid);
+        int slot = hash & mask;
+        while (getOffset(slot) != 0) {
+            slot = slot + 1 & mask;
+        }
+        final int base = slot * SLOT_SIZE;
+        for (int i = 0; i < sid.length; i++) {
+            slots.put(base + i, sid[i]);
+        }
+        slots.putInt(base + OFFSET, offset);
+        slots.putInt(base + HASH, hash);
+        link(slot);
+        size++;
+        return slot;
+    }
+
+    /**
+     * Marks the session in the given slot as the last one used.
+     *
+     * @param slot slot of the session
+     */
+    public void moveToEnd(int slot) {
+        if (slot == tail) {
+            return;
+        }
+        unlink(slot);
+        link(slot);
+    }
+
+    /**
+     * Removes the session in the given slot. Slots that follow it are shifted back, so slot indices obtained before
+     * are no longer valid.
+     *
+     * @param slot slot of the session
+     */
+    public void remove(int slot) {
+        unlink(slot);
+
+        int hole = slot;
+        for (int next = slot + 1 & mask; getOffset(next) != 0; next = next + 1 & mask) {
+            // slot can fill the hole if the hole lies cyclically between it's ideal slot and itself
+            final int ideal = slots.getInt(next * SLOT_SIZE + HASH) & mask;
+            final boolean movable = next > hole ? ideal <= hole || ideal > next : ideal <= hole && ideal > next;
+            if (movable) {
+                move(next, hole);
+                hole = next;
+            }
+        }
+        for (int i = 0; i < SLOT_SIZE; i += 4) {
+            slots.putInt(hole * SLOT_SIZE + i, 0);
+        }
+        size--;
+    }
+
+    /**
+     * @param slot slot of a session
+     * @return position of the session's record
+     */
+    public int getOffset(int slot) {
+        return slots.getInt(slot * SLOT_SIZE + OFFSET);
+    }
+
+    /**
+     * @param slot slot of a session
+     * @param offset new position of the session's record
+     */
+    public void setOffset(int slot, int offset) {
+        slots.putInt(slot * SLOT_SIZE + OFFSET, offset);
+    }
+
+    /**
+     * @return slot of the session that was used the longest time ago, {@link #NONE} if the index is empty
+     */
+    public int first() {
+        return head;
+    }
+
+    /**
+     * @param slot slot of a session
+     * @return slot of the session that was used after it, {@link #NONE} if there isn't one
+     */
+    public int next(int slot) {
+        return slots.getInt(slot * SLOT_SIZE + NEXT);
+    }
+
+    /**
+     * @return number of indexed sessions
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Doubles the number of slots. Sessions are inserted into the new table in the order they were used, so the order
+     * is kept.
+     */
+    private void grow() {
+        final SessionIndex grown = new SessionIndex((mask + 1) * 2);
+        final byte[] sid = new byte[SessionMapEntry.SID_LEN];
+        for (int slot = head; slot != NONE; slot = next(slot)) {
+            for (int i = 0; i < sid.length; i++) {
+                sid[i] = slots.get(slot * SLOT_SIZE + i);
+            }
+            grown.insert(sid, getOffset(slot));
+        }
+        slots = grown.slots;
+        mask = grown.mask;
+        head = grown.head;
+        tail = grown.tail;
+    }
+
+    /**
+     * Moves a slot's contents to an empty slot, and relinks it's neighbours in the list to it.
+     *
+     * @param from slot to move
+     * @param to empty slot
+     */
+    private void move(int from, int to) {
+        for (int i = 0; i < SLOT_SIZE; i += 4) {
+            slots.putInt(to * SLOT_SIZE + i, slots.getInt(from * SLOT_SIZE + i));
+        }
+        final int prev = slots.getInt(to * SLOT_SIZE + PREV);
+        final int next = slots.getInt(to * SLOT_SIZE + NEXT);
+        if (prev == NONE) {
+            head = to;
+        } else {
+            slots.putInt(prev * SLOT_SIZE + NEXT, to);
+        }
+        if (next == NONE) {
+            tail = to;
+        } else {
+            slots.putInt(next * SLOT_SIZE + PREV, to);
+        }
+    }
+
+    /**
+     * Appends the slot to the end of the list.
+     *
+     * @param slot slot to append
+     */
+    private void link(int slot) {
+        slots.putInt(slot * SLOT_SIZE + PREV, tail);
+        slots.putInt(slot * SLOT_SIZE + NEXT, NONE);
+        if (tail == NONE) {
+            head = slot;
+        } else {
+            slots.putInt(tail * SLOT_SIZE + NEXT, slot);
+        }
+        tail = slot;
+    }
+
+    /**
+     * Takes the slot out of the list.
+     *
+     * @param slot slot to take out
+     */
+    private void unlink(int slot) {
+        final int prev = slots.getInt(slot * SLOT_SIZE + PREV);
+        final int next = slots.getInt(slot * SLOT_SIZE + NEXT);
+        if (prev == NONE) {
+            head = next;
+        } else {
+            slots.putInt(prev * SLOT_SIZE + NEXT, next);
+        }
+        if (next == NONE) {
+            tail = prev;
+        } else {
+            slots.putInt(next * SLOT_SIZE + PREV, prev);
+        }
+    }
+
+    /**
+     * @param slot slot of a session
+     * @param sid session id
+     * @return <code>true</code> if the slot holds the given session
+     */
+    private boolean sidEquals(int slot, byte[] sid) {
+        final int base = slot * SLOT_SIZE;
+        for (int i = 0; i < sid.length; i++) {
+            if (slots.get(base + i) != sid[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param sid session id
+     * @return hash of the id, the same as the hash of it's string
+     */
+    private static int hash(byte[] sid) {
+        int hash = 0;
+        for (byte b : sid) {
+            hash = 31 * hash + b;
+        }
+        return hash ^ hash >>> 16;
+    }
+
+    /** Slot layout: session id, record position, previous and next slot in the list, and the hash of the id. */
+    private static final int OFFSET = SessionMapEntry.SID_LEN;
+    private static final int PREV = OFFSET + 4;
+    private static final int NEXT = PREV + 4;
+    private static final int HASH = NEXT + 4;
+    private static final int SLOT_SIZE = HASH + 4;
+}
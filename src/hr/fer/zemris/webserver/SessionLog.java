@@ -0,0 +1,268 @@
+package hr.fer.zemris.webserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Segment that keeps it's sessions in a memory-mapped, append-only log file, so they survive restarts of the server.
+ * <p>
+ * Every change of a session's parameters appends a new record with all of the session's parameters to the log, and
+ * the record it replaces becomes garbage. Using a session only rewrites it's expiration time, in place. Once a log
+ * has no room for a record and at least half of it is garbage, it's compacted into a new file that replaces the old
+ * one atomically, otherwise it grows twice as large.
+ * <p>
+ * On startup the log is read from the beginning. Record of a session replaces it's earlier records, expired sessions
+ * are dropped, and reading stops at the first record that is cut short or doesn't match it's checksum, which is where
+ * writing stopped when the server crashed. Records are forced to disk after every change, periodically or never,
+ * leaving it to the operating system; expiration times are never forced on their own, so a crash can only make a
+ * session expire sooner.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class SessionLog extends SessionSegment {
+
+    /** Fsync policy that forces every record to disk as it's written. */
+    static final String FSYNC_ALWAYS = "always";
+    /** Fsync policy that forces the logs to disk on every {@link #flush()}. */
+    static final String FSYNC_PERIODIC = "periodic";
+    /** Fsync policy that leaves writing the logs to disk to the operating system. */
+    static final String FSYNC_NEVER = "never";
+
+    private final Path path;
+    private final String fsync;
+    private FileChannel channel;
+    private MappedByteBuffer log;
+    /** Position at which the next record is written. */
+    private int end;
+    /** Total length of the records that were replaced or whose sessions were removed. */
+    private int garbage;
+
+    /**
+     * Opens the logs of a session store, creating them if they don't exist, and recovers their sessions.
+     *
+     * @param directory directory of the log files, created if it doesn't exist
+     * @param fsync one of {@link #FSYNC_ALWAYS}, {@link #FSYNC_PERIODIC} and {@link #FSYNC_NEVER}
+     * @return logs, as segments of an {@link OffHeapSessionStore}
+     */
+    static SessionSegment[] open(Path directory, String fsync) {
+        if (!fsync.equals(FSYNC_ALWAYS) && !fsync.equals(FSYNC_PERIODIC) && !fsync.equals(FSYNC_NEVER)) {
+            throw new RuntimeException("Unknown fsync policy: " + fsync);
+        }
+
+        final long now = System.currentTimeMillis() / 1000;
+        final SessionSegment[] logs = new SessionSegment[LOGS];
+        try {
+            Files.createDirectories(directory);
+            for (int i = 0; i < LOGS; i++) {
+                logs[i] = new SessionLog(directory.resolve(String.format("sessions-%02d.log", i)), fsync, now);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't open session store: " + directory);
+        }
+        return logs;
+    }
+
+    /**
+     * Opens the log file, creating it if it doesn't exist, and recovers it's sessions.
+     *
+     * @param path path of the log file
+     * @param fsync fsync policy
+     * @param now current time
+     * @throws IOException if the file can't be read or written
+     */
+    private SessionLog(Path path, String fsync, long now) throws IOException {
+        super(INITIAL_INDEX_SIZE);
+        this.path = path;
+        this.fsync = fsync;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        final long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new RuntimeException("Session log is too large: " + path);
+        }
+        this.log = channel.map(MapMode.READ_WRITE, 0, Math.max(size, INITIAL_LOG_SIZE));
+        if (size < HEADER) {
+            log.putInt(0, MAGIC);
+            log.putInt(4, VERSION);
+            this.end = HEADER;
+            return;
+        }
+        if (log.getInt(0) != MAGIC || log.getInt(4) != VERSION) {
+            throw new RuntimeException("Not a session log: " + path);
+        }
+        recover(now);
+    }
+
+    @Override
+    protected ByteBuffer records() {
+        return log;
+    }
+
+    /**
+     * Appends a record to the log, making room for it first if there isn't enough.
+     */
+    @Override
+    protected int write(byte[] record) {
+        if (end + record.length > log.capacity()) {
+            makeRoom(record.length);
+        }
+        final int offset = end;
+        SessionRecord.put(log, offset, record, record.length);
+        end += record.length;
+        if (fsync.equals(FSYNC_ALWAYS)) {
+            // forcing just the record needs Java 13, forcing the mapping writes only the pages that changed anyway
+            log.force();
+        }
+        return offset;
+    }
+
+    /**
+     * Released record stays in the log, as garbage, until the log is compacted.
+     */
+    @Override
+    protected void release(int offset, int length) {
+        garbage += length;
+    }
+
+    /**
+     * Forces the log to disk, if the fsync policy is {@link #FSYNC_PERIODIC}.
+     */
+    @Override
+    protected void flush() {
+        if (fsync.equals(FSYNC_PERIODIC)) {
+            log.force();
+        }
+    }
+
+    /**
+     * Reads the records of the log, until the first one that is cut short or damaged, and indexes the live
+     * sessions in the order they expire.
+     *
+     * @param now current time
+     */
+    private void recover(long now) {
+        // latest record of every session is found first, in an index that isn't ordered by expiration
+        final SessionIndex latest = new SessionIndex(INITIAL_INDEX_SIZE);
+        final byte[] key = new byte[SessionMapEntry.SID_LEN];
+        int offset = HEADER;
+        while (offset + SessionRecord.HEADER <= log.capacity()) {
+            final int length = log.getInt(offset + SessionRecord.LENGTH);
+            if (length < SessionRecord.HEADER || length % SessionRecord.ALIGNMENT != 0
+                    || length > log.capacity() - offset
+                    || SessionRecord.checksum(log, offset, length) != log.getInt(offset + SessionRecord.CHECKSUM)) {
+                break;
+            }
+            SessionRecord.get(log, offset + SessionRecord.SID, key);
+            final int slot = latest.find(key);
+            if (slot == SessionIndex.NONE) {
+                latest.insert(key, offset);
+            } else {
+                garbage += log.getInt(latest.getOffset(slot) + SessionRecord.LENGTH);
+                latest.setOffset(slot, offset);
+            }
+            offset += length;
+        }
+        end = offset;
+
+        // anything after the last whole record was cut short, and mustn't be mistaken for a record later
+        final byte[] zeros = new byte[4096];
+        for (int i = end; i < log.capacity(); i += zeros.length) {
+            SessionRecord.put(log, i, zeros, Math.min(zeros.length, log.capacity() - i));
+        }
+
+        // expiration time fits into the upper half of a long and the offset into the lower, so they sort together
+        final long[] live = new long[latest.size()];
+        int count = 0;
+        for (int slot = latest.first(); slot != SessionIndex.NONE; slot = latest.next(slot)) {
+            final int recordOffset = latest.getOffset(slot);
+            final long validUntil = log.getLong(recordOffset + SessionRecord.VALID_UNTIL);
+            if (validUntil < now) {
+                garbage += log.getInt(recordOffset + SessionRecord.LENGTH);
+            } else {
+                live[count++] = validUntil << 32 | recordOffset;
+            }
+        }
+        Arrays.sort(live, 0, count);
+        for (int i = 0; i < count; i++) {
+            final int recordOffset = (int) live[i];
+            SessionRecord.get(log, recordOffset + SessionRecord.SID, key);
+            index.insert(key, recordOffset);
+        }
+    }
+
+    /**
+     * Compacts the log if at least half of it is garbage, then grows it until a record of the given length fits.
+     *
+     * @param length length of the record
+     */
+    private void makeRoom(int length) {
+        if (garbage >= end - HEADER - garbage) {
+            compact();
+        }
+        long capacity = log.capacity();
+        while (end + length > capacity) {
+            capacity *= 2;
+        }
+        if (capacity > Integer.MAX_VALUE) {
+            throw new RuntimeException("Session log is full: " + path);
+        }
+        if (capacity != log.capacity()) {
+            try {
+                log = channel.map(MapMode.READ_WRITE, 0, capacity);
+            } catch (IOException e) {
+                throw new RuntimeException("Couldn't grow session log: " + path);
+            }
+        }
+    }
+
+    /**
+     * Copies the live records, in the order their sessions expire, to a new file, which then atomically replaces
+     * the log. New file is forced to disk before it replaces the log whatever the fsync policy, a crash mustn't leave
+     * an empty log behind.
+     */
+    private void compact() {
+        final Path compacted = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            final FileChannel newChannel = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            final MappedByteBuffer newLog = newChannel.map(MapMode.READ_WRITE, 0, log.capacity());
+            newLog.putInt(0, MAGIC);
+            newLog.putInt(4, VERSION);
+            int newEnd = HEADER;
+            for (int slot = index.first(); slot != SessionIndex.NONE; slot = index.next(slot)) {
+                final int offset = index.getOffset(slot);
+                final int length = log.getInt(offset + SessionRecord.LENGTH);
+                SessionRecord.copy(log, offset, newLog, newEnd, length);
+                index.setOffset(slot, newEnd);
+                newEnd += length;
+            }
+            newLog.force();
+            Files.move(compacted, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+            channel.close();
+            channel = newChannel;
+            log = newLog;
+            end = newEnd;
+            garbage = 0;
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't compact session log: " + path);
+        }
+    }
+
+    private static final int LOGS = 16;
+    private static final int INITIAL_INDEX_SIZE = 1024;
+    private static final int INITIAL_LOG_SIZE = 64 * 1024;
+
+    private static final int MAGIC = 0x53455353;
+    private static final int VERSION = 1;
+    private static final int HEADER = 8;
+}
@@ -0,0 +1,89 @@
+package hr.fer.zemris.webserver;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This class is used to represent one session. Session's parameters can be read and written by every request of the
+ * session at once, and it's expiration time is refreshed by each of them without any lock.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class SessionMapEntry {
+
+    private final String sid;
+    private volatile long validUntil;
+    private final Map<String, String> map;
+
+    /**
+     * @param sid session id
+     * @param validUntil expiration time, in seconds since the epoch
+     */
+    public SessionMapEntry(String sid, long validUntil) {
+        this(sid, validUntil, new ConcurrentHashMap<String, String>());
+    }
+
+    /**
+     * @param sid session id
+     * @param validUntil expiration time, in seconds since the epoch
+     * @param map session's parameters, possibly a view of parameters that are stored elsewhere
+     */
+    public SessionMapEntry(String sid, long validUntil, Map<String, String> map) {
+        this.sid = sid;
+        this.validUntil = validUntil;
+        this.map = map;
+    }
+
+    /**
+     * Generates a new random session id, from a thread-local random generator so that creating sessions doesn't
+     * contend on a shared seed.
+     *
+     * @return new session id of {@value #SID_LEN} characters
+     */
+    static String generateSid() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final char[] sid = new char[SID_LEN];
+        for (int i = 0; i < SID_LEN; i++) {
+            sid[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+        }
+        return new String(sid);
+    }
+
+    /**
+     * @return session id
+     */
+    public String getSid() {
+        return sid;
+    }
+
+    /**
+     * @return expiration time, in seconds since the epoch
+     */
+    public long getValidUntil() {
+        return validUntil;
+    }
+
+    /**
+     * Sets the valid-until parameter to the given parameter.
+     *
+     * @param newValidUntil parameter to set
+     */
+    public void setValidUntil(long newValidUntil) {
+        validUntil = newValidUntil;
+    }
+
+    /**
+     * Returns this entry's map.
+     *
+     * @return map
+     */
+    public Map<String, String> getMap() {
+        return map;
+    }
+
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVXYZ";
+    /** Length of session ids, they are made of ASCII letters only. */
+    static final int SID_LEN = 20;
+}
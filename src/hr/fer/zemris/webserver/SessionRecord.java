@@ -0,0 +1,163 @@
+package hr.fer.zemris.webserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Encoding of a session into a record, the way sessions are kept off the heap. Record starts with it's length,
+ * padded to eight bytes, the checksum of everything after the expiration time, the expiration time, the session id of
+ * {@link SessionMapEntry#SID_LEN} ASCII characters and the number of parameters. Parameters follow inline, each as the
+ * length of it's name, the name, the length of it's value and the value, all in UTF-8.
+ * <p>
+ * Records are aligned so that expiration times, which are rewritten in place whenever a session is used, never span
+ * two pages of memory.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class SessionRecord {
+
+    static final int LENGTH = 0;
+    static final int CHECKSUM = 4;
+    static final int VALID_UNTIL = 8;
+    static final int SID = 16;
+    static final int COUNT = SID + SessionMapEntry.SID_LEN;
+    /** Length of a record without parameters. */
+    static final int HEADER = COUNT + 2;
+    static final int ALIGNMENT = 8;
+
+    /**
+     * Final class, can't be created. Only provides static methods.
+     */
+    private SessionRecord() {
+    }
+
+    /**
+     * Encodes a record.
+     *
+     * @param key session id
+     * @param validUntil session's expiration time
+     * @param parameters session's parameters
+     * @return record, with it's checksum
+     */
+    static byte[] encode(byte[] key, long validUntil, Map<String, String> parameters) {
+        if (parameters.size() > 0xFFFF) {
+            throw new RuntimeException("Session has too many parameters.");
+        }
+        final byte[][] encoded = new byte[parameters.size() * 2][];
+        int length = HEADER;
+        int i = 0;
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            encoded[i] = parameter.getKey().getBytes(StandardCharsets.UTF_8);
+            if (encoded[i].length > 0xFFFF) {
+                throw new RuntimeException("Session parameter name is too long: " + parameter.getKey());
+            }
+            encoded[i + 1] = parameter.getValue().getBytes(StandardCharsets.UTF_8);
+            length += 2 + encoded[i].length + 4 + encoded[i + 1].length;
+            i += 2;
+        }
+        length = (length + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+
+        final ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(LENGTH, length);
+        record.putLong(VALID_UNTIL, validUntil);
+        record.putShort(COUNT, (short) parameters.size());
+        record.position(SID);
+        record.put(key);
+        record.position(HEADER);
+        for (i = 0; i < encoded.length; i += 2) {
+            record.putShort((short) encoded[i].length).put(encoded[i]);
+            record.putInt(encoded[i + 1].length).put(encoded[i + 1]);
+        }
+        record.putInt(CHECKSUM, checksum(record, 0, length));
+        return record.array();
+    }
+
+    /**
+     * Decodes the parameters of a record.
+     *
+     * @param buffer buffer with the record
+     * @param offset position of the record
+     * @return parameters of the record
+     */
+    static Map<String, String> decode(ByteBuffer buffer, int offset) {
+        final int count = buffer.getShort(offset + COUNT) & 0xFFFF;
+        final Map<String, String> parameters = new HashMap<>();
+        offset += HEADER;
+        for (int i = 0; i < count; i++) {
+            final byte[] name = new byte[buffer.getShort(offset) & 0xFFFF];
+            get(buffer, offset + 2, name);
+            offset += 2 + name.length;
+            final byte[] value = new byte[buffer.getInt(offset)];
+            get(buffer, offset + 4, value);
+            offset += 4 + value.length;
+            parameters.put(new String(name, StandardCharsets.UTF_8), new String(value, StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+
+    /**
+     * @param buffer buffer with the record
+     * @param offset position of the record
+     * @param length length of the record
+     * @return checksum of the record, of everything after it's expiration time
+     */
+    static int checksum(ByteBuffer buffer, int offset, int length) {
+        final ByteBuffer checked = buffer.duplicate();
+        checked.limit(offset + length);
+        checked.position(offset + SID);
+        final CRC32 crc = new CRC32();
+        crc.update(checked);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Reads bytes from the given position of a buffer, leaving the buffer's position as it was. Absolute bulk methods
+     * of {@link ByteBuffer} need Java 13 or later, so a duplicate of the buffer is positioned instead.
+     *
+     * @param buffer buffer to read
+     * @param offset position of the bytes
+     * @param bytes array to fill with the bytes
+     */
+    static void get(ByteBuffer buffer, int offset, byte[] bytes) {
+        final ByteBuffer source = buffer.duplicate();
+        source.position(offset);
+        source.get(bytes);
+    }
+
+    /**
+     * Writes bytes to the given position of a buffer, leaving the buffer's position as it was.
+     *
+     * @param buffer buffer to write
+     * @param offset position of the bytes
+     * @param bytes array with the bytes
+     * @param length number of bytes to write, from the beginning of the array
+     */
+    static void put(ByteBuffer buffer, int offset, byte[] bytes, int length) {
+        final ByteBuffer target = buffer.duplicate();
+        target.position(offset);
+        target.put(bytes, 0, length);
+    }
+
+    /**
+     * Copies bytes from a position of one buffer to a position of another, leaving the buffers' positions as they
+     * were.
+     *
+     * @param source buffer to copy from
+     * @param sourceOffset position of the bytes in the source
+     * @param target buffer to copy to
+     * @param targetOffset position of the bytes in the target
+     * @param length number of bytes
+     */
+    static void copy(ByteBuffer source, int sourceOffset, ByteBuffer target, int targetOffset, int length) {
+        final ByteBuffer from = source.duplicate();
+        from.limit(sourceOffset + length);
+        from.position(sourceOffset);
+        final ByteBuffer to = target.duplicate();
+        to.position(targetOffset);
+        to.put(from);
+    }
+}
@@ -0,0 +1,129 @@
+package hr.fer.zemris.webserver;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Segment of an {@link OffHeapSessionStore}: sessions whose ids hash to it, encoded as {@link SessionRecord}s in a
+ * buffer off the heap, the {@link SessionIndex} that maps their ids to their records, and the lock that guards both.
+ * Subclasses decide where records are written and what happens to the records that are no longer needed.
+ * <p>
+ * Methods must be called with the lock held.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+abstract class SessionSegment {
+
+    /** Lock that guards the segment. */
+    final Lock lock = new ReentrantLock();
+    /** Index of the segment's sessions, in the order they expire. */
+    final SessionIndex index;
+
+    /**
+     * @param indexSize initial number of the index's slots, a power of two
+     */
+    protected SessionSegment(int indexSize) {
+        this.index = new SessionIndex(indexSize);
+    }
+
+    /**
+     * @return buffer with the records, it can change whenever a record is written
+     */
+    protected abstract ByteBuffer records();
+
+    /**
+     * Writes a record.
+     *
+     * @param record encoded record
+     * @return position of the record in {@link #records()}
+     */
+    protected abstract int write(byte[] record);
+
+    /**
+     * Releases a record that is no longer needed, because it was replaced or it's session was removed.
+     *
+     * @param offset position of the record
+     * @param length length of the record
+     */
+    protected abstract void release(int offset, int length);
+
+    /**
+     * Writes the records to durable storage, if the segment keeps them there.
+     */
+    protected abstract void flush();
+
+    /**
+     * Adds a new session without parameters, as the last one used.
+     *
+     * @param key session id
+     * @param validUntil session's expiration time
+     */
+    public void insert(byte[] key, long validUntil) {
+        final int offset = write(SessionRecord.encode(key, validUntil, Collections.<String, String>emptyMap()));
+        index.insert(key, offset);
+    }
+
+    /**
+     * @param slot slot of a session
+     * @return session's expiration time
+     */
+    public long validUntil(int slot) {
+        return records().getLong(index.getOffset(slot) + SessionRecord.VALID_UNTIL);
+    }
+
+    /**
+     * Extends the session's validity, in place, and marks it as the last one used.
+     *
+     * @param slot slot of the session
+     * @param validUntil session's new expiration time
+     */
+    public void touch(int slot, long validUntil) {
+        records().putLong(index.getOffset(slot) + SessionRecord.VALID_UNTIL, validUntil);
+        index.moveToEnd(slot);
+    }
+
+    /**
+     * @param slot slot of a session
+     * @return parameters from the session's record
+     */
+    public Map<String, String> read(int slot) {
+        return SessionRecord.decode(records(), index.getOffset(slot));
+    }
+
+    /**
+     * Replaces the parameters of the session in the given slot with a new record.
+     *
+     * @param slot slot of the session
+     * @param parameters session's new parameters
+     */
+    public void update(int slot, Map<String, String> parameters) {
+        final ByteBuffer records = records();
+        final int oldOffset = index.getOffset(slot);
+        final byte[] key = new byte[SessionMapEntry.SID_LEN];
+        SessionRecord.get(records, oldOffset + SessionRecord.SID, key);
+        final byte[] record = SessionRecord.encode(key, records.getLong(oldOffset + SessionRecord.VALID_UNTIL),
+                parameters);
+        final int oldLength = records.getInt(oldOffset + SessionRecord.LENGTH);
+        // old record stays indexed while the new one is written, in case writing moves it
+        final int offset = write(record);
+        final int movedOffset = index.getOffset(slot);
+        index.setOffset(slot, offset);
+        release(movedOffset, oldLength);
+    }
+
+    /**
+     * Removes the session in the given slot and releases it's record.
+     *
+     * @param slot slot of the session
+     */
+    public void remove(int slot) {
+        final int offset = index.getOffset(slot);
+        final int length = records().getInt(offset + SessionRecord.LENGTH);
+        index.remove(slot);
+        release(offset, length);
+    }
+}
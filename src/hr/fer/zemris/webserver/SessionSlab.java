@@ -0,0 +1,137 @@
+package hr.fer.zemris.webserver;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Segment that keeps it's sessions in memory, in a slab off the heap. Slab is split into blocks of size classes, four
+ * classes for each power of two, from {@value #MIN_BLOCK} bytes up, so a record wastes at most a fifth of it's block.
+ * Blocks of records that are no longer needed are kept on a free list of their class and reused by records of the
+ * same class, new blocks are cut from the end of the slab, which grows twice as large when it's full.
+ * <p>
+ * Session that holds a parameter or two, like the count of <code>brojPoziva.smscr</code>, takes a block of
+ * {@value #MIN_BLOCK} to 80 bytes and a slot of the index, instead of a map, it's entries and strings on the heap.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class SessionSlab extends SessionSegment {
+
+    /** Block sizes of the classes, ascending. */
+    private static final int[] CLASSES = classes();
+
+    private ByteBuffer slab = ByteBuffer.allocateDirect(INITIAL_SLAB_SIZE);
+    /** Position of the first block that was never used, blocks are never at position zero. */
+    private int end = SessionRecord.ALIGNMENT;
+    /** First free block of each class, zero if there is none. Each free block starts with the position of the next. */
+    private final int[] free = new int[CLASSES.length];
+
+    /**
+     * Creates the slabs of a session store.
+     *
+     * @return slabs, as segments of an {@link OffHeapSessionStore}
+     */
+    static SessionSegment[] create() {
+        final SessionSegment[] slabs = new SessionSegment[SLABS];
+        for (int i = 0; i < SLABS; i++) {
+            slabs[i] = new SessionSlab();
+        }
+        return slabs;
+    }
+
+    /**
+     * Creates a new empty {@link SessionSlab}.
+     */
+    private SessionSlab() {
+        super(INITIAL_INDEX_SIZE);
+    }
+
+    @Override
+    protected ByteBuffer records() {
+        return slab;
+    }
+
+    @Override
+    protected int write(byte[] record) {
+        final int sizeClass = sizeClass(record.length);
+        int offset = free[sizeClass];
+        if (offset != 0) {
+            free[sizeClass] = slab.getInt(offset);
+        } else {
+            offset = end;
+            if (offset + CLASSES[sizeClass] > slab.capacity()) {
+                grow(offset + CLASSES[sizeClass]);
+            }
+            end += CLASSES[sizeClass];
+        }
+        SessionRecord.put(slab, offset, record, record.length);
+        return offset;
+    }
+
+    @Override
+    protected void release(int offset, int length) {
+        final int sizeClass = sizeClass(length);
+        slab.putInt(offset, free[sizeClass]);
+        free[sizeClass] = offset;
+    }
+
+    /**
+     * Slab is kept only in memory, so there is nothing to write.
+     */
+    @Override
+    protected void flush() {
+    }
+
+    /**
+     * Grows the slab twice as large, as many times as it takes to reach the given size. Positions of the blocks stay
+     * the same, so the index needn't change. Every store has many slabs, so a slab that grows copies only a small part
+     * of the sessions.
+     *
+     * @param size size the slab must reach
+     */
+    private void grow(int size) {
+        long capacity = slab.capacity();
+        while (capacity < size) {
+            capacity *= 2;
+        }
+        if (capacity > Integer.MAX_VALUE) {
+            throw new RuntimeException("Session slab is full.");
+        }
+        final ByteBuffer grown = ByteBuffer.allocateDirect((int) capacity);
+        SessionRecord.copy(slab, 0, grown, 0, end);
+        slab = grown;
+    }
+
+    /**
+     * @param length length of a record
+     * @return index of the smallest class whose blocks fit the record
+     */
+    private static int sizeClass(int length) {
+        final int sizeClass = Arrays.binarySearch(CLASSES, length);
+        if (sizeClass >= 0) {
+            return sizeClass;
+        }
+        if (-sizeClass - 1 == CLASSES.length) {
+            throw new RuntimeException("Session is too large: " + length + " bytes.");
+        }
+        return -sizeClass - 1;
+    }
+
+    /**
+     * @return block sizes of the classes: four for each power of two, from {@value #MIN_BLOCK} to
+     *         {@value #MAX_BLOCK} bytes
+     */
+    private static int[] classes() {
+        final int[] classes = new int[(Integer.numberOfTrailingZeros(MAX_BLOCK / MIN_BLOCK)) * 4 + 1];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = (MIN_BLOCK + (i % 4) * MIN_BLOCK / 4) << i / 4;
+        }
+        return classes;
+    }
+
+    private static final int SLABS = 64;
+    private static final int INITIAL_INDEX_SIZE = 256;
+    private static final int INITIAL_SLAB_SIZE = 16 * 1024;
+    private static final int MIN_BLOCK = 32;
+    private static final int MAX_BLOCK = 16 * 1024 * 1024;
+}
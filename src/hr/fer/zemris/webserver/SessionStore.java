@@ -0,0 +1,50 @@
+package hr.fer.zemris.webserver;
+
+/**
+ * Store of the server's sessions. It's used by every request, from every pool thread at once, so implementations
+ * must be thread safe and shouldn't make requests of different sessions wait for each other. Times are in seconds
+ * since the epoch, as sessions' expiration times are.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+interface SessionStore {
+
+    /**
+     * Finds the session with the given id and extends it's validity, since it was just used.
+     *
+     * @param sid session id
+     * @param now current time
+     * @return session or <code>null</code> if there is no such session or it has expired
+     */
+    SessionMapEntry get(String sid, long now);
+
+    /**
+     * Creates a new session with a random id.
+     *
+     * @param now current time
+     * @return new session
+     */
+    SessionMapEntry create(long now);
+
+    /**
+     * Removes the sessions that have expired. It's called periodically, so it should cost next to nothing when no
+     * session has expired, however many sessions there are.
+     *
+     * @param now current time
+     * @return number of removed sessions
+     */
+    int removeExpired(long now);
+
+    /**
+     * @return number of stored sessions, including the expired ones that weren't removed yet
+     */
+    int size();
+
+    /**
+     * Writes the sessions to durable storage, if the store keeps them there. It's called periodically, along with
+     * {@link #removeExpired(long)}, and when the server stops.
+     */
+    void flush();
+
+}
@@ -0,0 +1,103 @@
+package hr.fer.zemris.webserver;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Parameters of a session kept off the heap, read from and written to it's record in a {@link SessionSegment}. Every
+ * change writes a new record, and iterating goes over a copy of the parameters. Changes of a session that was removed
+ * in the meantime are lost, as they were when sessions were kept on the heap.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class SessionView extends AbstractMap<String, String> {
+
+    private final SessionSegment segment;
+    private final byte[] key;
+
+    /**
+     * @param segment segment of the session
+     * @param key session id
+     */
+    public SessionView(SessionSegment segment, byte[] key) {
+        this.segment = segment;
+        this.key = key;
+    }
+
+    @Override
+    public String get(Object name) {
+        return read().get(name);
+    }
+
+    @Override
+    public boolean containsKey(Object name) {
+        return read().containsKey(name);
+    }
+
+    @Override
+    public int size() {
+        return read().size();
+    }
+
+    @Override
+    public String put(String name, String value) {
+        if (name == null || value == null) {
+            throw new NullPointerException();
+        }
+        segment.lock.lock();
+        try {
+            final int slot = segment.index.find(key);
+            if (slot == SessionIndex.NONE) {
+                return null;
+            }
+            final Map<String, String> parameters = segment.read(slot);
+            final String old = parameters.put(name, value);
+            if (!value.equals(old)) {
+                segment.update(slot, parameters);
+            }
+            return old;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public String remove(Object name) {
+        segment.lock.lock();
+        try {
+            final int slot = segment.index.find(key);
+            if (slot == SessionIndex.NONE) {
+                return null;
+            }
+            final Map<String, String> parameters = segment.read(slot);
+            final String old = parameters.remove(name);
+            if (old != null) {
+                segment.update(slot, parameters);
+            }
+            return old;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return Collections.unmodifiableMap(read()).entrySet();
+    }
+
+    /**
+     * @return copy of the session's parameters, empty if the session was removed
+     */
+    private Map<String, String> read() {
+        segment.lock.lock();
+        try {
+            final int slot = segment.index.find(key);
+            return slot == SessionIndex.NONE ? Collections.<String, String>emptyMap() : segment.read(slot);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+}
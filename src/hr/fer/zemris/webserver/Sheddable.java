@@ -0,0 +1,19 @@
+package hr.fer.zemris.webserver;
+
+/**
+ * Task that can be dropped when the server is overloaded. Instead of being run, dropped task gets a ready-made
+ * response which it must send to it's client.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+interface Sheddable extends Runnable {
+
+    /**
+     * Called instead of {@link #run()} when the task is dropped.
+     *
+     * @param response whole response to send to the client, must not be modified
+     */
+    void shed(byte[] response);
+
+}
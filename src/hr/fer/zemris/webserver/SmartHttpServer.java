@@ -7,31 +7,41 @@ import hr.fer.zemris.util.IOUtil;
 import hr.fer.zemris.util.NumUtil;
 import hr.fer.zemris.webserver.RequestContext.RCCookie;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PushbackInputStream;
-import java.net.ServerSocket;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
-import java.util.Random;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
 /**
  * This class is used as a http server that can run smart scripts (.smscr) and all sorts of things.
@@ -44,18 +54,47 @@ public class SmartHttpServer {
     private String address;
     private int port;
     private int workerThreads;
+    private int acceptors;
     private long sessionTimeout;
+    private String ioMode;
+    private String executor;
+    private int keepAliveTimeout;
+    private int maxKeepAliveRequests;
+    private int maxHeaderSize;
+    private int maxHeaderCount;
+    private long maxBodySize;
+    private int maxFormSize;
+    private int multipartThreshold;
+    private int heartbeatInterval;
+    private int eventBufferSize;
+    private int maxConcurrentStreams;
+    private int queueDepth;
+    private LoadShedder loadShedder;
+    private long zeroCopyThreshold;
+    private StaticFileCache staticCache;
+    private Compression compression;
+    private int chunkSize;
+    private int responseBufferSize;
 
     private final Map<String, String> mimeTypes = new HashMap<>();
-    private final Map<String, IWebWorker> workersMap = new HashMap<>();
+    private final Map<String, IAsyncWebWorker> workersMap = new HashMap<>();
 
-    private final Map<String, SessionMapEntry> sessions = new HashMap<>();
-    private final Random sessionRandom = new Random();
+    private SessionStore sessions;
+
+    private final RequestHandler requestHandler = new RequestHandler() {
+
+        @Override
+        public CompletionStage<Boolean> handle(HttpRequest request, OutputStream ostream, boolean keepAlive) {
+            return new RequestProcessor(request, ostream, keepAlive).process();
+        }
+    };
 
     private GarbageThread garbageThread;
-    private ServerThread serverThread;
-    private ExecutorService threadPool;
+    private final List<ServerThread> serverThreads = new ArrayList<>();
+    private final List<SelectorThread> selectorThreads = new ArrayList<>();
+    private final List<ExecutorService> threadPools = new ArrayList<>();
     private Path documentRoot;
+    private boolean stopped;
 
     /**
      * Main method that starts the server.
@@ -70,8 +109,17 @@ public class SmartHttpServer {
 
         final SmartHttpServer server = new SmartHttpServer(args[0]);
         server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+
+            @Override
+            public void run() {
+                // sessions written since the last sweep are flushed even if the process is simply terminated
+                server.stop();
+            }
+        });
 
         System.out.println("To shutdown the server, simply type 'stop' and press enter.");
+        System.out.println("To see server statistics, type 'stats'.");
         BufferedReader r = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
         while (true) {
             String line;
@@ -81,10 +129,14 @@ public class SmartHttpServer {
                 throw new RuntimeException();
             }
             if (line.equalsIgnoreCase("stop")) {
+                server.stop();
                 System.out.println("Server was shutdown.");
                 System.exit(1);
                 // break;
             }
+            if (line.equalsIgnoreCase("stats")) {
+                server.printStatistics();
+            }
         }
 
     }
@@ -115,8 +167,47 @@ public class SmartHttpServer {
         address = properties.getProperty(ADDRESS);
         port = NumUtil.getInt(properties.getProperty(PORT));
         workerThreads = NumUtil.getInt(properties.getProperty(WORKER_THREADS));
+        acceptors = Math.max(1, NumUtil.getInt(properties.getProperty(ACCEPTORS, "1")));
         sessionTimeout = (long) NumUtil.getInt(properties.getProperty(TIMEOUT));
+        final String sessionStore = properties.getProperty(SESSION_STORE, SESSION_STORE_MEMORY).trim();
+        if (sessionStore.equals(SESSION_STORE_MEMORY)) {
+            sessions = new StripedSessionStore(sessionTimeout);
+        } else if (sessionStore.equals(SESSION_STORE_OFFHEAP)) {
+            sessions = new OffHeapSessionStore(sessionTimeout, SessionSlab.create());
+        } else if (sessionStore.equals(SESSION_STORE_MAPPED)) {
+            sessions = new OffHeapSessionStore(sessionTimeout,
+                    SessionLog.open(Paths.get(properties.getProperty(SESSION_DIRECTORY, "sessions").trim()),
+                            properties.getProperty(SESSION_FSYNC, SessionLog.FSYNC_PERIODIC).trim()));
+        } else {
+            throw new RuntimeException("Unknown session store: " + sessionStore);
+        }
         documentRoot = Paths.get(properties.getProperty(DOCUMENT_ROOT));
+        ioMode = properties.getProperty(IO_MODE, IO_BLOCKING).trim();
+        if (!ioMode.equals(IO_BLOCKING) && !ioMode.equals(IO_NIO)) {
+            throw new RuntimeException("Unknown I/O mode: " + ioMode);
+        }
+        keepAliveTimeout = NumUtil.getInt(properties.getProperty(KEEP_ALIVE_TIMEOUT, "5"));
+        maxKeepAliveRequests = NumUtil.getInt(properties.getProperty(MAX_KEEP_ALIVE_REQUESTS, "100"));
+        maxHeaderSize = NumUtil.getInt(properties.getProperty(MAX_HEADER_SIZE, "65536"));
+        maxHeaderCount = NumUtil.getInt(properties.getProperty(MAX_HEADER_COUNT, "100"));
+        maxBodySize = Long.parseLong(properties.getProperty(MAX_BODY_SIZE, "10485760").trim());
+        maxFormSize = NumUtil.getInt(properties.getProperty(MAX_FORM_SIZE, "1048576"));
+        multipartThreshold = NumUtil.getInt(properties.getProperty(MULTIPART_THRESHOLD, "65536"));
+        heartbeatInterval = NumUtil.getInt(properties.getProperty(HEARTBEAT_INTERVAL, "15"));
+        eventBufferSize = NumUtil.getInt(properties.getProperty(EVENT_BUFFER_SIZE, "65536"));
+        maxConcurrentStreams = NumUtil.getInt(properties.getProperty(MAX_CONCURRENT_STREAMS, "100"));
+        chunkSize = NumUtil.getInt(properties.getProperty(CHUNK_SIZE, "8192"));
+        responseBufferSize = NumUtil.getInt(properties.getProperty(RESPONSE_BUFFER_SIZE, "65536"));
+        zeroCopyThreshold = Long.parseLong(properties.getProperty(ZERO_COPY_THRESHOLD, "65536").trim());
+        staticCache = new StaticFileCache(documentRoot,
+                Long.parseLong(properties.getProperty(STATIC_CACHE_SIZE, "0").trim()), zeroCopyThreshold - 1);
+        queueDepth = NumUtil.getInt(properties.getProperty(QUEUE_DEPTH, "0"));
+        loadShedder = new LoadShedder(properties.getProperty(OVERLOAD_POLICY, LoadShedder.REJECT).trim(),
+                NumUtil.getInt(properties.getProperty(RETRY_AFTER, "1")));
+        executor = properties.getProperty(EXECUTOR, EXECUTOR_FIXED).trim();
+        if (!executor.equals(EXECUTOR_FIXED) && !executor.equals(EXECUTOR_VIRTUAL)) {
+            throw new RuntimeException("Unknown executor: " + executor);
+        }
 
         final Path mimeConfig = Paths.get(properties.getProperty(MIME_CONFIG));
         Properties mimeProperties = new Properties();
@@ -126,6 +217,10 @@ public class SmartHttpServer {
             throw new RuntimeException("Couldn't load mimes config.");
         }
 
+        compression = new Compression(mimeProperties.getProperty(COMPRESSIBLE_TYPES, ""),
+                NumUtil.getInt(properties.getProperty(COMPRESSION_THRESHOLD, "1024")));
+        mimeProperties.remove(COMPRESSIBLE_TYPES);
+
         for (Entry<Object, Object> e : mimeProperties.entrySet()) {
             mimeTypes.put(e.getKey().toString(), e.getValue().toString());
         }
@@ -173,38 +268,172 @@ public class SmartHttpServer {
     }
 
     /**
-     * Starts the server. Creates a new server thread (if not already created) and starts it
+     * Starts the server. Creates the server threads (if not already created) and starts them. Depending on the
+     * configured I/O mode, server threads are either blocking {@link ServerThread}s or {@link SelectorThread}s.
+     * <p>
+     * Each of the <code>server.acceptors</code> server threads gets it's own thread pool. Where the platform supports
+     * <code>SO_REUSEPORT</code>, each one also binds it's own socket and the kernel spreads new connections between
+     * them. Otherwise they all accept from a single shared socket.
      */
     private synchronized void start() {
-        threadPool = Executors.newFixedThreadPool(workerThreads);
-
-        if (serverThread == null) {
-            serverThread = new ServerThread();
-            serverThread.setDaemon(true);
-        }
         if (garbageThread == null) {
             garbageThread = new GarbageThread();
             garbageThread.setDaemon(true);
         }
-
         if (!garbageThread.isAlive()) {
             garbageThread.start();
         }
-        if (!serverThread.isAlive()) {
-            serverThread.start();
+        staticCache.start();
+
+        if (threadPools.isEmpty()) {
+            createServerThreads();
+        }
+
+        for (ServerThread serverThread : serverThreads) {
+            if (!serverThread.isAlive()) {
+                serverThread.start();
+            }
+        }
+        for (SelectorThread selectorThread : selectorThreads) {
+            if (!selectorThread.isAlive()) {
+                selectorThread.start();
+            }
         }
     }
 
     /**
-     * Stops this server. Stops the server thread and shuts down the thread pool.
+     * Opens server sockets and creates a server thread and a thread pool for each of the acceptors.
+     */
+    private void createServerThreads() {
+        final boolean reusePort = acceptors > 1 && isReusePortSupported();
+        final int poolSize = Math.max(1, (workerThreads + acceptors - 1) / acceptors);
+        final boolean nio = ioMode.equals(IO_NIO);
+
+        ServerSocketChannel sharedChannel = null;
+        for (int i = 0; i < acceptors; i++) {
+            ServerSocketChannel serverChannel;
+            if (reusePort) {
+                serverChannel = openServerChannel(true, nio);
+            } else {
+                if (sharedChannel == null) {
+                    sharedChannel = openServerChannel(false, nio);
+                }
+                serverChannel = sharedChannel;
+            }
+
+            final ExecutorService threadPool = createThreadPool(poolSize);
+            threadPools.add(threadPool);
+
+            if (nio) {
+                SelectorThread selectorThread = new SelectorThread(serverChannel, threadPool, keepAliveTimeout * 1000,
+                        maxKeepAliveRequests, maxHeaderSize, maxHeaderCount, heartbeatInterval * 1000L,
+                        eventBufferSize, maxConcurrentStreams, requestHandler);
+                selectorThread.setDaemon(true);
+                selectorThreads.add(selectorThread);
+            } else {
+                ServerThread serverThread = new ServerThread(serverChannel, threadPool);
+                serverThread.setDaemon(true);
+                serverThreads.add(serverThread);
+            }
+        }
+    }
+
+    /**
+     * Opens a server socket channel bound to the configured port.
+     * 
+     * @param reusePort whether other channels can bind to the same port
+     * @param nio whether channel should be non-blocking
+     * @return bound channel
+     */
+    private ServerSocketChannel openServerChannel(boolean reusePort, boolean nio) {
+        try {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            if (reusePort) {
+                serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(!nio);
+            return serverChannel;
+        } catch (IOException e) {
+            throw new RuntimeException("Can't open a server socket on port " + port + "");
+        }
+    }
+
+    /**
+     * Checks if server sockets on this platform support <code>SO_REUSEPORT</code>.
+     * 
+     * @return <code>true</code> if they do, <code>false</code> otherwise
+     */
+    private static boolean isReusePortSupported() {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates the pool on which clients are served. If <code>server.executor</code> is set to 'virtual', each task runs
+     * on it's own virtual thread. Virtual threads are looked up reflectively so the server still runs on JVMs that
+     * don't have them, in which case a fixed thread pool is used instead.
+     * <p>
+     * If <code>server.queueDepth</code> is positive, fixed thread pool can queue only that many tasks. What happens to
+     * the tasks that don't fit is decided by the {@link LoadShedder}.
+     * 
+     * @param size number of threads in a fixed thread pool
+     * @return thread pool
+     */
+    private ExecutorService createThreadPool(int size) {
+        if (executor.equals(EXECUTOR_VIRTUAL)) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads aren't supported by this JVM, using a fixed thread pool.");
+            }
+        }
+        if (queueDepth <= 0) {
+            return Executors.newFixedThreadPool(size);
+        }
+        return new ThreadPoolExecutor(size, size, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueDepth), loadShedder);
+    }
+
+    /**
+     * Prints server statistics to the standard output.
+     */
+    private void printStatistics() {
+        System.out.println("Requests shed because of overload: " + loadShedder.getShedCount());
+        System.out.println("Sessions: " + sessions.size());
+        System.out.println("Static file cache: " + staticCache.getHitCount() + " hits, " + staticCache.getMissCount()
+                + " misses, " + staticCache.getEvictionCount() + " evictions, " + staticCache.getSize() + " bytes");
+    }
+
+    /**
+     * Stops this server. Stops the server threads, shuts down the thread pools and flushes the sessions. Server that
+     * was already stopped isn't stopped again.
      */
     protected synchronized void stop() {
-        serverThread.kill();
-        threadPool.shutdown();
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+
+        for (ServerThread serverThread : serverThreads) {
+            serverThread.kill();
+        }
+        for (SelectorThread selectorThread : selectorThreads) {
+            selectorThread.kill();
+        }
+        for (ExecutorService threadPool : threadPools) {
+            threadPool.shutdown();
+        }
+        sessions.flush();
     }
 
     /**
-     * This thread is used to periodically check and remove expired sessions.
+     * This thread is used to periodically check and remove expired sessions. Session store keeps it's sessions in the
+     * order they expire, so a check only looks at the sessions that have expired.
      * 
      * @author Filip Hrenić
      * @version 1.0
@@ -216,15 +445,9 @@ public class SmartHttpServer {
             //noinspection InfiniteLoopStatement
             while (true) {
 
-                // do something (remove expired sessions)
-                final Set<String> sids = new HashSet<>(sessions.keySet());
-                for (String sid : sids) {
-                    SessionMapEntry entry = sessions.get(sid);
-                    final long currTime = new Date().getTime() / 1000;
-                    if (entry.validUntil < currTime) {
-                        sessions.remove(sid);
-                    }
-                }
+                // do something (remove expired sessions and write the rest to disk, if they are kept there)
+                sessions.removeExpired(System.currentTimeMillis() / 1000);
+                sessions.flush();
 
                 // sleep five minutes
                 try {
@@ -244,208 +467,910 @@ public class SmartHttpServer {
      */
     class ServerThread extends Thread {
 
-        private boolean finished;
+        private final ServerSocketChannel serverChannel;
+        private final ExecutorService threadPool;
+        private volatile boolean finished;
+
+        /**
+         * Creates a new {@link ServerThread}.
+         * 
+         * @param serverChannel bound channel from which clients are accepted, possibly shared with other threads
+         * @param threadPool pool on which accepted clients are served
+         */
+        public ServerThread(ServerSocketChannel serverChannel, ExecutorService threadPool) {
+            this.serverChannel = serverChannel;
+            this.threadPool = threadPool;
+        }
 
         @Override
         public void run() {
             finished = false;
             try {
-                ServerSocket serverSocket = new ServerSocket(port);
-
                 while (true) {
-                    Socket client = serverSocket.accept();
+                    Socket client = serverChannel.accept().socket();
                     if (finished) {
                         break;
                     }
-                    ClientWorker cw = new ClientWorker(client);
-                    threadPool.submit(cw);
+                    ClientWorker cw = new ClientWorker(client, threadPool);
+                    threadPool.execute(cw);
                 }
 
-                serverSocket.close();
+                serverChannel.close();
             } catch (IOException e) {
-                throw new RuntimeException("Can't open a server socket on port " + port + "");
+                throw new RuntimeException("Error while accepting clients on port " + port + "");
             }
         }
 
         /**
          * Makes this thread to shutdown.
          */
-        public synchronized void kill() {
+        public void kill() {
             finished = true;
         }
     }
 
     /**
      * This class represents a client on this server. It has a single public method that declares what to do when some
-     * client connects.
+     * client connects. Requests are served one after another on the same socket for as long as the client keeps the
+     * connection alive. If the client pipelines requests, they are processed in parallel on the thread pool and their
+     * responses are written in order through a {@link ResponseQueue}.
      * 
      * @author Filip Hrenić
      * @version 1.0
      */
-    private class ClientWorker implements Runnable {
+    private class ClientWorker implements Sheddable, BodySource, EventTarget {
 
         private final Socket csocket;
-        private PushbackInputStream istream;
-        private OutputStream ostream;
-        private String version;
-        private String method;
-
-        private final Map<String, String> params = new HashMap<>();
-        private Map<String, String> permParams = null;
-        private final List<RCCookie> outputCookies = new ArrayList<>();
+        private final ExecutorService threadPool;
+        private InputStream istream;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final RequestParser parser = new RequestParser(maxHeaderSize, maxHeaderCount);
+        private ChannelResponseStream ostream;
+        private ResponseQueue.ResponseSink sink;
+        private ResponseQueue pipeline;
+        private volatile SseChannel events;
 
         /**
          * Creates a new {@link ClientWorker} that works with given client socket.
          * 
          * @param csocket client's socket
+         * @param threadPool pool on which pipelined requests are processed
          */
-        public ClientWorker(Socket csocket) {
+        public ClientWorker(Socket csocket, ExecutorService threadPool) {
             this.csocket = csocket;
+            this.threadPool = threadPool;
         }
 
         @Override
         public void run() {
-
-            // read clients request
-            List<String> request;
             try {
-                istream = new PushbackInputStream(csocket.getInputStream());
-                ostream = csocket.getOutputStream();
-                request = readRequest();
+                csocket.setSoTimeout(keepAliveTimeout * 1000);
+                istream = csocket.getInputStream();
+                ostream = new ChannelResponseStream(csocket);
+                sink = new ResponseQueue.ResponseSink() {
+
+                    @Override
+                    public void send(ResponseBuffer response, boolean close) throws IOException {
+                        response.writeTo(ostream);
+                        ostream.flush();
+                    }
+
+                    @Override
+                    public void sendPart(ResponseBuffer part) throws IOException {
+                        // socket blocks while the client doesn't read, so this thread waits for it
+                        part.writeTo(ostream);
+                        ostream.flush();
+                    }
+                };
+                pipeline = new ResponseQueue(requestHandler, sink);
+
+                for (int served = 1;; served++) {
+                    // read clients request, stop if client closed the connection
+                    if (!readRequest()) {
+                        break;
+                    }
+
+                    final HttpRequest request = parser.getRequest();
+                    if (maxConcurrentStreams > 0
+                            && (Http2Connection.isPreface(request) || Http2Connection.isUpgrade(request))) {
+                        // responses to the earlier requests must be written before the connection changes protocol
+                        pipeline.drain();
+                        serveHttp2(request);
+                        break;
+                    }
+                    if (request != null) {
+                        request.setEventTarget(this);
+                        if (request.hasBody()) {
+                            request.setBodySource(this);
+                        }
+                    }
+                    final boolean keepAlive = served < maxKeepAliveRequests;
+                    final boolean pipelined = readBuffer.position() > 0 || istream.available() > 0
+                            || !pipeline.isEmpty();
+
+                    // body follows the header on the same stream, so requests with one are never pipelined
+                    if (request != null && request.isIdempotent() && !request.hasBody() && pipelined) {
+                        threadPool.execute(pipeline.add(request, keepAlive));
+                    } else {
+                        // responses to the earlier requests must be written first
+                        pipeline.drain();
+                        // this thread owns the socket, so it waits even for an asynchronous worker
+                        if (pipeline.isClosed()
+                                || !requestHandler.handle(request, ostream, keepAlive).toCompletableFuture().join()) {
+                            break;
+                        }
+                    }
+
+                    if (!keepAlive || request == null || !request.isKeepAliveRequested() || pipeline.isClosed()
+                            || events != null) {
+                        break;
+                    }
+                }
+            } catch (SocketTimeoutException ignored) {
+                // client was idle for too long
             } catch (IOException e) {
                 throw new RuntimeException("Exception occured while reading client's request.");
+            } finally {
+                if (pipeline != null) {
+                    pipeline.drain();
+                }
+                if (events != null) {
+                    streamEvents();
+                }
+                closeSocket();
+            }
+        }
+
+        /**
+         * Serves the connection over HTTP/2, once it started with the preface or was upgraded. This thread reads the
+         * frames, streams are processed on the thread pool and their frames are written by whichever thread sends
+         * them. Connection is closed once the client was idle for the keep-alive timeout, with no stream open.
+         *
+         * @param request request line of the preface or the request that upgraded the connection
+         * @throws IOException if there was a problem with reading
+         */
+        private void serveHttp2(HttpRequest request) throws IOException {
+            if (readBuffer.capacity() < Http2Connection.FRAME_BUFFER_SIZE) {
+                ByteBuffer bigger = ByteBuffer.allocate(Http2Connection.FRAME_BUFFER_SIZE);
+                readBuffer.flip();
+                bigger.put(readBuffer);
+                readBuffer = bigger;
             }
 
+            final Http2Connection http2 = new Http2Connection(sink, threadPool, requestHandler, maxHeaderSize,
+                    maxHeaderCount, maxConcurrentStreams, keepAliveTimeout * 1000L);
+            try {
+                boolean open = http2.start(request) && http2.process(readBuffer);
+                while (open) {
+                    final int read;
+                    try {
+                        read = istream.read(readBuffer.array(), readBuffer.position(), readBuffer.remaining());
+                    } catch (SocketTimeoutException e) {
+                        if (http2.isIdle()) {
+                            return;
+                        }
+                        continue;
+                    }
+                    if (read == -1) {
+                        return;
+                    }
+                    readBuffer.position(readBuffer.position() + read);
+                    open = http2.process(readBuffer);
+                }
+            } finally {
+                http2.close();
+            }
+        }
+
+        /**
+         * Writes the events of the event stream as they are queued, until the stream is closed. Socket is blocking, so
+         * this thread does the writing and the threads that send the events only queue them.
+         */
+        private void streamEvents() {
+            final long heartbeatMillis = heartbeatInterval * 1000L;
+            try {
+                while (true) {
+                    final ByteBuffer event = events.take(heartbeatMillis);
+                    if (event == null) {
+                        if (!events.isOpen()) {
+                            return;
+                        }
+                        events.offer(SseEvent.HEARTBEAT.getEncoded());
+                        continue;
+                    }
+
+                    ostream.write(event.array(), event.position(), event.remaining());
+                    ostream.flush();
+                    events.remove();
+                }
+            } catch (IOException ignored) {
+                // client is gone
+            } finally {
+                events.abort();
+            }
+        }
+
+        /**
+         * Opens the event stream on the worker's thread. Evicted client's socket is closed at once, which also
+         * unblocks this thread if it's stuck writing to the client.
+         */
+        @Override
+        public SseChannel openEventStream() {
+            if (events != null) {
+                throw new RuntimeException("Connection already has an event stream.");
+            }
+
+            events = new SseChannel(eventBufferSize, new Runnable() {
+
+                @Override
+                public void run() {
+                    if (events.isEvicted()) {
+                        closeSocket();
+                    }
+                }
+            });
+            return events;
+        }
+
+        /**
+         * Server is overloaded, so instead of serving the client, given response is sent to it and the connection is
+         * closed.
+         */
+        @Override
+        public void shed(byte[] response) {
+            try {
+                csocket.getOutputStream().write(response);
+            } catch (IOException ignored) {
+            } finally {
+                closeSocket();
+            }
+        }
+
+        @Override
+        public ByteBuffer buffer() {
+            return readBuffer;
+        }
+
+        @Override
+        public int fill() throws IOException {
+            final int read = istream.read(readBuffer.array(), readBuffer.position(), readBuffer.remaining());
+            if (read > 0) {
+                readBuffer.position(readBuffer.position() + read);
+            }
+            return read;
+        }
+
+        @Override
+        public void sendContinue() throws IOException {
+            ostream.write(HeaderTemplates.CONTINUE);
+            ostream.flush();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        /**
+         * Closes the client socket.
+         */
+        private void closeSocket() {
+            try {
+                csocket.close();
+            } catch (IOException e) {
+                closeSocket();
+            }
+        }
+
+        /**
+         * Reads from the client until a whole request header is read. Bytes that follow the header are kept, they are
+         * the beginning of the next request.
+         * 
+         * @return <code>true</code> if a request was read, <code>false</code> if client closed the connection
+         * @throws IOException if there was a problem with reading
+         */
+        private boolean readRequest() throws IOException {
+            while (!parser.parse(readBuffer)) {
+                if (!readBuffer.hasRemaining()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                    readBuffer.flip();
+                    bigger.put(readBuffer);
+                    readBuffer = bigger;
+                }
+
+                final int read = istream.read(readBuffer.array(), readBuffer.position(), readBuffer.remaining());
+                if (read == -1) {
+                    return false;
+                }
+                readBuffer.position(readBuffer.position() + read);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * This class processes a single request, no matter how it was read from the client. The whole response is written
+     * to the given output stream.
+     * 
+     * @author Filip Hrenić
+     * @version 1.0
+     */
+    private class RequestProcessor {
+
+        private final HttpRequest request;
+        private final OutputStream ostream;
+        private final boolean keepAliveAllowed;
+        private boolean keepAlive;
+        private String version;
+        private String method;
+        private RequestContext context;
+        private RequestBody body;
+        private CompletionStage<?> workerStage;
+
+        private LazyParameters params = LazyParameters.query(null);
+        private LazyParameters cookies = LazyParameters.cookies(null);
+        private Map<String, String> permParams = null;
+        private final List<RCCookie> outputCookies = new ArrayList<>();
+
+        /**
+         * Creates a new {@link RequestProcessor}.
+         * 
+         * @param request parsed request, <code>null</code> if the request line was malformed
+         * @param ostream stream to which response is written
+         * @param keepAliveAllowed whether the connection may be kept open after this request
+         */
+        public RequestProcessor(HttpRequest request, OutputStream ostream, boolean keepAliveAllowed) {
+            this.request = request;
+            this.ostream = ostream;
+            this.keepAliveAllowed = keepAliveAllowed;
+        }
+
+        /**
+         * Processes the request and writes the whole response. Response of an asynchronous worker is finished by
+         * whichever thread completes the worker's stage.
+         * 
+         * @return stage that completes with <code>true</code> if the connection can be used for another request,
+         *         <code>false</code> otherwise
+         */
+        public CompletionStage<Boolean> process() {
+            try {
+                serve();
+            } catch (RuntimeException e) {
+                release();
+                throw e;
+            }
+
+            if (workerStage == null) {
+                return CompletableFuture.completedFuture(finish(null));
+            }
+            return workerStage.handle(new BiFunction<Object, Throwable, Boolean>() {
+
+                @Override
+                public Boolean apply(Object result, Throwable error) {
+                    return finish(error);
+                }
+            });
+        }
+
+        /**
+         * Finishes the response. If the worker failed, response is replaced by an error, unless a part of it was
+         * already sent.
+         * 
+         * @param error exception with which the worker failed, <code>null</code> if it didn't
+         * @return <code>true</code> if the connection can be used for another request, <code>false</code> otherwise
+         */
+        private boolean finish(Throwable error) {
+            try {
+                if (error != null) {
+                    keepAlive = false;
+                    if (context.isHeaderGenerated()) {
+                        return false;
+                    }
+                    sendErrorStatusCode(INTERNAL_SERVER_ERROR);
+                }
+
+                try {
+                    context.finish();
+                } catch (IOException e) {
+                    return false;
+                }
+                return context.isKeepAlive() && bodyDone();
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * Releases whatever the request needed: temporary files of the uploaded parts and the body source.
+         */
+        private void release() {
+            params.release();
+            if (request != null && request.getBodySource() != null) {
+                request.getBodySource().close();
+            }
+        }
+
+        /**
+         * Reads whatever the worker left of the request body, so the next request can be read. Body that is too
+         * large to be worth reading isn't read, connection is closed instead.
+         * 
+         * @return <code>true</code> if the whole body was read
+         */
+        private boolean bodyDone() {
+            if (request == null || !request.hasBody()) {
+                return true;
+            }
+            return body != null && body.discard(MAX_DISCARDED_BODY);
+        }
+
+        /**
+         * Opens the request body. Body that won't be read is answered with an error, and the connection is closed
+         * since it's not read up to it's end.
+         * 
+         * @return <code>true</code> if the body can be read
+         */
+        private boolean openBody() {
+            final long length = request.isChunked() ? -1 : request.getContentLength();
+            final boolean unknownCoding = request.getHeader(HttpRequest.TRANSFER_ENCODING) != null
+                    && !request.isChunked();
+            if (length == HttpRequest.INVALID_LENGTH || unknownCoding || request.getBodySource() == null) {
+                keepAlive = false;
+                sendErrorStatusCode(BAD_REQUEST);
+                return false;
+            }
+            if (length > maxBodySize) {
+                keepAlive = false;
+                sendErrorStatusCode(PAYLOAD_TOO_LARGE);
+                return false;
+            }
+
+            body = new RequestBody(request.getBodySource(), length, maxBodySize,
+                    "100-continue".equalsIgnoreCase(request.getHeader(HttpRequest.EXPECT)));
+            return true;
+        }
+
+        /**
+         * Serves the request. Every branch creates a request context, through which response is written.
+         */
+        private void serve() {
+
             // check if the first line is ok
-            String[] firstLine = request.get(0).split(" ");
-            if (firstLine.length != 3) {
+            if (request == null) {
                 sendErrorStatusCode(BAD_REQUEST);
                 return;
             }
-            method = firstLine[0];
-            String requestedPath = firstLine[1];
-            version = firstLine[2];
+            method = request.getMethod();
+            String requestedPath = request.getTarget();
+            version = request.getVersion();
 
-            if (!method.equals("GET") || !(version.equals("HTTP/1.0") || version.equals("HTTP/1.1"))) {
+            if (!(method.equals("GET") || method.equals("HEAD") || method.equals("POST") || method.equals("PUT"))
+                    || !(version.equals("HTTP/1.0") || version.equals("HTTP/1.1") || version.equals("HTTP/2.0"))) {
                 sendErrorStatusCode(BAD_REQUEST);
                 return;
             }
+            keepAlive = keepAliveAllowed && request.isKeepAliveRequested();
+
+            if (request.hasBody() && !openBody()) {
+                return;
+            }
 
             // check the session
-            checkSession(request);
+            checkSession();
 
             // get absolute path resolved to the document root path
             String path = extractPath(requestedPath);
+            if (body != null) {
+                params.setBody(body, request.getHeader(HttpRequest.CONTENT_TYPE), maxFormSize, multipartThreshold);
+            }
             Path reqPath = Paths.get(documentRoot + path);
             if (!reqPath.startsWith(documentRoot)) {
                 sendErrorStatusCode(FORBIDDEN);
                 return;
             }
 
-            RequestContext rc = new RequestContext(ostream, params, permParams, outputCookies);
+            RequestContext rc = createContext();
 
             if (path.startsWith("/ext/")) {
                 final String workerName = path.substring(5); // 4 is index of '/'
-                getWorkerByName(WORKERS_PACKAGE + "" + workerName).processRequest(rc);
+                workerStage = getWorkerByName(WORKERS_PACKAGE + "" + workerName).processRequest(rc);
                 return;
             }
 
             final String potentialWorker = "/" + reqPath.getFileName().toString();
-            IWebWorker iww = workersMap.get(potentialWorker);
+            IAsyncWebWorker iww = workersMap.get(potentialWorker);
             if (iww != null) {
-                iww.processRequest(rc);
+                workerStage = iww.processRequest(rc);
                 return;
             }
 
             // at this point it should be a file
-            final boolean exists = Files.exists(reqPath);
-            final boolean isFile = !Files.isDirectory(reqPath);
-            final boolean isRead = Files.isReadable(reqPath);
-
-            if (!(exists && isFile && isRead)) {
-                sendErrorStatusCode(404);
-                return;
-            }
-
             final Path file = reqPath.getFileName();
             final String fileName = file.toString();
             final String extension = fileName.substring(fileName.lastIndexOf('.') + 1);
+            final boolean script = extension.equals("smscr");
+
+            // only scripts can do something with a form
+            if (!script && !(method.equals("GET") || method.equals("HEAD"))) {
+                sendErrorStatusCode(METHOD_NOT_ALLOWED);
+                return;
+            }
 
             String mime = mimeTypes.get(extension);
             if (mime == null) {
                 mime = DEFAULT_MIME_TYPE;
             }
 
+            // small files are usually cached, which spares the file system checks below
+            final StaticFileCache.Entry cached = script ? null : staticCache.get(reqPath);
+            if (cached != null && cached.getBody() != null) {
+                serveEntry(rc, cached, mime);
+                return;
+            }
+            final long generation = staticCache.getGeneration();
+
+            final boolean exists = Files.exists(reqPath);
+            final boolean isFile = !Files.isDirectory(reqPath);
+            final boolean isRead = Files.isReadable(reqPath);
+
+            if (!(exists && isFile && isRead)) {
+                sendErrorStatusCode(404);
+                return;
+            }
+
             rc.setStatusCode(OK_STATUS);
 
-            if (extension.equals("smscr")) {
+            if (script) {
                 new SmartScriptEngine(getDocNode(reqPath), rc).execute();
             } else {
-                rc.setMimeType(mime);
                 try {
-                    byte[] data = Files.readAllBytes(reqPath);
-                    rc.write(data);
+                    final long size = Files.size(reqPath);
+                    final long lastModified = Files.getLastModifiedTime(reqPath).toMillis();
+                    if (size < zeroCopyThreshold && request.getHeader(HttpRequest.RANGE) == null) {
+                        final StaticFileCache.Entry entry = createEntry(Files.readAllBytes(reqPath), mime,
+                                lastModified);
+                        staticCache.put(reqPath, entry, generation);
+                        serveEntry(rc, entry, mime);
+                    } else {
+                        serveFile(rc, reqPath, mime, size, lastModified, cached, generation);
+                    }
                 } catch (IOException e) {
                     throw new RuntimeException("Error while writing to output stream or reading file.");
                 }
             }
+        }
+
+        /**
+         * Serves a static file from memory. Response is <code>304 Not Modified</code> if the client's copy is still
+         * valid.
+         * 
+         * @param rc request context
+         * @param entry response for the file
+         * @param mime mime type of the file
+         */
+        private void serveEntry(RequestContext rc, StaticFileCache.Entry entry, String mime) {
+            rc.setETag(entry.getETag());
+            rc.setLastModified(entry.getLastModified());
+            if (rc.isNotModified()) {
+                return;
+            }
 
-            closeSocket();
+            final byte[] body = entry.getBody();
+            final List<ByteRange> ranges = requestedRanges(body.length, entry.getLastModified(), entry.getETag());
+            if (ranges == null) {
+                writeEntry(rc, entry);
+                return;
+            }
+
+            try {
+                writeRanges(rc, ranges, mime, body.length, body, null);
+            } catch (IOException e) {
+                throw new RuntimeException("Error while writing to output stream.");
+            }
         }
 
         /**
-         * Checks this session.
+         * Serves a static file straight from the file system. Response is <code>304 Not Modified</code> if the
+         * client's copy is still valid.
          * 
-         * @param headerLines lines of the request that was sent
+         * @param rc request context
+         * @param file requested file
+         * @param mime mime type of the file
+         * @param size file size
+         * @param lastModified when the file was last modified, in milliseconds since the epoch
+         * @param cached cached compressed variant of the file, can be <code>null</code>
+         * @param generation cache generation from before the file was checked
+         * @throws IOException if there was a problem with reading the file or writing to output stream
          */
-        private synchronized void checkSession(List<String> headerLines) {
-            String sidCandidate = null;
+        private void serveFile(RequestContext rc, Path file, String mime, long size, long lastModified,
+                StaticFileCache.Entry cached, long generation) throws IOException {
+            final String etag = fileETag(size, lastModified);
+            rc.setETag(etag);
+            rc.setLastModified(lastModified);
+            if (rc.isNotModified()) {
+                return;
+            }
+
+            final List<ByteRange> ranges = requestedRanges(size, lastModified, etag);
+            if (ranges != null) {
+                writeRanges(rc, ranges, mime, size, null, file);
+                return;
+            }
 
-            for (String s : headerLines) {
-                if (s.startsWith("Cookie:")) {
-                    String[] cookies = s.replaceFirst("Cookie:\\s+", "").split(";");
-                    for (String c : cookies) {
-                        String[] cookie = c.split("=");
+            final String encoding = Compression.negotiate(request.getHeader(HttpRequest.ACCEPT_ENCODING));
+            if (encoding != null && size >= compression.getThreshold() && compression.isCompressible(mime)) {
+                serveCompressed(rc, file, mime, size, lastModified, encoding, cached, generation);
+                return;
+            }
 
-                        String cookieName = cookie[0];
-                        String cookieValue = cookie[1].replace("\"", "");
+            rc.setMimeType(mime);
+            rc.setHeader("Accept-Ranges", "bytes");
+            rc.setContentLength(size);
+            rc.write(file, 0, size);
+        }
 
-                        if (cookieName.equals("sid")) {
-                            sidCandidate = cookieValue;
-                        }
+        /**
+         * Serves a static file that is too large to be cached compressed. Compressed variant is cached on it's own if
+         * the cache can hold it, otherwise the file is compressed while it's being written.
+         * 
+         * @param rc request context
+         * @param file requested file
+         * @param mime mime type of the file
+         * @param size file size
+         * @param lastModified when the file was last modified, in milliseconds since the epoch
+         * @param encoding content coding the client accepts
+         * @param cached cached compressed variant of the file, can be <code>null</code>
+         * @param generation cache generation from before the file was checked
+         * @throws IOException if there was a problem with reading the file or writing to output stream
+         */
+        private void serveCompressed(RequestContext rc, Path file, String mime, long size, long lastModified,
+                String encoding, StaticFileCache.Entry cached, long generation) throws IOException {
+            if (encoding.equals(Compression.GZIP) && staticCache.acceptsCompressed(size)) {
+                final String etag = fileETag(size, lastModified);
+                StaticFileCache.Entry entry = cached;
+                if (entry == null || !entry.getETag().equals(etag)) {
+                    entry = new StaticFileCache.Entry(null, null, etag, lastModified,
+                            createCompressedEntry(Compression.gzip(file, size), mime, etag, lastModified));
+                    staticCache.put(file, entry, generation);
+                }
+                writeEntry(rc, entry);
+                return;
+            }
+
+            rc.setMimeType(mime);
+            rc.setHeader("Accept-Ranges", "bytes");
+            rc.write(file, 0, size);
+        }
+
+        /**
+         * Creates the request context through which the response is written.
+         * 
+         * @return request context
+         */
+        private RequestContext createContext() {
+            context = new RequestContext(ostream, params, permParams, outputCookies);
+            if (permParams == null) {
+                context.setSessionStarter(new Supplier<Map<String, String>>() {
+
+                    @Override
+                    public Map<String, String> get() {
+                        permParams = createCookie(System.currentTimeMillis() / 1000).getMap();
+                        return permParams;
                     }
+                });
+            }
+            context.setInputCookies(cookies);
+            context.setInputStream(body);
+            context.setKeepAlive(keepAlive);
+            context.setBufferSize(responseBufferSize);
+            if (request != null) {
+                context.setCompression(compression,
+                        Compression.negotiate(request.getHeader(HttpRequest.ACCEPT_ENCODING)));
+                context.setConditions(request.getHeader(HttpRequest.IF_NONE_MATCH),
+                        request.getHeader(HttpRequest.IF_MODIFIED_SINCE));
+                context.setChunkSize(request.getVersion().equals("HTTP/1.1") ? chunkSize : 0);
+                context.setMethod(request.getMethod());
+                context.setEventTarget(request.getEventTarget());
+            }
+            return context;
+        }
+
+        /**
+         * Creates the response for a static file. If the file is long enough text, it's compressed variant is created
+         * as well.
+         * 
+         * @param body file contents
+         * @param mime mime type of the file
+         * @param lastModified when the file was last modified, in milliseconds since the epoch
+         * @return response for the file
+         */
+        private StaticFileCache.Entry createEntry(byte[] body, String mime, long lastModified) {
+            final boolean compressible = compression.isCompressible(mime);
+            final String etag = fileETag(body.length, lastModified);
+
+            StaticFileCache.Entry compressed = null;
+            if (compressible && body.length >= compression.getThreshold()) {
+                final byte[] gzipped = Compression.gzip(body);
+                if (gzipped.length < body.length) {
+                    compressed = createCompressedEntry(gzipped, mime, etag, lastModified);
                 }
             }
 
-            SessionMapEntry entry;
+            return new StaticFileCache.Entry(RequestContext.encodeHeaderFields(OK_STATUS, "OK", mime,
+                    RequestContext.DEFAULT_ENCODING, body.length, null, compressible), body, etag, lastModified,
+                    compressed);
+        }
 
-            if (sidCandidate == null || (entry = sessions.get(sidCandidate)) == null) {
-                entry = createCookie();
-            } else {
-                long currTime = new Date().getTime() / 1000;
-                entry.setValidUntil(currTime + sessionTimeout);
+        /**
+         * Creates the gzip compressed variant of the response for a static file.
+         * 
+         * @param gzipped compressed file contents
+         * @param mime mime type of the file
+         * @param etag entity tag of the file
+         * @param lastModified when the file was last modified, in milliseconds since the epoch
+         * @return compressed response for the file
+         */
+        private StaticFileCache.Entry createCompressedEntry(byte[] gzipped, String mime, String etag,
+                long lastModified) {
+            return new StaticFileCache.Entry(RequestContext.encodeHeaderFields(OK_STATUS, "OK", mime,
+                    RequestContext.DEFAULT_ENCODING, gzipped.length, Compression.GZIP, true), gzipped,
+                    RequestContext.encodedETag(etag, Compression.GZIP), lastModified, null);
+        }
+
+        /**
+         * Writes the response for a static file, compressed if the client accepts gzip.
+         * 
+         * @param rc request context
+         * @param entry response for the file
+         */
+        private void writeEntry(RequestContext rc, StaticFileCache.Entry entry) {
+            StaticFileCache.Entry variant = entry;
+            if (entry.getCompressed() != null && Compression.GZIP
+                    .equals(Compression.negotiate(request.getHeader(HttpRequest.ACCEPT_ENCODING)))) {
+                variant = entry.getCompressed();
             }
 
-            permParams = entry.getMap();
+            rc.setHeader("Accept-Ranges", "bytes");
+            rc.setETag(variant.getETag());
+            try {
+                rc.write(variant.getHeader(), variant.getBody());
+            } catch (IOException e) {
+                throw new RuntimeException("Error while writing to output stream.");
+            }
         }
 
         /**
-         * Creates a new new session entry for this session.
+         * Returns the ranges of a static file the client asked for. Ranges are ignored if the <code>If-Range</code>
+         * header doesn't match the file.
          * 
-         * @return session entry
+         * @param length file size
+         * @param lastModified when the file was last modified, in milliseconds since the epoch
+         * @param etag entity tag of the file
+         * @return requested ranges or <code>null</code> if the whole file should be sent
+         */
+        private List<ByteRange> requestedRanges(long length, long lastModified, String etag) {
+            final String range = request.getHeader(HttpRequest.RANGE);
+            if (range == null) {
+                return null;
+            }
+
+            final String ifRange = request.getHeader(HttpRequest.IF_RANGE);
+            if (ifRange != null && !ifRange.startsWith("\"") && !ifRange.startsWith("W/")) {
+                try {
+                    final long since = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME)
+                            .toEpochSecond();
+                    if (since != lastModified / 1000) {
+                        return null;
+                    }
+                } catch (DateTimeParseException e) {
+                    return null;
+                }
+            } else if (ifRange != null && !ifRange.equals(etag)) {
+                // entity tags are compared strongly, so weak ones never match
+                return null;
+            }
+
+            return ByteRange.parse(range, length);
+        }
+
+        /**
+         * Writes the given ranges of a static file. Single range is sent as it is, multiple ones as a
+         * <code>multipart/byteranges</code> body. Ranges are read from the given contents or, if those are
+         * <code>null</code>, from the file itself.
+         * 
+         * @param rc request context
+         * @param ranges requested ranges, empty if none of them could be satisfied
+         * @param mime mime type of the file
+         * @param length file size
+         * @param body file contents, can be <code>null</code>
+         * @param file file, used if there are no contents
+         * @throws IOException if there was a problem with reading the file or writing to output stream
+         */
+        private void writeRanges(RequestContext rc, List<ByteRange> ranges, String mime, long length, byte[] body,
+                Path file) throws IOException {
+            rc.setHeader("Accept-Ranges", "bytes");
+            if (ranges.isEmpty()) {
+                rc.setStatusCode(RANGE_NOT_SATISFIABLE);
+                rc.setStatusText("Range Not Satisfiable");
+                rc.setHeader("Content-Range", "bytes */" + length);
+                rc.setContentLength(0);
+                return;
+            }
+
+            rc.setStatusCode(PARTIAL_CONTENT);
+            rc.setStatusText("Partial Content");
+
+            if (ranges.size() == 1) {
+                final ByteRange range = ranges.get(0);
+                rc.setMimeType(mime);
+                rc.setHeader("Content-Range", range.toContentRange(length));
+                rc.setContentLength(range.getLength());
+                writeRange(rc, range, body, file);
+                return;
+            }
+
+            final String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+            final byte[][] partHeaders = new byte[ranges.size()][];
+            final byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+            long contentLength = end.length;
+            for (int i = 0; i < partHeaders.length; i++) {
+                final ByteRange range = ranges.get(i);
+                partHeaders[i] = ("\r\n--" + boundary + "\r\nContent-Type: " + mime + "\r\nContent-Range: "
+                        + range.toContentRange(length) + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                contentLength += partHeaders[i].length + range.getLength();
+            }
+
+            rc.setMimeType("multipart/byteranges; boundary=" + boundary);
+            rc.setContentLength(contentLength);
+            for (int i = 0; i < partHeaders.length; i++) {
+                rc.write(partHeaders[i]);
+                writeRange(rc, ranges.get(i), body, file);
+            }
+            rc.write(end);
+        }
+
+        /**
+         * Writes a single range of a static file.
+         * 
+         * @param rc request context
+         * @param range range to write
+         * @param body file contents, can be <code>null</code>
+         * @param file file, used if there are no contents
+         * @throws IOException if there was a problem with reading the file or writing to output stream
          */
-        private SessionMapEntry createCookie() {
-            String newSid = ""; // generate new SID
-            for (int i = 0; i < SID_LEN; i++) {
-                newSid += ALPHABET.charAt(sessionRandom.nextInt(ALPHABET.length()));
+        private void writeRange(RequestContext rc, ByteRange range, byte[] body, Path file) throws IOException {
+            if (body != null) {
+                rc.write(body, (int) range.getStart(), (int) range.getLength());
+            } else {
+                rc.write(file, range.getStart(), range.getLength());
             }
+        }
 
-            long validUntil = (new Date().getTime() / 1000) + sessionTimeout;
+        /**
+         * Checks this session. Session store is safe to use from every pool thread at once, and requests of different
+         * sessions don't wait for each other.
+         */
+        private void checkSession() {
+            final String cookieHeader = request.getHeader(HttpRequest.COOKIE);
+            cookies = LazyParameters.cookies(cookieHeader);
+            final String sidCandidate = cookieHeader == null ? null : cookies.get("sid");
+
+            final long currTime = System.currentTimeMillis() / 1000;
+            SessionMapEntry entry = sidCandidate == null ? null : sessions.get(sidCandidate, currTime);
+            // session of a request that doesn't have one is created only once a persistent parameter is set
+            permParams = entry == null ? null : entry.getMap();
+        }
 
-            SessionMapEntry entry = new SessionMapEntry(newSid, validUntil);
-            sessions.put(newSid, entry);
+        /**
+         * Creates a new new session entry for this session. Called once the request sets it's first persistent
+         * parameter.
+         * 
+         * @param currTime current time, in seconds since the epoch
+         * @return session entry
+         */
+        private SessionMapEntry createCookie(long currTime) {
+            SessionMapEntry entry = sessions.create(currTime);
 
-            RCCookie cookie = new RCCookie("sid", newSid, null, address, "/");
+            RCCookie cookie = new RCCookie("sid", entry.getSid(), null, address, "/");
             cookie.setHttpOnly(true);
             outputCookies.add(cookie);
 
@@ -453,7 +1378,8 @@ public class SmartHttpServer {
         }
 
         /**
-         * Splits the given request to check if it has some parameters with it.
+         * Splits the given request to check if it has some parameters with it. Parameters are parsed only once they
+         * are read.
          * 
          * @param request request that was sent
          * @return extracted path
@@ -465,84 +1391,55 @@ public class SmartHttpServer {
                 path = request;
             } else {
                 path = request.substring(0, indexOfSplit);
-                parseParameters(request.substring(indexOfSplit + 1));
+                params = LazyParameters.query(request.substring(indexOfSplit + 1));
             }
             return path;
         }
 
-        /**
-         * Used to parse given paramString as multiple parameters. Puts parsed parameters to the 'params' map of
-         * paramters.
-         * 
-         * @param paramString string to parse
-         */
-        private synchronized void parseParameters(String paramString) {
-            String[] parameters = paramString.split("&");
-            for (String s : parameters) {
-                String[] sSplit = s.split("=");
-                if (sSplit.length != 2) {
-                    throw new RuntimeException("Wrong parameter format: " + s);
-                }
-                params.put(sSplit[0], sSplit[1]);
-            }
-        }
-
-        /**
-         * Closes the client socket.
-         */
-        private void closeSocket() {
-            try {
-                csocket.close();
-            } catch (IOException e) {
-                closeSocket();
-            }
-        }
-
         /**
          * Sends some status code to the client.
          * 
          * @param statusCode status code to send
          */
         private void sendErrorStatusCode(int statusCode) {
-            String statusText = "";
-            statusText += version + " " + statusCode;
+            String statusText;
             switch (statusCode) {
                 case BAD_REQUEST:
-                    statusText += " Bad Request";
+                    statusText = "Bad Request";
                     break;
                 case FORBIDDEN:
-                    statusText += " Forbidden";
+                    statusText = "Forbidden";
                     break;
                 case FILE_NOT_FOUND:
-                    statusText += " File Not Found";
+                    statusText = "File Not Found";
+                    break;
+                case METHOD_NOT_ALLOWED:
+                    statusText = "Method Not Allowed";
+                    break;
+                case PAYLOAD_TOO_LARGE:
+                    statusText = "Payload Too Large";
+                    break;
+                case INTERNAL_SERVER_ERROR:
+                    statusText = "Internal Server Error";
                     break;
                 default:
-                    statusText += " Unknown Error";
+                    statusText = "Unknown Error";
             }
-            statusText += "\n";
+            final byte[] body = (statusCode + " " + statusText + "\n").getBytes(StandardCharsets.UTF_8);
 
-            RequestContext rc = new RequestContext(ostream, params, permParams, outputCookies);
+            RequestContext rc = createContext();
             rc.setStatusCode(statusCode);
             rc.setStatusText(statusText);
+            rc.setMimeType("text/plain");
+            rc.setContentLength(body.length);
+            if (statusCode == METHOD_NOT_ALLOWED) {
+                rc.setHeader("Allow", "GET, HEAD");
+            }
             try {
-                rc.write(statusText);
+                rc.write(body);
             } catch (IOException e) {
                 throw new RuntimeException("Unexpected error ocurred while giving the client some content.");
             }
-
-            closeSocket();
-        }
-
-        /**
-         * Returns a list of lines read from the request.
-         * 
-         * @return list of lines
-         * @throws IOException
-         */
-        private List<String> readRequest() throws IOException {
-            BufferedReader r = new BufferedReader(new InputStreamReader(new BufferedInputStream(istream),
-                    StandardCharsets.ISO_8859_1));
-            return IOUtil.readFromReader(r);
         }
 
         /**
@@ -570,12 +1467,25 @@ public class SmartHttpServer {
     }
 
     /**
-     * Returns a wanted {@link IWebWorker} by it's name from package hr.fer.zemris.java.webserver.workers.
+     * Returns the entity tag of a static file. It's derived from the file's size and modification time, so it changes
+     * whenever the file does, without the file having to be read.
+     * 
+     * @param size file size
+     * @param lastModified when the file was last modified, in milliseconds since the epoch
+     * @return quoted entity tag
+     */
+    private static String fileETag(long size, long lastModified) {
+        return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(size) + "\"";
+    }
+
+    /**
+     * Returns a wanted worker by it's name from package hr.fer.zemris.java.webserver.workers. Synchronous
+     * {@link IWebWorker}s are adapted to the {@link IAsyncWebWorker} interface.
      * 
      * @param fqcn fully qualified class name
      * @return worker
      */
-    private IWebWorker getWorkerByName(String fqcn) {
+    private IAsyncWebWorker getWorkerByName(String fqcn) {
         Object newObject;
         try {
             Class<?> referenceToClass = this.getClass().getClassLoader().loadClass(fqcn);
@@ -583,67 +1493,73 @@ public class SmartHttpServer {
         } catch (ClassNotFoundException | InstantiationException | IllegalAccessException e) {
             throw new RuntimeException("There isn't a class named: " + fqcn);
         }
-        return (IWebWorker) newObject;
-    }
-
-    /**
-     * This class is used to represent one session.
-     * 
-     * @author Filip Hrenić
-     * @version 1.0
-     */
-    private static class SessionMapEntry {
-        @SuppressWarnings("unused")
-        String sid;
-        long validUntil;
-        final Map<String, String> map = new ConcurrentHashMap<>();
-
-        /**
-         * @param sid session id
-         * @param validUntil expiration time
-         */
-        public SessionMapEntry(String sid, long validUntil) {
-            this.sid = sid;
-            this.validUntil = validUntil;
-        }
-
-        /**
-         * Sets the valid-until parameter to the given parameter.
-         * 
-         * @param newValidUntil parameter to set
-         */
-        public void setValidUntil(long newValidUntil) {
-            validUntil = newValidUntil;
+        if (newObject instanceof IAsyncWebWorker) {
+            return (IAsyncWebWorker) newObject;
         }
-
-        /**
-         * Returns this entry's map.
-         * 
-         * @return map
-         */
-        public Map<String, String> getMap() {
-            return map;
+        if (newObject instanceof IWebWorker) {
+            return new WebWorkerAdapter((IWebWorker) newObject);
         }
-
+        throw new RuntimeException("Class isn't a worker: " + fqcn);
     }
 
     private static final String ADDRESS = "server.address";
     private static final String PORT = "server.port";
     private static final String WORKER_THREADS = "server.workerThreads";
+    private static final String ACCEPTORS = "server.acceptors";
     private static final String DOCUMENT_ROOT = "server.documentRoot";
     private static final String MIME_CONFIG = "server.mimeConfig";
     private static final String TIMEOUT = "session.timeout";
+    private static final String SESSION_STORE = "session.store";
+    private static final String SESSION_DIRECTORY = "session.directory";
+    private static final String SESSION_FSYNC = "session.fsync";
     private static final String WORKERS = "server.workers";
+    private static final String IO_MODE = "server.io";
+    private static final String EXECUTOR = "server.executor";
+    private static final String QUEUE_DEPTH = "server.queueDepth";
+    private static final String ZERO_COPY_THRESHOLD = "server.zeroCopyThreshold";
+    private static final String STATIC_CACHE_SIZE = "server.staticCacheSize";
+    private static final String CHUNK_SIZE = "server.chunkSize";
+    private static final String RESPONSE_BUFFER_SIZE = "server.responseBufferSize";
+    private static final String COMPRESSION_THRESHOLD = "server.compressionThreshold";
+    private static final String COMPRESSIBLE_TYPES = "compressible.types";
+    private static final String OVERLOAD_POLICY = "server.overloadPolicy";
+    private static final String RETRY_AFTER = "server.retryAfter";
+    private static final String KEEP_ALIVE_TIMEOUT = "server.keepAliveTimeout";
+    private static final String MAX_KEEP_ALIVE_REQUESTS = "server.maxKeepAliveRequests";
+    private static final String MAX_HEADER_SIZE = "server.maxHeaderSize";
+    private static final String MAX_HEADER_COUNT = "server.maxHeaderCount";
+    private static final String MAX_BODY_SIZE = "server.maxBodySize";
+    private static final String MAX_FORM_SIZE = "server.maxFormSize";
+    private static final String MULTIPART_THRESHOLD = "server.multipartThreshold";
+    private static final String HEARTBEAT_INTERVAL = "server.heartbeatInterval";
+    private static final String EVENT_BUFFER_SIZE = "server.eventBufferSize";
+    private static final String MAX_CONCURRENT_STREAMS = "server.maxConcurrentStreams";
+
+    private static final String IO_BLOCKING = "blocking";
+    private static final String IO_NIO = "nio";
+
+    private static final String SESSION_STORE_MEMORY = "memory";
+    private static final String SESSION_STORE_OFFHEAP = "offheap";
+    private static final String SESSION_STORE_MAPPED = "mapped";
+
+    private static final String EXECUTOR_FIXED = "fixed";
+    private static final String EXECUTOR_VIRTUAL = "virtual";
 
     private static final String DEFAULT_MIME_TYPE = "application/octet-stream";
 
     private static final String WORKERS_PACKAGE = "hr.fer.zemris.java.webserver.workers";
 
-    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVXYZ";
-    private static final int SID_LEN = 20;
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    /** Maximum number of unread body bytes that are read and dropped to keep the connection open. */
+    private static final long MAX_DISCARDED_BODY = 64 * 1024;
 
     private static final int OK_STATUS = 200;
+    private static final int PARTIAL_CONTENT = 206;
     private static final int BAD_REQUEST = 400;
     private static final int FORBIDDEN = 403;
     private static final int FILE_NOT_FOUND = 404;
+    private static final int METHOD_NOT_ALLOWED = 405;
+    private static final int PAYLOAD_TOO_LARGE = 413;
+    private static final int RANGE_NOT_SATISFIABLE = 416;
+    private static final int INTERNAL_SERVER_ERROR = 500;
 }
@@ -0,0 +1,67 @@
+package hr.fer.zemris.webserver;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Group of {@link SseChannel}s that receive the same events. Event is encoded once and all of the subscribers share
+ * it's bytes. Subscribers whose channels are closed, or that were evicted because they didn't keep up, are removed
+ * from the group the next time something is broadcast.
+ * 
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public final class SseBroadcaster {
+
+    private final Set<SseChannel> subscribers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param channel channel to add to the group
+     */
+    public void add(SseChannel channel) {
+        subscribers.add(channel);
+    }
+
+    /**
+     * @param channel channel to remove from the group
+     */
+    public void remove(SseChannel channel) {
+        subscribers.remove(channel);
+    }
+
+    /**
+     * Sends the given event to every subscriber. Sending never blocks, so this can be called from any thread.
+     * 
+     * @param event event to send
+     * @return number of subscribers the event was queued for
+     */
+    public int broadcast(SseEvent event) {
+        int sent = 0;
+        for (Iterator<SseChannel> it = subscribers.iterator(); it.hasNext();) {
+            if (it.next().send(event)) {
+                sent++;
+            } else {
+                it.remove();
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * @return number of subscribers
+     */
+    public int size() {
+        return subscribers.size();
+    }
+
+    /**
+     * Closes the channels of all of the subscribers and removes them from the group.
+     */
+    public void close() {
+        for (Iterator<SseChannel> it = subscribers.iterator(); it.hasNext();) {
+            it.next().close();
+            it.remove();
+        }
+    }
+}
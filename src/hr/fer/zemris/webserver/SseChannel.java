@@ -0,0 +1,275 @@
+package hr.fer.zemris.webserver;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stream of server-sent events to a single client. Events can be sent from any thread and sending never blocks: event
+ * is only queued, and the server writes it once the client's connection can take it. Queue is bounded, a subscriber
+ * that doesn't keep up and lets it fill up is evicted: it's queue is dropped and it's connection is closed.
+ * <p>
+ * Queued events share their encoded bytes with every other subscriber they were sent to, each subscriber only keeps
+ * it's own position within them.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public final class SseChannel {
+
+    private final int maxBuffered;
+    private final Runnable wakeup;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final Queue<ByteBuffer> queue = new ArrayDeque<>();
+    private int buffered;
+    private boolean closed;
+    private boolean evicted;
+    private long lastQueued = System.currentTimeMillis();
+    private long lastProgress = lastQueued;
+
+    /**
+     * Creates a new {@link SseChannel}.
+     *
+     * @param maxBuffered maximum number of queued bytes
+     * @param wakeup called, from whichever thread changed the channel, when the queue stops being empty or the channel
+     *            is closed
+     */
+    SseChannel(int maxBuffered, Runnable wakeup) {
+        this.maxBuffered = maxBuffered;
+        this.wakeup = wakeup;
+    }
+
+    /**
+     * Queues the given event.
+     *
+     * @param event event to send
+     * @return <code>true</code> if the event was queued, <code>false</code> if the channel is closed or the
+     *         subscriber was just evicted because it's queue is full
+     */
+    public boolean send(SseEvent event) {
+        return offer(event.getEncoded());
+    }
+
+    /**
+     * Queues an unnamed event with the given data.
+     *
+     * @param data event data
+     * @return <code>true</code> if the event was queued, <code>false</code> if the channel is closed or the
+     *         subscriber was just evicted because it's queue is full
+     */
+    public boolean send(String data) {
+        return send(new SseEvent(data));
+    }
+
+    /**
+     * Closes the channel. Events that are already queued are still sent, then the connection is closed.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        wakeup.run();
+    }
+
+    /**
+     * @return <code>true</code> if events can still be sent through this channel
+     */
+    public boolean isOpen() {
+        lock.lock();
+        try {
+            return !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues the given bytes, or evicts the subscriber if there isn't enough room for them.
+     *
+     * @param data encoded event
+     * @return <code>true</code> if bytes were queued
+     */
+    boolean offer(byte[] data) {
+        boolean queued;
+        boolean wasEmpty;
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            wasEmpty = queue.isEmpty();
+            queued = buffered + data.length <= maxBuffered;
+            if (queued) {
+                queue.add(ByteBuffer.wrap(data));
+                buffered += data.length;
+                lastQueued = System.currentTimeMillis();
+                if (wasEmpty) {
+                    lastProgress = lastQueued;
+                }
+                available.signalAll();
+            } else {
+                drop(true);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (wasEmpty || !queued) {
+            wakeup.run();
+        }
+        return queued;
+    }
+
+    /**
+     * @return bytes that should be written next, whose position shows how much of them was written, or
+     *         <code>null</code> if nothing is queued
+     */
+    ByteBuffer peek() {
+        lock.lock();
+        try {
+            return queue.peek();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until something is queued or the channel is closed.
+     *
+     * @param timeout maximum time to wait, in milliseconds
+     * @return bytes that should be written next or <code>null</code> if nothing was queued in time or the channel is
+     *         closed and there is nothing left to write
+     */
+    ByteBuffer take(long timeout) {
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (queue.isEmpty() && !closed && nanos > 0) {
+                nanos = available.awaitNanos(nanos);
+            }
+            return queue.peek();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the bytes returned by {@link #peek()} once they are written.
+     */
+    void remove() {
+        lock.lock();
+        try {
+            final ByteBuffer written = queue.poll();
+            if (written != null) {
+                buffered -= written.limit();
+                lastProgress = System.currentTimeMillis();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the channel because it's connection is closed. Queued events are dropped.
+     */
+    void abort() {
+        lock.lock();
+        try {
+            drop(false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the channel is closed and everything queued has been written
+     */
+    boolean isDone() {
+        lock.lock();
+        try {
+            return closed && queue.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the connection has something to do: write queued events or close
+     */
+    boolean needsWrite() {
+        lock.lock();
+        try {
+            return closed || !queue.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the subscriber was evicted, so it's connection should be closed at once
+     */
+    boolean isEvicted() {
+        lock.lock();
+        try {
+            return evicted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param time point in time, in milliseconds
+     * @return <code>true</code> if nothing has been queued since before the given time
+     */
+    boolean isQuietSince(long time) {
+        lock.lock();
+        try {
+            return lastQueued < time;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param time point in time, in milliseconds
+     * @return <code>true</code> if events have been waiting since before the given time without any of them being
+     *         written
+     */
+    boolean isStalledSince(long time) {
+        lock.lock();
+        try {
+            return !queue.isEmpty() && lastProgress < time;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the channel and drops the queued events. Must be called while holding the lock.
+     *
+     * @param evict whether the subscriber is evicted
+     */
+    private void drop(boolean evict) {
+        closed = true;
+        evicted |= evict;
+        queue.clear();
+        buffered = 0;
+        available.signalAll();
+    }
+}
@@ -0,0 +1,89 @@
+package hr.fer.zemris.webserver;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Single server-sent event. Event is encoded once, when it's created, so broadcasting it to many subscribers shares
+ * the same bytes instead of encoding or copying them for each one of them.
+ * 
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public final class SseEvent {
+
+    /** Comment that keeps an idle stream open and detects clients that are gone. */
+    static final SseEvent HEARTBEAT = new SseEvent(":\n\n".getBytes(StandardCharsets.UTF_8));
+
+    private final byte[] encoded;
+
+    /**
+     * Creates an unnamed event with the given data.
+     * 
+     * @param data event data, can span multiple lines
+     */
+    public SseEvent(String data) {
+        this(null, null, data);
+    }
+
+    /**
+     * Creates a new {@link SseEvent}.
+     * 
+     * @param name event name, <code>null</code> for the default <code>message</code> event
+     * @param id event id, <code>null</code> if the event doesn't have one
+     * @param data event data, can span multiple lines
+     */
+    public SseEvent(String name, String id, String data) {
+        StringBuilder sb = new StringBuilder(data.length() + 32);
+        if (name != null) {
+            sb.append("event: ").append(singleLine(name)).append('\n');
+        }
+        if (id != null) {
+            sb.append("id: ").append(singleLine(id)).append('\n');
+        }
+
+        // every line of the data is sent as a field of it's own
+        int start = 0;
+        final int length = data.length();
+        while (true) {
+            int end = start;
+            while (end < length && data.charAt(end) != '\n' && data.charAt(end) != '\r') {
+                end++;
+            }
+            sb.append("data: ").append(data, start, end).append('\n');
+            if (end == length) {
+                break;
+            }
+            start = data.charAt(end) == '\r' && end + 1 < length && data.charAt(end + 1) == '\n' ? end + 2 : end + 1;
+        }
+        sb.append('\n');
+
+        this.encoded = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates an event from already encoded bytes.
+     * 
+     * @param encoded encoded event
+     */
+    private SseEvent(byte[] encoded) {
+        this.encoded = encoded;
+    }
+
+    /**
+     * @return encoded event, mustn't be modified
+     */
+    byte[] getEncoded() {
+        return encoded;
+    }
+
+    /**
+     * @param value value of a field that must fit in a single line
+     * @return given value
+     */
+    private static String singleLine(String value) {
+        if (value.indexOf('\n') != -1 || value.indexOf('\r') != -1) {
+            throw new IllegalArgumentException("Event name and id can't contain line breaks.");
+        }
+        return value;
+    }
+}
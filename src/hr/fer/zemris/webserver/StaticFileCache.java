@@ -0,0 +1,375 @@
+package hr.fer.zemris.webserver;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-memory cache of small static files. Each entry holds the encoded response header fields and the file contents,
+ * so a cached file is served without touching the file system. Cache is bounded by the total number of bytes it holds
+ * and evicts least recently used entries. Entries are invalidated by a {@link WatchService} that watches the whole
+ * document root.
+ * <p>
+ * Files too large to be cached are still sent without being copied through the heap, but compressing one on every
+ * request would be wasteful, so only their compressed variants are cached, as entries without a body.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class StaticFileCache {
+
+    private final Path root;
+    private final long capacity;
+    private final long maxEntrySize;
+
+    private final Lock lock = new ReentrantLock();
+    private final Map<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private long generation;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private WatchService watcher;
+
+    /**
+     * Creates a new {@link StaticFileCache}.
+     *
+     * @param root document root, every cached file must be inside of it
+     * @param capacity maximum number of bytes held by the cache
+     * @param maxEntrySize maximum size of a single cached file
+     */
+    public StaticFileCache(Path root, long capacity, long maxEntrySize) {
+        this.root = root.toAbsolutePath().normalize();
+        this.capacity = capacity;
+        this.maxEntrySize = Math.min(capacity, maxEntrySize);
+    }
+
+    /**
+     * Starts watching the document root for changes. Until this is called, cache stays empty.
+     */
+    public void start() {
+        if (watcher != null || capacity <= 0) {
+            return;
+        }
+
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            register(root);
+        } catch (IOException e) {
+            throw new RuntimeException("Can't watch document root: " + root);
+        }
+
+        Thread watchThread = new Thread() {
+
+            @Override
+            public void run() {
+                watch();
+            }
+        };
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    /**
+     * Returns the cached entry for the given file.
+     *
+     * @param file requested file
+     * @return cached entry or <code>null</code> if the file isn't cached
+     */
+    public Entry get(Path file) {
+        if (watcher == null) {
+            return null;
+        }
+
+        Entry entry;
+        lock.lock();
+        try {
+            entry = entries.get(key(file));
+        } finally {
+            lock.unlock();
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * @return current generation, it changes every time an entry is invalidated
+     */
+    public long getGeneration() {
+        lock.lock();
+        try {
+            return generation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks if a file of the given size can be cached.
+     *
+     * @param fileSize file size in bytes
+     * @return <code>true</code> if it can, <code>false</code> otherwise
+     */
+    public boolean accepts(long fileSize) {
+        return watcher != null && fileSize <= maxEntrySize;
+    }
+
+    /**
+     * Checks if the compressed variant of a file of the given size can be cached, without the file itself. File is
+     * compressed in memory, so it's size is bounded by the capacity of the whole cache.
+     *
+     * @param fileSize file size in bytes
+     * @return <code>true</code> if it can, <code>false</code> otherwise
+     */
+    public boolean acceptsCompressed(long fileSize) {
+        return watcher != null && fileSize <= capacity;
+    }
+
+    /**
+     * Caches the given file. File is cached only if nothing was invalidated since the given generation, because the
+     * contents might have been read before the file changed.
+     *
+     * @param file cached file
+     * @param entry response for the file
+     * @param readGeneration generation from before the file was read
+     */
+    public void put(Path file, Entry entry, long readGeneration) {
+        if (entry.getBody() == null ? !acceptsCompressed(entry.size()) : !accepts(entry.size())) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            if (generation != readGeneration) {
+                return;
+            }
+
+            Entry previous = entries.put(key(file), entry);
+            if (previous != null) {
+                size -= previous.size();
+            }
+            size += entry.size();
+
+            Iterator<Entry> it = entries.values().iterator();
+            while (size > capacity && it.hasNext()) {
+                size -= it.next().size();
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of requests served from the cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of requests for files that weren't cached
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of entries evicted to make room for new ones
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return number of bytes held by the cache
+     */
+    public long getSize() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the given file and, if it's a directory, everything under it from the cache.
+     *
+     * @param path changed path
+     */
+    private void invalidate(Path path) {
+        lock.lock();
+        try {
+            generation++;
+            Iterator<Map.Entry<Path, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Path, Entry> e = it.next();
+                if (path == null || e.getKey().startsWith(path)) {
+                    size -= e.getValue().size();
+                    it.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for file system events and invalidates the changed files. Newly created directories are watched as well.
+     */
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            final Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // some events were lost, so anything could have changed
+                    invalidate(null);
+                    continue;
+                }
+
+                final Path changed = dir.resolve((Path) event.context());
+                invalidate(changed);
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                    try {
+                        register(changed);
+                    } catch (IOException ignored) {
+                        // directory is already gone
+                    }
+                }
+            }
+            key.reset();
+        }
+    }
+
+    /**
+     * Registers the given directory and all of it's subdirectories with the watch service.
+     *
+     * @param dir directory to watch
+     * @throws IOException if a directory can't be watched
+     */
+    private void register(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * @param file requested file
+     * @return key under which the file is cached
+     */
+    private static Path key(Path file) {
+        return file.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Cached response for a single file. Text files can also have a compressed variant, so they aren't compressed on
+     * every request.
+     *
+     * @author Filip Hrenić
+     * @version 1.0
+     */
+    static final class Entry {
+
+        private final byte[] header;
+        private final byte[] body;
+        private final String etag;
+        private final long lastModified;
+        private final Entry compressed;
+
+        /**
+         * Creates a new {@link Entry}.
+         *
+         * @param header encoded header fields that describe the body, <code>null</code> if there is no body
+         * @param body file contents, <code>null</code> if only the compressed variant is cached
+         * @param etag entity tag of the body
+         * @param lastModified when the file was last modified, in milliseconds since the epoch
+         * @param compressed gzip compressed variant, can be <code>null</code>
+         */
+        public Entry(byte[] header, byte[] body, String etag, long lastModified, Entry compressed) {
+            this.header = header;
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.compressed = compressed;
+        }
+
+        /**
+         * @return encoded header fields that describe the body, <code>null</code> if there is no body
+         */
+        public byte[] getHeader() {
+            return header;
+        }
+
+        /**
+         * @return file contents, <code>null</code> if only the compressed variant is cached
+         */
+        public byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * @return entity tag of the body
+         */
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         * @return when the file was last modified, in milliseconds since the epoch
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return gzip compressed variant or <code>null</code> if there isn't one
+         */
+        public Entry getCompressed() {
+            return compressed;
+        }
+
+        /**
+         * @return number of bytes this entry takes
+         */
+        public long size() {
+            return (body == null ? 0 : header.length + body.length) + (compressed == null ? 0 : compressed.size());
+        }
+    }
+}
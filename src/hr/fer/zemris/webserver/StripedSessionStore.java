@@ -0,0 +1,148 @@
+package hr.fer.zemris.webserver;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Session store split into stripes, each a map of it's own guarded by it's own lock. Session belongs to the stripe
+ * picked by the hash of it's id, so requests of different sessions rarely wait for each other, and each of them
+ * holds a lock only for a single map operation. Locks rather than monitors guard the stripes, so a virtual thread that
+ * waits for one doesn't pin it's carrier thread.
+ * <p>
+ * Every session is valid for the same time after it was last used, so sessions expire in the order they were last
+ * used. Maps of the stripes keep their sessions in that order, and using a session moves it to the end of it's map.
+ * Expired sessions are therefore always at the beginning of the maps, and removing them never looks at more than one
+ * live session per stripe, no matter how many sessions there are.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class StripedSessionStore implements SessionStore {
+
+    private final long timeout;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * Creates a new {@link StripedSessionStore}.
+     *
+     * @param timeout for how many seconds is a session valid after it was last used
+     */
+    public StripedSessionStore(long timeout) {
+        this.timeout = timeout;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    @Override
+    public SessionMapEntry get(String sid, long now) {
+        final Stripe stripe = stripe(sid);
+        stripe.lock.lock();
+        try {
+            final SessionMapEntry entry = stripe.sessions.get(sid);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.getValidUntil() < now) {
+                // it was just moved to the end of the map, where it would no longer be found by the expiry
+                stripe.sessions.remove(sid);
+                return null;
+            }
+            entry.setValidUntil(now + timeout);
+            return entry;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    @Override
+    public SessionMapEntry create(long now) {
+        while (true) {
+            final String sid = SessionMapEntry.generateSid();
+            final Stripe stripe = stripe(sid);
+            stripe.lock.lock();
+            try {
+                // ids are random, so a collision with a live session is very unlikely, but not impossible
+                if (!stripe.sessions.containsKey(sid)) {
+                    final SessionMapEntry entry = new SessionMapEntry(sid, now + timeout);
+                    stripe.sessions.put(sid, entry);
+                    return entry;
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Stripes are cleaned one after another, so requests wait at most for the cleaning of a single stripe. Each
+     * stripe is cleaned from the beginning until the first session that is still valid.
+     */
+    @Override
+    public int removeExpired(long now) {
+        int removed = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                for (Iterator<SessionMapEntry> it = stripe.sessions.values().iterator(); it.hasNext();) {
+                    if (it.next().getValidUntil() >= now) {
+                        break;
+                    }
+                    it.remove();
+                    removed++;
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                size += stripe.sessions.size();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Sessions are kept only in memory, so there is nothing to write.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * @param sid session id
+     * @return stripe to which the session belongs
+     */
+    private Stripe stripe(String sid) {
+        // stripe is picked by the high bits of a mixed hash, the map within it picks buckets by the low bits
+        return stripes[sid.hashCode() * 0x9E3779B9 >>> 32 - STRIPE_BITS];
+    }
+
+    /**
+     * Single stripe: sessions whose ids hash to it, in the order they were last used, and the lock that guards them.
+     *
+     * @author Filip Hrenić
+     * @version 1.0
+     */
+    private static final class Stripe {
+
+        private final Lock lock = new ReentrantLock();
+        private final Map<String, SessionMapEntry> sessions = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    private static final int STRIPE_BITS = 6;
+    private static final int STRIPES = 1 << STRIPE_BITS;
+}
@@ -0,0 +1,37 @@
+package hr.fer.zemris.webserver;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Adapts a synchronous {@link IWebWorker} to the {@link IAsyncWebWorker} interface. Worker is run on the calling
+ * thread and the returned stage is already complete.
+ * 
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class WebWorkerAdapter implements IAsyncWebWorker {
+
+    private final IWebWorker worker;
+
+    /**
+     * Creates a new {@link WebWorkerAdapter}.
+     * 
+     * @param worker synchronous worker
+     */
+    public WebWorkerAdapter(IWebWorker worker) {
+        this.worker = worker;
+    }
+
+    @Override
+    public CompletionStage<?> processRequest(RequestContext context) {
+        try {
+            worker.processRequest(context);
+        } catch (RuntimeException e) {
+            final CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+}
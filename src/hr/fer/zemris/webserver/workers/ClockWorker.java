@@ -0,0 +1,67 @@
+package hr.fer.zemris.webserver.workers;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import hr.fer.zemris.webserver.IWebWorker;
+import hr.fer.zemris.webserver.RequestContext;
+import hr.fer.zemris.webserver.SseBroadcaster;
+import hr.fer.zemris.webserver.SseEvent;
+
+/**
+ * Worker that subscribes the client to a stream of server-sent events with the current time, one every second. All
+ * of the subscribers get the same event from a single timer thread, which is started with the first subscriber.
+ * 
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public class ClockWorker implements IWebWorker {
+
+    private static final SseBroadcaster SUBSCRIBERS = new SseBroadcaster();
+    private static ScheduledExecutorService timer;
+
+    /**
+     * Starts the event stream and adds it to the subscribers.
+     */
+    @Override
+    public void processRequest(RequestContext context) {
+        try {
+            SUBSCRIBERS.add(context.startEventStream());
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't start the event stream.");
+        }
+        startTimer();
+    }
+
+    /**
+     * Starts the timer thread, unless it's already running.
+     */
+    private static synchronized void startTimer() {
+        if (timer != null) {
+            return;
+        }
+
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "clock");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                final String now = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+                SUBSCRIBERS.broadcast(new SseEvent("time", null, now));
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,50 @@
+package hr.fer.zemris.webserver.workers;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+import hr.fer.zemris.webserver.IAsyncWebWorker;
+import hr.fer.zemris.webserver.RequestContext;
+
+/**
+ * Asynchronous worker that answers after a delay, as if it waited for some slow backend. No server thread is held
+ * while it waits. Delay is given in milliseconds by the parameter <code>ms</code>.
+ * 
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public class DelayWorker implements IAsyncWebWorker {
+
+    private static final long DEFAULT_DELAY = 1000;
+    private static final long MAX_DELAY = 10000;
+
+    /**
+     * Creates a html document, once the delay has passed.
+     */
+    @Override
+    public CompletionStage<?> processRequest(final RequestContext context) {
+        long delay = DEFAULT_DELAY;
+        try {
+            final String ms = context.getParameter("ms");
+            if (ms != null) {
+                delay = Math.max(0, Math.min(MAX_DELAY, Long.parseLong(ms.trim())));
+            }
+        } catch (NumberFormatException ignored) {
+        }
+
+        final long waited = delay;
+        return CompletableFuture.runAsync(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    context.write("<html><body><p>Waited for " + waited + " ms.</p></body></html>");
+                } catch (IOException e) {
+                    throw new RuntimeException("Couldn't write the response.");
+                }
+            }
+        }, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS));
+    }
+}
@@ -3,6 +3,7 @@ package hr.fer.zemris.webserver.workers;
 import java.io.IOException;
 import java.util.Set;
 
+import hr.fer.zemris.util.HtmlUtil;
 import hr.fer.zemris.webserver.IWebWorker;
 import hr.fer.zemris.webserver.RequestContext;
 
@@ -20,7 +21,9 @@ public class EchoParams implements IWebWorker {
             html += "<h1>Parameters</h1><table border=\"1\" style=\"width:300px;text-align:center\">";
             html += "<tr><th>" + "Parameter key</th><th>Parameter</th></tr>";
             for (String paramKey : params) {
-                html += "<tr><td>" + paramKey + "</td><td>" + context.getParameter(paramKey) + "</td></tr>";
+                // parameters are decoded, so they can hold markup that mustn't end up in the page
+                html += "<tr><td>" + HtmlUtil.escape(paramKey) + "</td><td>"
+                        + HtmlUtil.escape(String.join(", ", context.getParameterValues(paramKey))) + "</td></tr>";
             }
             html += "</table>";
         } else {
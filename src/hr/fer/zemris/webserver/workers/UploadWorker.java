@@ -0,0 +1,59 @@
+package hr.fer.zemris.webserver.workers;
+
+import java.io.IOException;
+import java.util.List;
+
+import hr.fer.zemris.util.HtmlUtil;
+import hr.fer.zemris.webserver.IWebWorker;
+import hr.fer.zemris.webserver.RequestContext;
+import hr.fer.zemris.webserver.RequestContext.RCPart;
+
+/**
+ * Worker that lists the parts of a <code>multipart/form-data</code> upload. Without an upload, it shows a form for
+ * one.
+ * 
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public class UploadWorker implements IWebWorker {
+
+    /**
+     * Creates a html table of the uploaded parts.
+     */
+    @Override
+    public void processRequest(RequestContext context) {
+
+        String html = "<html><body>";
+        List<RCPart> parts = context.getParts();
+        if (parts.size() != 0) {
+            html += "<h1>Parts</h1><table border=\"1\" style=\"width:500px;text-align:center\">";
+            html += "<tr><th>Name</th><th>File name</th><th>Content type</th><th>Size</th></tr>";
+            for (RCPart part : parts) {
+                // names and types come from the client, so they can hold markup that mustn't end up in the page
+                html += "<tr><td>" + HtmlUtil.escape(part.getName()) + "</td><td>"
+                        + HtmlUtil.escape(nonNull(part.getFileName())) + "</td><td>"
+                        + HtmlUtil.escape(nonNull(part.getContentType())) + "</td><td>" + part.getSize() + "</td></tr>";
+            }
+            html += "</table>";
+        } else {
+            html += "<form method=\"post\" enctype=\"multipart/form-data\">";
+            html += "<input type=\"text\" name=\"title\"> <input type=\"file\" name=\"file\" multiple>";
+            html += " <input type=\"submit\" value=\"Upload\"></form>";
+        }
+        html += "</body></html>";
+
+        try {
+            context.write(html);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @param text text to show
+     * @return given text or an empty string if it's null
+     */
+    private static String nonNull(String text) {
+        return text == null ? "" : text;
+    }
+}
@@ -0,0 +1,65 @@
+package hr.fer.zemris.webserver;
+
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+/**
+ * Regression test for script output that is longer than the response buffer. Server's heap is much smaller than the
+ * output, which is written while the response before it is still being processed, so the server can answer only if
+ * it doesn't keep the whole output.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public final class BoundedResponseTest {
+
+    /**
+     * Runs the test, exits with an error if it fails.
+     *
+     * @param args not used
+     * @throws Exception if the test fails
+     */
+    public static void main(String[] args) throws Exception {
+        final Path root = Files.createTempDirectory("webroot");
+        final StringBuilder line = new StringBuilder();
+        for (int i = 1; i < LINE_LENGTH; i++) {
+            line.append('x');
+        }
+        Files.write(root.resolve("big.smscr"), ("{$ FOR i 1 " + LINES + " 1 $}" + line + "\n{$END$}")
+                .getBytes(StandardCharsets.UTF_8));
+
+        for (String io : new String[] { "nio", "blocking" }) {
+            try (TestServer server = new TestServer(root, Collections.singletonMap("server.io", io),
+                    "-Xmx" + HEAP_MB + "m"); Socket socket = server.connect()) {
+                socket.setSoTimeout(30_000);
+                final OutputStream ostream = socket.getOutputStream();
+                ostream.write(("GET /delay?ms=2000 HTTP/1.1\r\nHost: test\r\n\r\n"
+                        + "GET /big.smscr HTTP/1.1\r\nHost: test\r\nConnection: close\r\n\r\n")
+                        .getBytes(StandardCharsets.ISO_8859_1));
+                ostream.flush();
+
+                final InputStream istream = new BufferedInputStream(socket.getInputStream());
+                TestServer.skipResponse(istream);
+                final long length = TestServer.skipResponse(istream);
+
+                TestServer.check(length > (long) LINES * LINE_LENGTH, "Body is too short: " + length + " bytes.");
+                TestServer.check(server.isAlive(), "Server stopped.");
+                System.out.println(io + ": body of " + length + " bytes was sent by a server with " + HEAP_MB
+                        + " MB of heap.");
+            }
+        }
+    }
+
+    /** How many lines the script writes. */
+    private static final int LINES = 100_000;
+    /** Length of a line the script writes, in bytes. */
+    private static final int LINE_LENGTH = 1000;
+    /** Maximum size of the server's heap, in megabytes. */
+    private static final int HEAP_MB = 32;
+}
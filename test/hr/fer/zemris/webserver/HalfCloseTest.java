@@ -0,0 +1,55 @@
+package hr.fer.zemris.webserver;
+
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collections;
+
+/**
+ * Regression test for a client that half-closes the connection while it's request is still being processed. Server
+ * must answer the request, without spinning on a channel that has reached it's end while it waits for the response.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+public final class HalfCloseTest {
+
+    /**
+     * Runs the test, exits with an error if it fails.
+     *
+     * @param args not used
+     * @throws Exception if the test fails
+     */
+    public static void main(String[] args) throws Exception {
+        final Path root = Files.createTempDirectory("webroot");
+        try (TestServer server = new TestServer(root, Collections.singletonMap("server.io", "nio"))) {
+            // classes used by the request are loaded before the processor time is measured
+            server.exchange("GET /delay?ms=10 HTTP/1.1\r\nHost: test\r\nConnection: close\r\n\r\n");
+
+            try (Socket socket = server.connect()) {
+                final OutputStream ostream = socket.getOutputStream();
+                ostream.write(("GET /delay?ms=" + DELAY_MS + " HTTP/1.1\r\nHost: test\r\n\r\n")
+                        .getBytes(StandardCharsets.ISO_8859_1));
+                ostream.flush();
+                final Duration before = server.cpuTime();
+                socket.shutdownOutput();
+
+                final String response = new String(socket.getInputStream().readAllBytes(),
+                        StandardCharsets.ISO_8859_1);
+                final Duration used = server.cpuTime().minus(before);
+
+                TestServer.check(response.startsWith("HTTP/1.1 200"), "Request wasn't answered: " + response);
+                TestServer.check(used.toMillis() < DELAY_MS / 2,
+                        "Server used " + used.toMillis() + " ms of processor time during " + DELAY_MS + " ms wait.");
+                System.out.println("Half-closed connection was answered, " + used.toMillis()
+                        + " ms of processor time used during " + DELAY_MS + " ms wait.");
+            }
+        }
+    }
+
+    /** How long the request takes to process, in milliseconds. */
+    private static final int DELAY_MS = 3000;
+}
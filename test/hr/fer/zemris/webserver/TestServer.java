@@ -0,0 +1,216 @@
+package hr.fer.zemris.webserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Server started in a process of it's own, for the tests that talk to it over a socket. It uses the configs and the
+ * workers of the project, so tests are run from the project's root directory. Process is started with the class path
+ * of the test, which must contain the server classes.
+ *
+ * @author Filip Hrenić
+ * @version 1.0
+ */
+final class TestServer implements AutoCloseable {
+
+    private final Process process;
+    private final int port;
+
+    /**
+     * Starts the server and waits until it accepts connections.
+     *
+     * @param documentRoot document root
+     * @param properties server properties that differ from the test defaults
+     * @param jvmOptions options of the server's JVM
+     * @throws IOException if the server couldn't be started
+     */
+    public TestServer(Path documentRoot, Map<String, String> properties, String... jvmOptions) throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+
+        final StringBuilder config = new StringBuilder();
+        config.append("server.address = 127.0.0.1\n");
+        config.append("server.port = ").append(port).append('\n');
+        config.append("server.workerThreads = 4\n");
+        config.append("session.timeout = 600\n");
+        config.append("server.documentRoot = ").append(documentRoot.toAbsolutePath()).append('\n');
+        config.append("server.mimeConfig = ").append(Paths.get("config/mime.properties").toAbsolutePath()).append('\n');
+        config.append("server.workers = ").append(Paths.get("config/workers.properties").toAbsolutePath())
+                .append('\n');
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            config.append(property.getKey()).append(" = ").append(property.getValue()).append('\n');
+        }
+        final Path file = Files.createTempFile("server", ".properties");
+        file.toFile().deleteOnExit();
+        Files.write(file, config.toString().replace("\\", "/").getBytes(StandardCharsets.ISO_8859_1));
+
+        final List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        for (String option : jvmOptions) {
+            command.add(option);
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(SmartHttpServer.class.getName());
+        command.add(file.toString());
+        process = new ProcessBuilder(command).redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port));
+                return;
+            } catch (IOException e) {
+                if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+                    close();
+                    throw new IOException("Server didn't start.");
+                }
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * @return new connection to the server
+     * @throws IOException if the server can't be reached
+     */
+    public Socket connect() throws IOException {
+        return new Socket("127.0.0.1", port);
+    }
+
+    /**
+     * @return processor time the server's process used so far
+     */
+    public Duration cpuTime() {
+        return process.toHandle().info().totalCpuDuration().get();
+    }
+
+    /**
+     * @return <code>true</code> if the server's process is still running
+     */
+    public boolean isAlive() {
+        return process.isAlive();
+    }
+
+    @Override
+    public void close() {
+        process.destroyForcibly();
+    }
+
+    /**
+     * Sends a request and reads the whole response, until the server closes the connection.
+     *
+     * @param request request bytes
+     * @return response bytes
+     * @throws IOException if there was a problem with the connection
+     */
+    public byte[] exchange(String request) throws IOException {
+        try (Socket socket = connect()) {
+            final OutputStream ostream = socket.getOutputStream();
+            ostream.write(request.getBytes(StandardCharsets.ISO_8859_1));
+            ostream.flush();
+            return socket.getInputStream().readAllBytes();
+        }
+    }
+
+    /**
+     * Reads a response and skips it's body, which is delimited either by it's length or by chunks.
+     *
+     * @param istream stream from which the response is read
+     * @return length of the body
+     * @throws IOException if there was a problem with reading, or the response ended early
+     */
+    static long skipResponse(InputStream istream) throws IOException {
+        final String status = readLine(istream);
+        check(status.startsWith("HTTP/1.1 200"), "Unexpected response: " + status);
+
+        long length = -1;
+        boolean chunked = false;
+        for (String line = readLine(istream); !line.isEmpty(); line = readLine(istream)) {
+            final String name = line.substring(0, line.indexOf(':')).trim();
+            final String value = line.substring(line.indexOf(':') + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                length = Long.parseLong(value);
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                chunked = value.equalsIgnoreCase("chunked");
+            }
+        }
+
+        if (!chunked) {
+            skip(istream, length);
+            return length;
+        }
+        long total = 0;
+        for (long size = Long.parseLong(readLine(istream), 16); size > 0; size = Long.parseLong(readLine(istream),
+                16)) {
+            skip(istream, size);
+            readLine(istream);
+            total += size;
+        }
+        readLine(istream);
+        return total;
+    }
+
+    /**
+     * @param istream stream to read
+     * @return next line, without it's end
+     * @throws IOException if there was a problem with reading, or the stream ended
+     */
+    private static String readLine(InputStream istream) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        for (int b = istream.read(); b != '\n'; b = istream.read()) {
+            if (b == -1) {
+                throw new IOException("Response ended early.");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    /**
+     * @param istream stream to read
+     * @param count number of bytes to skip
+     * @throws IOException if there was a problem with reading, or the stream ended
+     */
+    private static void skip(InputStream istream, long count) throws IOException {
+        final byte[] buffer = new byte[64 * 1024];
+        while (count > 0) {
+            final int read = istream.read(buffer, 0, (int) Math.min(buffer.length, count));
+            if (read == -1) {
+                throw new IOException("Response ended early.");
+            }
+            count -= read;
+        }
+    }
+
+    /**
+     * Fails the test if the condition doesn't hold.
+     *
+     * @param condition condition that must hold
+     * @param message description of the failure
+     */
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}